@@ -0,0 +1,109 @@
+package com.sts15.enderdrives.benchmarks;
+
+import com.sts15.enderdrives.db.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Synthetic key type and storage wiring shared by the benchmarks. Nothing here needs a server: files go to
+ * temporary directories and keys are plain ints serialized to roughly the size of an item stack's NBT.
+ */
+final class BenchStorage {
+
+    /** Stand-in for an AE2 key. */
+    record SyntheticKey(int id) {}
+
+    static final String SCOPE = "global";
+    /** Keys are spread round-robin over this many frequencies. */
+    static final int CHANNELS = 64;
+
+    private static final String PREFIX = "{id:\"bench:item_";
+    private static final String SUFFIX = "\",count:1b}";
+
+    static final KeyCodec<SyntheticKey> KEYS = new KeyCodec<>() {
+        @Override
+        public SyntheticKey decode(byte[] bytes) {
+            String s = new String(bytes, StandardCharsets.UTF_8);
+            if (!s.startsWith(PREFIX) || !s.endsWith(SUFFIX)) return null;
+            try {
+                return new SyntheticKey(Integer.parseInt(s, PREFIX.length(), s.length() - SUFFIX.length(), 10));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        @Override public byte[] encode(SyntheticKey key) { return bytesOf(key.id()); }
+        @Override public void clearCache() {}
+    };
+
+    static final EntryCodec<MutableEntry<SyntheticKey>, SyntheticKey> CODEC = new EntryCodec<>() {
+        @Override public long count(MutableEntry<SyntheticKey> value) { return value.count(); }
+        @Override public SyntheticKey aeKey(MutableEntry<SyntheticKey> value) { return value.aeKey(); }
+        @Override public MutableEntry<SyntheticKey> create(long count, SyntheticKey aeKey) { return new MutableEntry<>(count, aeKey); }
+    };
+
+    private BenchStorage() {}
+
+    static byte[] bytesOf(int id) {
+        return String.format("%s%08d%s", PREFIX, id, SUFFIX).getBytes(StandardCharsets.UTF_8);
+    }
+
+    static int freqOf(int id) {
+        return id % CHANNELS;
+    }
+
+    /**
+     * Server defaults in the given mode, except that the commit thread never checkpoints on its own, so
+     * benchmarks decide when checkpoints happen.
+     */
+    static StorageConfig config(StorageMode mode) {
+        return StorageConfig.defaults()
+                .withStorageMode(mode)
+                .withCheckpointIntervals(3_600_000, 3_600_000);
+    }
+
+    static StorageEngine<MutableEntry<SyntheticKey>, SyntheticKey> newEngine(StorageConfig config) {
+        return new StorageEngine<>((byte) 1, "BenchDB", "enderdrives", KEYS, CODEC, config);
+    }
+
+    /** A core over {@code engine} in {@code dir}, with a server that always keeps up. */
+    static StorageCore newCore(Path dir, StorageConfig config, StorageEngine<?, ?> engine) {
+        return new StorageCore(StoragePaths.of(dir), config, List.of(engine), () -> 0);
+    }
+
+    /** Stores one of each of the first {@code keys} synthetic keys. */
+    static void fill(StorageEngine<MutableEntry<SyntheticKey>, SyntheticKey> engine, int keys) {
+        for (int id = 0; id < keys; id++) {
+            engine.save(SCOPE, freqOf(id), new SyntheticKey(id), 1);
+        }
+    }
+
+    static Path tempDir(String name) throws IOException {
+        return Files.createTempDirectory("enderdrives-bench-" + name);
+    }
+
+    static void copyTree(Path from, Path to) throws IOException {
+        try (Stream<Path> files = Files.walk(from)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Path target = to.resolve(from.relativize(file).toString());
+                if (Files.isDirectory(file)) Files.createDirectories(target);
+                else Files.copy(file, target);
+            }
+        }
+    }
+
+    static void deleteTree(Path dir) throws IOException {
+        if (dir == null || !Files.exists(dir)) return;
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(file);
+            }
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package com.sts15.enderdrives.benchmarks;
+
+import com.sts15.enderdrives.benchmarks.BenchStorage.SyntheticKey;
+import com.sts15.enderdrives.db.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@code commitDatabase}: one checkpoint of a store holding {@code keys} entries, after a {@code dirty}
+ * fraction of them changed. The changed keys are spread over every channel, as player traffic would be.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class CommitBenchmark {
+
+    @Param({"10000", "100000", "1000000", "5000000"})
+    public int keys;
+
+    @Param({"HEAP", "OFF_HEAP"})
+    public StorageMode mode;
+
+    @Param({"0.01", "1.0"})
+    public double dirty;
+
+    private Path dir;
+    private StorageCore core;
+    private StorageEngine<MutableEntry<SyntheticKey>, SyntheticKey> engine;
+    private SyntheticKey[] aeKeys;
+    private int stride;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        dir = BenchStorage.tempDir("commit");
+        StorageConfig config = BenchStorage.config(mode);
+        engine = BenchStorage.newEngine(config);
+        core = BenchStorage.newCore(dir, config, engine);
+        core.init();
+        BenchStorage.fill(engine, keys);
+        core.commitDatabase();
+
+        aeKeys = new SyntheticKey[keys];
+        for (int id = 0; id < keys; id++) aeKeys[id] = new SyntheticKey(id);
+        stride = Math.max(1, (int) Math.round(1 / dirty));
+    }
+
+    @Setup(Level.Invocation)
+    public void touch() {
+        for (int id = 0; id < keys; id += stride) {
+            engine.save(BenchStorage.SCOPE, BenchStorage.freqOf(id), aeKeys[id], 1);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        core.shutdown();
+        BenchStorage.deleteTree(dir);
+    }
+
+    @Benchmark
+    public void commitDatabase() {
+        core.commitDatabase();
+    }
+}
@@ -0,0 +1,97 @@
+package com.sts15.enderdrives.benchmarks;
+
+import com.sts15.enderdrives.benchmarks.BenchStorage.SyntheticKey;
+import com.sts15.enderdrives.db.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The hot paths of the item manager ({@code saveItem}, {@code getItemCount}, {@code queryItemsByFrequency}),
+ * by serialized bytes and by key, against a store already holding {@code keys} entries.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class EngineBenchmark {
+
+    @Param({"10000", "100000", "1000000", "5000000"})
+    public int keys;
+
+    @Param({"HEAP", "OFF_HEAP"})
+    public StorageMode mode;
+
+    private Path dir;
+    private StorageCore core;
+    private StorageEngine<MutableEntry<SyntheticKey>, SyntheticKey> engine;
+    private SyntheticKey[] aeKeys;
+    private byte[][] keyBytes;
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        private final SplittableRandom random = new SplittableRandom(42);
+
+        int next(int bound) {
+            return random.nextInt(bound);
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        dir = BenchStorage.tempDir("engine");
+        StorageConfig config = BenchStorage.config(mode);
+        engine = BenchStorage.newEngine(config);
+        core = BenchStorage.newCore(dir, config, engine);
+        core.init();
+        BenchStorage.fill(engine, keys);
+        core.commitDatabase();
+
+        aeKeys = new SyntheticKey[keys];
+        keyBytes = new byte[keys][];
+        for (int id = 0; id < keys; id++) {
+            aeKeys[id] = new SyntheticKey(id);
+            keyBytes[id] = BenchStorage.bytesOf(id);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        core.shutdown();
+        BenchStorage.deleteTree(dir);
+    }
+
+    @Benchmark
+    public void saveItem(Cursor cursor) {
+        int id = cursor.next(keys);
+        engine.save(BenchStorage.SCOPE, BenchStorage.freqOf(id), keyBytes[id], 1);
+    }
+
+    @Benchmark
+    public boolean saveItemByKey(Cursor cursor) {
+        int id = cursor.next(keys);
+        return engine.save(BenchStorage.SCOPE, BenchStorage.freqOf(id), aeKeys[id], 1);
+    }
+
+    @Benchmark
+    public long getItemCount(Cursor cursor) {
+        int id = cursor.next(keys);
+        return engine.getCount(BenchStorage.SCOPE, BenchStorage.freqOf(id), keyBytes[id]);
+    }
+
+    @Benchmark
+    public long getItemCountByKey(Cursor cursor) {
+        int id = cursor.next(keys);
+        return engine.getCount(BenchStorage.SCOPE, BenchStorage.freqOf(id), aeKeys[id]);
+    }
+
+    /** Lists one frequency, i.e. {@code keys / CHANNELS} entries. */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public List<Long> queryItemsByFrequency(Cursor cursor) {
+        int freq = cursor.next(BenchStorage.CHANNELS);
+        return engine.query(BenchStorage.SCOPE, freq, (dbKey, aeKey, count) -> count);
+    }
+}
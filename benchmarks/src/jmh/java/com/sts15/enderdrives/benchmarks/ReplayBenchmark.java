@@ -0,0 +1,71 @@
+package com.sts15.enderdrives.benchmarks;
+
+import com.sts15.enderdrives.benchmarks.BenchStorage.SyntheticKey;
+import com.sts15.enderdrives.db.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Crash recovery: starting a store whose {@code keys} entries are only in the WAL. Includes loading the key
+ * dictionary, the partitioned replay and the checkpoint startup takes right after replaying.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class ReplayBenchmark {
+
+    @Param({"10000", "100000", "1000000", "5000000"})
+    public int keys;
+
+    @Param({"HEAP", "OFF_HEAP"})
+    public StorageMode mode;
+
+    private StorageConfig config;
+    /** Files of a store that logged {@code keys} saves and was never checkpointed. */
+    private Path template;
+    private Path dir;
+    private StorageCore core;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        config = BenchStorage.config(mode);
+        Path source = BenchStorage.tempDir("replay-source");
+        StorageEngine<MutableEntry<SyntheticKey>, SyntheticKey> engine = BenchStorage.newEngine(config);
+        StorageCore writer = BenchStorage.newCore(source, config, engine);
+        writer.init();
+        BenchStorage.fill(engine, keys);
+        writer.flushWALQueue();
+        // Copied before shutdown, which would checkpoint the WAL away.
+        template = BenchStorage.tempDir("replay-template");
+        BenchStorage.copyTree(source, template);
+        writer.shutdown();
+        BenchStorage.deleteTree(source);
+    }
+
+    @Setup(Level.Invocation)
+    public void prepare() throws Exception {
+        dir = BenchStorage.tempDir("replay");
+        BenchStorage.copyTree(template, dir);
+        core = BenchStorage.newCore(dir, config, BenchStorage.newEngine(config));
+    }
+
+    @TearDown(Level.Invocation)
+    public void close() throws Exception {
+        core.shutdown();
+        BenchStorage.deleteTree(dir);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        BenchStorage.deleteTree(template);
+    }
+
+    @Benchmark
+    public void replayWAL() {
+        core.init();
+    }
+}
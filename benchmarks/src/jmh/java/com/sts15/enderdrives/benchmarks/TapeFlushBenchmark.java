@@ -0,0 +1,63 @@
+package com.sts15.enderdrives.benchmarks;
+
+import appeng.api.stacks.AEItemKey;
+import com.sts15.enderdrives.db.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.file.Path;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tape flush: applying {@code keys} buffered deltas to a tape and rewriting its .bin file. Synthetic keys
+ * don't decode to AE2 keys, so entries are stored unresolved, as the tape store does for unreadable stacks.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class TapeFlushBenchmark {
+
+    @Param({"10000", "100000", "1000000", "5000000"})
+    public int keys;
+
+    private static final KeyCodec<AEItemKey> UNRESOLVED = new KeyCodec<>() {
+        @Override public AEItemKey decode(byte[] bytes) { return null; }
+        @Override public byte[] encode(AEItemKey key) { return new byte[0]; }
+        @Override public void clearCache() {}
+    };
+
+    private final UUID tape = UUID.randomUUID();
+    private Path dir;
+    private TapeKey[] tapeKeys;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        dir = BenchStorage.tempDir("tape");
+        TapeDBManager.configure(StoragePaths.of(dir),
+                StorageConfig.defaults().withTapeByteLimit(Long.MAX_VALUE), UNRESOLVED);
+        tapeKeys = new TapeKey[keys];
+        for (int id = 0; id < keys; id++) tapeKeys[id] = new TapeKey(BenchStorage.bytesOf(id));
+    }
+
+    /** Starts every flush from an empty tape with all keys pending. */
+    @Setup(Level.Invocation)
+    public void buffer() {
+        TapeDBManager.releaseFromRAM(tape);
+        TapeDBManager.deleteTape(tape);
+        TapeDBManager.TapeDriveCache cache = TapeDBManager.getOrLoadForRead(tape);
+        for (TapeKey key : tapeKeys) cache.deltaBuffer.put(key, 1L);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        TapeDBManager.shutdown();
+        BenchStorage.deleteTree(dir);
+    }
+
+    @Benchmark
+    public void flush() {
+        TapeDBManager.flushAll();
+    }
+}
@@ -0,0 +1,95 @@
+package com.sts15.enderdrives.benchmarks;
+
+import com.sts15.enderdrives.benchmarks.BenchStorage.SyntheticKey;
+import com.sts15.enderdrives.db.*;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.sts15.enderdrives.benchmarks.BenchStorage.SCOPE;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * {@link StorageEngine#isLoaded}, which the disk inventories use to report "loading" instead of reading a
+ * channel on the server thread: it must say no for a channel that isn't in RAM, without loading it, and start
+ * the prefetch that makes it say yes.
+ */
+class ChannelLoadingTest {
+
+    private static final String OWNER = "player_0123abcd";
+
+    private final List<Path> dirs = new ArrayList<>();
+    private StorageCore core;
+
+    @AfterEach
+    void cleanUp() throws IOException {
+        if (core != null) core.shutdown();
+        core = null;
+        for (Path dir : dirs) BenchStorage.deleteTree(dir);
+    }
+
+    @Test
+    void lazyOwnerChannelIsLoadedByPrefetch() throws Exception {
+        StorageConfig config = BenchStorage.config(StorageMode.HEAP).withAsyncStartup(true).withLazyOwnerScopes(true);
+        Path dir = tempDir();
+        var engine = open(dir, config);
+        engine.save(OWNER, 1, new SyntheticKey(7), 42);
+        core.commitDatabase();
+
+        engine = open(dir, config);
+        assertEquals(0, engine.getPageIns());
+        assertFalse(engine.isLoaded(OWNER, 1), "owned channel is left unloaded at startup");
+        assertTrue(engine.isLoaded(OWNER, 2), "a channel never stored needs no loading");
+        awaitLoaded(engine, OWNER, 1);
+        assertEquals(42, engine.getCount(OWNER, 1, new SyntheticKey(7)));
+    }
+
+    @Test
+    void evictedChannelIsLoadedByPrefetch() throws Exception {
+        StorageConfig config = BenchStorage.config(StorageMode.HEAP).withChannelResidency(1, 0);
+        var engine = open(tempDir(), config);
+        engine.save(SCOPE, 3, new SyntheticKey(3), 5);
+        assertTrue(engine.isLoaded(SCOPE, 3));
+        core.commitDatabase(); // only clean channels are evicted
+        Thread.sleep(20);
+        core.evictColdChannels();
+
+        assertFalse(engine.isLoaded(SCOPE, 3), "paged out");
+        assertEquals(5, engine.getTotalCount(SCOPE, 3), "aggregates are served without loading");
+        awaitLoaded(engine, SCOPE, 3);
+        assertEquals(1, engine.getPageIns());
+        assertEquals(5, engine.getCount(SCOPE, 3, new SyntheticKey(3)));
+    }
+
+    private static void awaitLoaded(StorageEngine<?, ?> engine, String scope, int freq) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (!engine.isLoaded(scope, freq) && System.currentTimeMillis() < deadline) Thread.sleep(10);
+        assertTrue(engine.isLoaded(scope, freq), "prefetch loaded " + scope + "|" + freq);
+    }
+
+    /** Stops the current core, if any, and starts a new one on {@code dir}. */
+    private StorageEngine<MutableEntry<SyntheticKey>, SyntheticKey> open(Path dir, StorageConfig config) throws InterruptedException {
+        if (core != null) core.shutdown();
+        var engine = BenchStorage.newEngine(config);
+        core = BenchStorage.newCore(dir, config, engine);
+        if (config.asyncStartup()) {
+            core.initAsync();
+            long deadline = System.currentTimeMillis() + 30_000;
+            while (!core.isStarted() && !core.isFailed() && System.currentTimeMillis() < deadline) Thread.sleep(10);
+        } else {
+            core.init();
+        }
+        assertFalse(core.isFailed(), "startup failed: " + core.describeStartup());
+        return engine;
+    }
+
+    private Path tempDir() throws IOException {
+        Path dir = BenchStorage.tempDir("loading-test");
+        dirs.add(dir);
+        return dir;
+    }
+}
@@ -0,0 +1,402 @@
+package com.sts15.enderdrives.benchmarks;
+
+import com.sts15.enderdrives.benchmarks.BenchStorage.SyntheticKey;
+import com.sts15.enderdrives.db.*;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.IntToLongFunction;
+import java.util.zip.CRC32;
+
+import static com.sts15.enderdrives.benchmarks.BenchStorage.SCOPE;
+import static com.sts15.enderdrives.benchmarks.BenchStorage.freqOf;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Round trips of the on-disk formats through a real core in temporary directories: EDS3 segments, the
+ * formats of older worlds (EDS2 and EDS1 segments, the .bin file), corrupted blocks, and crash recovery
+ * from the shared WAL. A crash is simulated by copying the files before shutdown, which would checkpoint.
+ */
+class StorageFormatTest {
+
+    private static final int KEYS = 2000;
+    private static final int FOOTER_MAGIC = 0x45445346;
+
+    private final List<Path> dirs = new ArrayList<>();
+    private StorageCore core;
+
+    @AfterEach
+    void cleanUp() throws IOException {
+        if (core != null) core.shutdown();
+        core = null;
+        for (Path dir : dirs) BenchStorage.deleteTree(dir);
+    }
+
+    @Test
+    void eds3RoundTrip() throws Exception {
+        for (StorageMode mode : StorageMode.values()) {
+            StorageConfig config = BenchStorage.config(mode);
+            Path dir = tempDir();
+            BenchStorage.fill(open(dir, config), KEYS);
+            core.commitDatabase();
+
+            var engine = open(dir, config);
+            assertEquals("EDS3", segmentMagic(dir.resolve("enderdrives-00000001.seg")));
+            assertCounts(engine, mode, id -> 1);
+        }
+    }
+
+    @Test
+    void readsLegacyBinFile() throws Exception {
+        for (StorageMode mode : StorageMode.values()) {
+            for (boolean header : new boolean[]{false, true}) {
+                StorageConfig config = BenchStorage.config(mode);
+                Path dir = tempDir();
+                writeBinFile(dir.resolve("enderdrives.bin"), header);
+
+                assertCounts(open(dir, config), mode, id -> id + 1);
+                assertTrue(Files.exists(dir.resolve("enderdrives.bin.migrated")), "migrated .bin is kept aside");
+                assertFalse(Files.exists(dir.resolve("enderdrives.bin")));
+                assertCounts(open(dir, config), mode, id -> id + 1);
+            }
+        }
+    }
+
+    @Test
+    void readsEds1Segments() throws Exception {
+        for (StorageMode mode : StorageMode.values()) {
+            Path dir = tempDir();
+            writeLegacySegment(dir, "EDS1");
+            readAndUpgrade(dir, BenchStorage.config(mode));
+        }
+    }
+
+    @Test
+    void readsEds2Segments() throws Exception {
+        for (StorageMode mode : StorageMode.values()) {
+            Path dir = tempDir();
+            writeDictionary(dir.resolve("enderdrives.dict"));
+            writeLegacySegment(dir, "EDS2");
+            readAndUpgrade(dir, BenchStorage.config(mode));
+        }
+    }
+
+    @Test
+    void compactionFallsBackToOlderCopyOfCorruptedBlock() throws Exception {
+        for (StorageMode mode : StorageMode.values()) {
+            StorageConfig config = BenchStorage.config(mode).withMaxSegments(2);
+            Path dir = tempDir();
+            var engine = open(dir, config);
+            BenchStorage.fill(engine, KEYS);
+            core.commitDatabase();
+            engine.save(SCOPE, 3, new SyntheticKey(3), 100);
+            core.commitDatabase();
+            core.shutdown();
+            core = null;
+
+            // Segment 2 holds only channel 3.
+            corruptFirstBlock(dir.resolve("enderdrives-00000002.seg"));
+
+            engine = open(dir, config);
+            assertEquals(1, engine.getCount(SCOPE, 3, new SyntheticKey(3)), "loads the older copy");
+            engine.save(SCOPE, 1, new SyntheticKey(1), 1);
+            core.commitDatabase();
+            core.compactIfNeeded();
+            assertEquals(1, engine.getSegmentCount(), "compacted despite the bad block");
+
+            engine = open(dir, config);
+            assertEquals(1, engine.getCount(SCOPE, 3, new SyntheticKey(3)));
+            assertEquals(2, engine.getCount(SCOPE, 1, new SyntheticKey(1)));
+            assertEquals(typesIn(3), engine.getTypeCount(SCOPE, 3));
+        }
+    }
+
+    @Test
+    void keepsChannelWithoutReadableCopyUnloadedWithItsSegments() throws Exception {
+        int lost = BenchStorage.CHANNELS; // no key of fill() lands in it
+        SyntheticKey key = new SyntheticKey(0);
+        for (StorageConfig startup : startupConfigs()) {
+            Path dir = tempDir();
+            var engine = open(dir, startup);
+            engine.save(SCOPE, lost, key, 1);
+            core.commitDatabase();
+            engine.save(SCOPE, lost, key, 100);
+            core.commitDatabase();
+            BenchStorage.fill(engine, KEYS);
+            core.commitDatabase();
+            core.shutdown();
+            core = null;
+
+            // Segments 1 and 2 hold only that channel: neither copy is readable any more.
+            Path older = dir.resolve("enderdrives-00000001.seg");
+            Path newer = dir.resolve("enderdrives-00000002.seg");
+            corruptFirstBlock(older);
+            corruptFirstBlock(newer);
+
+            StorageConfig config = startup.withMaxSegments(1);
+            engine = open(dir, config);
+            assertFalse(engine.isLoaded(SCOPE, lost), label(config));
+            assertEquals(0, engine.getCount(SCOPE, lost, key));
+            assertFalse(engine.save(SCOPE, lost, key, 5), "refuses writes");
+            engine.save(SCOPE, 1, new SyntheticKey(1), 1);
+            core.commitDatabase();
+            core.compactIfNeeded();
+            assertEquals(3, engine.getSegmentCount(), "the other segments are compacted");
+            assertTrue(Files.exists(older) && Files.exists(newer), "its segments survive compaction");
+
+            corruptFirstBlock(newer); // flips the byte back, as if the file had been restored
+            engine = open(dir, config);
+            assertEquals(101, engine.getCount(SCOPE, lost, key), label(config));
+            assertCounts(engine, config.storageMode(), id -> id == 1 ? 2 : 1);
+        }
+    }
+
+    @Test
+    void replaysWalPastManifestFence() throws Exception {
+        for (StorageConfig config : startupConfigs()) {
+            Path dir = tempDir();
+            var engine = open(dir, config);
+            BenchStorage.fill(engine, KEYS);
+            core.flushWALQueue();
+            byte[] checkpointed = Files.readAllBytes(dir.resolve("enderdrives_shared.wal"));
+            core.commitDatabase();
+            for (int id = 0; id < KEYS; id += 2) engine.save(SCOPE, freqOf(id), new SyntheticKey(id), 2);
+            for (int id = KEYS; id < KEYS + 100; id++) engine.save(SCOPE, freqOf(id), new SyntheticKey(id), 1);
+            Path crashed = crash(dir);
+            // As if the crash came before the checkpoint deleted its rotated WAL: the fence must skip it.
+            Files.write(crashed.resolve("enderdrives_shared.wal.1"), checkpointed);
+
+            engine = open(crashed, config);
+            for (int id = 0; id < KEYS + 100; id++) {
+                long expected = id >= KEYS ? 1 : id % 2 == 0 ? 3 : 1;
+                assertEquals(expected, engine.getCount(SCOPE, freqOf(id), new SyntheticKey(id)), label(config) + " key " + id);
+            }
+            assertFalse(Files.exists(crashed.resolve("enderdrives_shared.wal.1")), "covered WAL is deleted");
+        }
+    }
+
+    @Test
+    void replaysClearAfterCheckpoint() throws Exception {
+        for (StorageConfig config : startupConfigs()) {
+            Path dir = tempDir();
+            var engine = open(dir, config);
+            BenchStorage.fill(engine, KEYS);
+            core.commitDatabase();
+            engine.clearFrequency(SCOPE, 5);
+            engine.save(SCOPE, 5, new SyntheticKey(5), 7);
+            Path crashed = crash(dir);
+
+            engine = open(crashed, config);
+            assertEquals(1, engine.getTypeCount(SCOPE, 5), label(config));
+            assertEquals(7, engine.getTotalCount(SCOPE, 5));
+            assertEquals(0, engine.getCount(SCOPE, 5, new SyntheticKey(5 + BenchStorage.CHANNELS)));
+            assertEquals(typesIn(6), engine.getTypeCount(SCOPE, 6), "other channels untouched");
+
+            // And once more after the replayed clear has been checkpointed.
+            engine = open(crashed, config);
+            assertEquals(7, engine.getTotalCount(SCOPE, 5));
+        }
+    }
+
+// ==== Helpers ====
+
+    /** Every mode, started in the foreground and in the background (which defers WAL records per channel). */
+    private static List<StorageConfig> startupConfigs() {
+        List<StorageConfig> configs = new ArrayList<>();
+        for (StorageMode mode : StorageMode.values()) {
+            configs.add(BenchStorage.config(mode));
+            configs.add(BenchStorage.config(mode).withAsyncStartup(true));
+        }
+        return configs;
+    }
+
+    private static String label(StorageConfig config) {
+        return config.storageMode() + (config.asyncStartup() ? " background startup" : "");
+    }
+
+    /** Stops the current core, if any, and starts a new one on {@code dir}. */
+    private StorageEngine<MutableEntry<SyntheticKey>, SyntheticKey> open(Path dir, StorageConfig config) throws InterruptedException {
+        if (core != null) core.shutdown();
+        var engine = BenchStorage.newEngine(config);
+        core = BenchStorage.newCore(dir, config, engine);
+        if (config.asyncStartup()) {
+            core.initAsync();
+            long deadline = System.currentTimeMillis() + 30_000;
+            while (!core.isStarted() && !core.isFailed() && System.currentTimeMillis() < deadline) Thread.sleep(10);
+        } else {
+            core.init();
+        }
+        assertFalse(core.isFailed(), "startup failed: " + core.describeStartup());
+        return engine;
+    }
+
+    /** Stops the core the way a crash would: everything logged is on disk, but nothing is checkpointed. */
+    private Path crash(Path dir) throws IOException {
+        core.flushWALQueue();
+        Path copy = tempDir();
+        BenchStorage.copyTree(dir, copy);
+        core.shutdown();
+        core = null;
+        return copy;
+    }
+
+    /** Checks the counts, then writes and checkpoints, which rewrites the touched channels as EDS3. */
+    private void readAndUpgrade(Path dir, StorageConfig config) throws Exception {
+        var engine = open(dir, config);
+        assertCounts(engine, config.storageMode(), id -> id + 1);
+        for (int id = 0; id < BenchStorage.CHANNELS; id++) engine.save(SCOPE, freqOf(id), new SyntheticKey(id), 1);
+        core.commitDatabase();
+
+        engine = open(dir, config);
+        assertCounts(engine, config.storageMode(), id -> id < BenchStorage.CHANNELS ? id + 2 : id + 1);
+    }
+
+    private static void assertCounts(StorageEngine<MutableEntry<SyntheticKey>, SyntheticKey> engine, StorageMode mode,
+                                     IntToLongFunction expected) {
+        for (int id = 0; id < KEYS; id++) {
+            assertEquals(expected.applyAsLong(id), engine.getCount(SCOPE, freqOf(id), new SyntheticKey(id)), mode + " key " + id);
+        }
+        for (int freq = 0; freq < BenchStorage.CHANNELS; freq++) {
+            assertEquals(typesIn(freq), engine.getTypeCount(SCOPE, freq));
+        }
+    }
+
+    /** How many of the first {@link #KEYS} keys land in channel {@code freq}. */
+    private static int typesIn(int freq) {
+        return KEYS / BenchStorage.CHANNELS + (freq < KEYS % BenchStorage.CHANNELS ? 1 : 0);
+    }
+
+    private Path tempDir() throws IOException {
+        Path dir = BenchStorage.tempDir("format-test");
+        dirs.add(dir);
+        return dir;
+    }
+
+    private static String segmentMagic(Path segment) throws IOException {
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(segment))) {
+            return in.readUTF();
+        }
+    }
+
+    /** Flips a byte of the first block of an EDS3 segment, which starts right after the header. */
+    private static void corruptFirstBlock(Path segment) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw")) {
+            file.seek(headerLength("EDS3"));
+            int b = file.read();
+            file.seek(headerLength("EDS3"));
+            file.write(b ^ 0x55);
+        }
+    }
+
+    /** Magic UTF, long seq, long timestamp. */
+    private static int headerLength(String magic) {
+        return 2 + magic.length() + 16;
+    }
+
+// ==== Legacy fixtures ====
+
+    /** {@code [EDB1 header] (UTF scope, int freq, int len, byte[len] key, long count)*} with key {@code id} at count id + 1. */
+    private static void writeBinFile(Path file, boolean header) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(file))) {
+            if (header) {
+                out.writeUTF("EDB1");
+                out.writeUTF("0.0.1");
+                out.writeInt(1);
+                out.writeLong(System.currentTimeMillis());
+            }
+            for (int id = 0; id < KEYS; id++) {
+                byte[] key = BenchStorage.bytesOf(id);
+                out.writeUTF(SCOPE);
+                out.writeInt(freqOf(id));
+                out.writeInt(key.length);
+                out.write(key);
+                out.writeLong(id + 1);
+            }
+        }
+    }
+
+    /** {@code "EDD1" UTF, (int id, int len, byte[len] bytes, long crc32)*}, with key {@code id} as ID id + 1. */
+    private static void writeDictionary(Path file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(file))) {
+            out.writeUTF("EDD1");
+            for (int id = 0; id < KEYS; id++) {
+                byte[] key = BenchStorage.bytesOf(id);
+                CRC32 crc = new CRC32();
+                crc.update(ByteBuffer.allocate(4).putInt(id + 1).array());
+                crc.update(key);
+                out.writeInt(id + 1);
+                out.writeInt(key.length);
+                out.write(key);
+                out.writeLong(crc.getValue());
+            }
+        }
+    }
+
+    /**
+     * Segment 1 in the EDS1 (key bytes) or EDS2 (dictionary IDs, see {@link #writeDictionary}) format, one block
+     * per channel with key {@code id} at count id + 1, and a manifest listing it:
+     * <pre>
+     * segment : magic UTF, long seq, long timestamp, blocks..., footer, long footerOffset, int FOOTER_MAGIC
+     * footer  : int n, n x (UTF scope, int freq, long offset, int length, int entries, long crc32)
+     * manifest: "EDM1" UTF, long nextSeq, long walFence, int n, n x long seq
+     * </pre>
+     */
+    private static void writeLegacySegment(Path dir, String magic) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeUTF(magic);
+        out.writeLong(1);
+        out.writeLong(System.currentTimeMillis());
+
+        ByteArrayOutputStream footer = new ByteArrayOutputStream();
+        DataOutputStream index = new DataOutputStream(footer);
+        index.writeInt(BenchStorage.CHANNELS);
+        for (int freq = 0; freq < BenchStorage.CHANNELS; freq++) {
+            ByteArrayOutputStream block = new ByteArrayOutputStream();
+            DataOutputStream entries = new DataOutputStream(block);
+            int n = 0;
+            for (int id = freq; id < KEYS; id += BenchStorage.CHANNELS, n++) {
+                if (magic.equals("EDS1")) {
+                    byte[] key = BenchStorage.bytesOf(id);
+                    entries.writeInt(key.length);
+                    entries.write(key);
+                } else {
+                    entries.writeInt(id + 1);
+                }
+                entries.writeLong(id + 1);
+            }
+            CRC32 crc = new CRC32();
+            crc.update(block.toByteArray());
+            index.writeUTF(SCOPE);
+            index.writeInt(freq);
+            index.writeLong(out.size());
+            index.writeInt(block.size());
+            index.writeInt(n);
+            index.writeLong(crc.getValue());
+            block.writeTo(out);
+        }
+        long footerOffset = out.size();
+        footer.writeTo(out);
+        out.writeLong(footerOffset);
+        out.writeInt(FOOTER_MAGIC);
+        Files.write(dir.resolve("enderdrives-00000001.seg"), bytes.toByteArray());
+
+        try (DataOutputStream manifest = new DataOutputStream(Files.newOutputStream(dir.resolve("enderdrives.manifest")))) {
+            manifest.writeUTF("EDM1");
+            manifest.writeLong(2);
+            manifest.writeLong(0);
+            manifest.writeInt(1);
+            manifest.writeLong(1);
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.sts15.enderdrives.benchmarks;
+
+import com.sts15.enderdrives.db.WalWriter;
+import com.sts15.enderdrives.db.WalWriter.FsyncPolicy;
+import com.sts15.enderdrives.db.WalWriter.OverflowPolicy;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * The WAL writer's failure path. Writes are made to fail by pointing the WAL path at {@code /dev/full}, where
+ * every write runs out of space, and to work again by replacing that link with a regular file.
+ */
+class WalWriterTest {
+
+    private static final Path DEV_FULL = Path.of("/dev/full");
+
+    private Path dir;
+    private Path wal;
+    private WalWriter writer;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        assumeTrue(Files.isWritable(DEV_FULL), "needs /dev/full");
+        dir = BenchStorage.tempDir("wal-test");
+        wal = dir.resolve("test.wal");
+        Files.createSymbolicLink(wal, DEV_FULL);
+        writer = new WalWriter("WalTest", wal, FsyncPolicy.PER_BATCH, 1000, 1024, OverflowPolicy.COALESCE);
+        writer.open();
+    }
+
+    @AfterEach
+    void cleanUp() throws IOException {
+        if (writer != null) writer.close();
+        if (dir != null) BenchStorage.deleteTree(dir);
+    }
+
+    @Test
+    void keepsFailedBatchUntilItCanBeWritten() throws Exception {
+        List<byte[]> records = new ArrayList<>();
+        long seq = 0;
+        for (int i = 0; i < 10; i++) {
+            records.add(record(i));
+            seq = writer.append(records.get(i));
+        }
+        assertFalse(writer.awaitDurable(seq, 300), "nothing is durable while writes fail");
+        awaitFailing(true);
+
+        // Queued while failing: must follow the failed batch, not overtake it.
+        for (int i = 10; i < 20; i++) {
+            records.add(record(i));
+            seq = writer.append(records.get(i));
+        }
+        Files.delete(wal);
+        assertTrue(writer.awaitDurable(seq, 5000), "retried once the file can be written");
+        assertFalse(writer.isFailing());
+        writer.close();
+        writer = null;
+        assertRecords(records, readFrames(wal));
+    }
+
+    @Test
+    void failedRotationKeepsRecordsInCurrentFile() throws Exception {
+        long seq = writer.append(record(1));
+        awaitFailing(true);
+        long ticket = writer.requestRotation(dir.resolve("test.wal.1"));
+        assertThrows(IOException.class, () -> writer.awaitRotation(ticket, 5000), "a rotation can't wait for a failing WAL");
+
+        Files.delete(wal);
+        assertTrue(writer.awaitDurable(seq, 5000));
+        assertFalse(Files.exists(dir.resolve("test.wal.1")));
+        writer.close();
+        writer = null;
+        assertRecords(List.of(record(1)), readFrames(wal));
+    }
+
+    private void awaitFailing(boolean failing) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (writer.isFailing() != failing && System.currentTimeMillis() < deadline) Thread.sleep(20);
+        assertEquals(failing, writer.isFailing());
+    }
+
+    private static byte[] record(int i) {
+        return ("record-" + i).getBytes();
+    }
+
+    /** Parses {@code [int len][record][long crc32]} frames, checking each CRC. */
+    private static List<byte[]> readFrames(Path file) throws IOException {
+        List<byte[]> frames = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(file))) {
+            while (true) {
+                int len;
+                try {
+                    len = in.readInt();
+                } catch (EOFException e) {
+                    return frames;
+                }
+                byte[] data = new byte[len];
+                in.readFully(data);
+                CRC32 crc = new CRC32();
+                crc.update(data);
+                assertEquals(crc.getValue(), in.readLong(), "CRC of frame " + frames.size());
+                frames.add(data);
+            }
+        }
+    }
+
+    private static void assertRecords(List<byte[]> expected, List<byte[]> actual) {
+        assertEquals(expected.size(), actual.size(), "each record written exactly once");
+        for (int i = 0; i < expected.size(); i++) assertArrayEquals(expected.get(i), actual.get(i), "record " + i);
+    }
+}
@@ -3,13 +3,16 @@ package com.sts15.enderdrives;
 import appeng.api.client.StorageCellModels;
 import appeng.api.storage.StorageCells;
 import appeng.api.storage.cells.CellState;
+import appeng.blockentity.storage.DriveBlockEntity;
 import com.sts15.enderdrives.client.ClientTapeCache;
 import com.sts15.enderdrives.commands.ModCommands;
 import com.sts15.enderdrives.config.serverConfig;
 import com.sts15.enderdrives.db.EnderDBManager;
 import com.sts15.enderdrives.db.EnderFluidDBManager;
+import com.sts15.enderdrives.db.StorageEngines;
 import com.sts15.enderdrives.db.TapeDBManager;
 import com.sts15.enderdrives.init.CreativeTabRegistry;
+import com.sts15.enderdrives.integration.FTBTeamsCompat;
 import com.sts15.enderdrives.inventory.EnderDiskInventory;
 import com.sts15.enderdrives.inventory.EnderFluidDiskInventory;
 import com.sts15.enderdrives.inventory.TapeDiskInventory;
@@ -21,10 +24,14 @@ import net.minecraft.client.renderer.item.ItemProperties;
 import net.minecraft.resources.ResourceLocation;
 import net.minecraft.server.level.ServerPlayer;
 import net.minecraft.world.item.Item;
+import net.minecraft.world.item.ItemStack;
+import net.minecraft.world.level.block.entity.BlockEntity;
+import net.minecraft.world.level.chunk.LevelChunk;
 import net.neoforged.api.distmarker.Dist;
 import net.neoforged.bus.api.IEventBus;
 import net.neoforged.bus.api.SubscribeEvent;
 import net.neoforged.fml.ModContainer;
+import net.neoforged.fml.ModList;
 import net.neoforged.fml.common.EventBusSubscriber;
 import net.neoforged.fml.common.Mod;
 import net.neoforged.fml.event.lifecycle.FMLClientSetupEvent;
@@ -33,6 +40,7 @@ import net.neoforged.neoforge.client.event.RegisterColorHandlersEvent;
 import net.neoforged.neoforge.common.NeoForge;
 import net.neoforged.neoforge.event.RegisterCommandsEvent;
 import net.neoforged.neoforge.event.entity.player.PlayerEvent;
+import net.neoforged.neoforge.event.level.ChunkEvent;
 import net.neoforged.neoforge.network.event.RegisterPayloadHandlersEvent;
 
 import java.util.Objects;
@@ -105,6 +113,33 @@ public class EnderDrives {
         if (serverConfig.ENDER_FLUID_DISK_256K_TOGGLE.get())     bitmask |= 1 << 11;
         if (serverConfig.ENDER_FLUID_DISK_CREATIVE_TOGGLE.get()) bitmask |= 1 << 12;
         NetworkHandler.sendToClient(player, new SyncDisabledDrivesPacket(bitmask));
+
+        // Warm up the player's private and team channels before their drives first ask for them.
+        StorageEngines.prefetchScope("player_" + player.getUUID());
+        if (ModList.get().isLoaded("ftbteams")) {
+            String teamId = FTBTeamsCompat.getTeamId(player);
+            if (teamId != null && !teamId.isEmpty()) StorageEngines.prefetchScope("team_" + teamId);
+        }
+    }
+
+    @SubscribeEvent
+    public void onChunkLoad(ChunkEvent.Load event) {
+        if (event.getLevel().isClientSide() || event.isNewChunk() || !(event.getChunk() instanceof LevelChunk chunk)) return;
+        for (BlockEntity be : chunk.getBlockEntities().values()) {
+            if (!(be instanceof DriveBlockEntity drive)) continue;
+            for (int slot = 0; slot < drive.getCellCount(); slot++) {
+                prefetchDisk(drive.getInternalInventory().getStackInSlot(slot));
+            }
+        }
+    }
+
+    /** Starts loading the channel of an ender disk in the background; other stacks are ignored. */
+    private static void prefetchDisk(ItemStack stack) {
+        if (stack.getItem() instanceof EnderDiskItem) {
+            EnderDBManager.prefetch(AbstractEnderDiskItem.getSafeScopePrefix(stack), AbstractEnderDiskItem.getFrequency(stack));
+        } else if (stack.getItem() instanceof EnderFluidDiskItem) {
+            EnderFluidDBManager.prefetch(AbstractEnderDiskItem.getSafeScopePrefix(stack), AbstractEnderDiskItem.getFrequency(stack));
+        }
     }
 
     @EventBusSubscriber(modid = MOD_ID, bus = EventBusSubscriber.Bus.MOD, value = Dist.CLIENT)
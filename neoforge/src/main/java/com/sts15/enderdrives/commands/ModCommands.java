@@ -12,8 +12,11 @@ import com.mojang.brigadier.arguments.StringArgumentType;
 import com.sts15.enderdrives.config.serverConfig;
 import com.sts15.enderdrives.db.AEKeyCacheEntry;
 import com.sts15.enderdrives.db.EnderDBManager;
+import com.sts15.enderdrives.db.EnderFluidDBManager;
+import com.sts15.enderdrives.db.KeyDictionary;
+import com.sts15.enderdrives.db.SerializedKeyCache;
+import com.sts15.enderdrives.db.StorageEngines;
 import com.sts15.enderdrives.db.TapeDBManager;
-import com.sts15.enderdrives.inventory.EnderDiskInventory;
 import com.sts15.enderdrives.items.AbstractEnderDiskItem;
 import net.minecraft.commands.CommandSourceStack;
 import net.minecraft.commands.Commands;
@@ -27,6 +30,7 @@ import net.minecraft.world.level.Level;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
 
 public class ModCommands {
 
@@ -117,10 +121,20 @@ public class ModCommands {
                                     CommandSourceStack source = ctx.getSource();
                                     source.sendSuccess(() -> Component.literal(
                                             "EnderDB Stats:\n" +
+                                                    " - Startup: " + StorageEngines.describeStartup() + "\n" +
                                                     " - DB Entries: " + EnderDBManager.getDatabaseSize() + "\n" +
                                                     " - Items Written: " + EnderDBManager.getTotalItemsWritten() + "\n" +
+                                                    " - WAL Queue: " + EnderDBManager.describeWalQueue() + "\n" +
+                                                    " - WAL Merge Buffer: " + EnderDBManager.describeMergeBuffer() + "\n" +
+                                                    " - Commit Scheduler: " + EnderDBManager.describeScheduler() + "\n" +
                                                     " - Commits: " + EnderDBManager.getTotalCommits() + "\n" +
-                                                    " - DB File Size: " + EnderDBManager.getDatabaseFileSizeBytes() + " bytes"
+                                                    " - DB File Size: " + EnderDBManager.getDatabaseFileSizeBytes() + " bytes in " + EnderDBManager.getSegmentCount() + " segments\n" +
+                                                    " - Item Channels: " + EnderDBManager.describeResidency() + "\n" +
+                                                    " - Fluid Channels: " + EnderFluidDBManager.describeResidency() + "\n" +
+                                                    " - Item Key Cache: " + SerializedKeyCache.ITEMS.describe() + "\n" +
+                                                    " - Fluid Key Cache: " + SerializedKeyCache.FLUIDS.describe() + "\n" +
+                                                    " - Key Dictionary: " + KeyDictionary.GLOBAL.size() + " keys\n" +
+                                                    " - Off-heap (" + KeyDictionary.GLOBAL.getMode() + "): " + (EnderDBManager.getOffHeapBytes() + EnderFluidDBManager.getOffHeapBytes()) + " bytes"
                                     ), false);
                                     return 1;
                                 })
@@ -184,7 +198,7 @@ public class ModCommands {
                                                             paper.set(DataComponents.CUSTOM_NAME, Component.literal(String.valueOf(i)));
 
                                                             AEItemKey key = AEItemKey.of(paper);
-                                                            serialized = EnderDiskInventory.serializeItemStackToBytes(key.toStack(1));
+                                                            serialized = SerializedKeyCache.ITEMS.get(key);
                                                             EnderDBManager.saveItem(scopePrefix, frequency, serialized, 1);
                                                         }
                                                         long insertEnd = System.currentTimeMillis();
@@ -264,7 +278,7 @@ public class ModCommands {
                                                         paper.set(DataComponents.CUSTOM_NAME, Component.literal(String.valueOf(i)));
 
                                                         AEItemKey key = AEItemKey.of(paper);
-                                                        byte[] serialized = EnderDiskInventory.serializeItemStackToBytes(key.toStack(1));
+                                                        byte[] serialized = SerializedKeyCache.ITEMS.get(key);
 
                                                         int hash = Arrays.hashCode(serialized);
                                                         if (!seenHashes.add(hash)) {
@@ -290,6 +304,91 @@ public class ModCommands {
                                                 })
                                         ))
                         )
+                        .then(Commands.literal("checkpointbench")
+                                .then(Commands.argument("frequency", IntegerArgumentType.integer(0, 4095))
+                                        .then(Commands.argument("amount", IntegerArgumentType.integer(1000, 1000000))
+                                                .executes(ctx -> {
+                                                    int frequency = IntegerArgumentType.getInteger(ctx, "frequency");
+                                                    if (!validateFrequency(frequency, ctx.getSource())) return 0;
+                                                    int amount = IntegerArgumentType.getInteger(ctx, "amount");
+                                                    CommandSourceStack source = ctx.getSource();
+                                                    ServerPlayer player = source.getPlayerOrException();
+                                                    String scopePrefix = "player_" + player.getUUID();
+
+                                                    if (EnderDBManager.getTypeCount(scopePrefix, frequency) > 0) {
+                                                        source.sendFailure(Component.literal("Frequency " + frequency + " is not empty. Checkpointbench requires a completely empty frequency."));
+                                                        return 0;
+                                                    }
+
+                                                    // Prefill so every checkpoint has a full channel to write.
+                                                    AEItemKey[] keys = new AEItemKey[amount];
+                                                    for (int i = 0; i < amount; i++) {
+                                                        ItemStack paper = new ItemStack(Items.PAPER, 1);
+                                                        paper.set(DataComponents.CUSTOM_NAME, Component.literal(String.valueOf(i + 1)));
+                                                        keys[i] = AEItemKey.of(paper);
+                                                        EnderDBManager.saveItem(scopePrefix, frequency, keys[i], 1);
+                                                    }
+                                                    EnderDBManager.commitDatabase();
+
+                                                    long[] idle = timeSaves(scopePrefix, frequency, keys);
+
+                                                    int[] checkpoints = {0};
+                                                    Thread checkpointer = new Thread(() -> {
+                                                        while (!Thread.currentThread().isInterrupted()) {
+                                                            EnderDBManager.commitDatabase();
+                                                            checkpoints[0]++;
+                                                        }
+                                                    }, "EnderDB-CheckpointBench");
+                                                    checkpointer.setDaemon(true);
+                                                    checkpointer.start();
+                                                    long[] busy = timeSaves(scopePrefix, frequency, keys);
+                                                    checkpointer.interrupt();
+                                                    try {
+                                                        checkpointer.join(10_000);
+                                                    } catch (InterruptedException ignored) {}
+
+                                                    EnderDBManager.clearFrequency(scopePrefix, frequency);
+
+                                                    source.sendSuccess(() -> Component.literal("§bsaveItem latency over " + amount + " types (µs):"), false);
+                                                    source.sendSuccess(() -> Component.literal("§7Idle:          " + describeLatency(idle)), false);
+                                                    source.sendSuccess(() -> Component.literal("§7Checkpointing: " + describeLatency(busy)
+                                                            + " §8(" + checkpoints[0] + " checkpoints)"), false);
+                                                    return 1;
+                                                })
+                                        ))
+                        )
+                        .then(Commands.literal("contentionbench")
+                                .then(Commands.argument("threads", IntegerArgumentType.integer(1, 64))
+                                        .then(Commands.argument("amount", IntegerArgumentType.integer(1000, 1000000))
+                                                .executes(ctx -> {
+                                                    int maxThreads = IntegerArgumentType.getInteger(ctx, "threads");
+                                                    int amount = IntegerArgumentType.getInteger(ctx, "amount");
+                                                    CommandSourceStack source = ctx.getSource();
+                                                    ServerPlayer player = source.getPlayerOrException();
+                                                    // A throwaway scope, one channel (frequency) per thread.
+                                                    String scopePrefix = "bench_" + player.getUUID();
+
+                                                    AEItemKey[] keys = new AEItemKey[64];
+                                                    for (int i = 0; i < keys.length; i++) {
+                                                        ItemStack paper = new ItemStack(Items.PAPER, 1);
+                                                        paper.set(DataComponents.CUSTOM_NAME, Component.literal(String.valueOf(i + 1)));
+                                                        keys[i] = AEItemKey.of(paper);
+                                                    }
+
+                                                    source.sendSuccess(() -> Component.literal("§bsaveItem throughput, " + amount + " saves per thread, one channel per thread:"), false);
+                                                    double base = 0;
+                                                    for (int threads = 1; threads <= maxThreads; threads = threads == maxThreads ? threads + 1 : Math.min(threads * 2, maxThreads)) {
+                                                        double opsPerSec = timeConcurrentSaves(scopePrefix, threads, amount, keys);
+                                                        if (threads == 1) base = opsPerSec;
+                                                        int finalThreads = threads;
+                                                        double speedup = opsPerSec / base;
+                                                        source.sendSuccess(() -> Component.literal(String.format("§7%2d threads: %,.0f saves/s §8(x%.2f)", finalThreads, opsPerSec, speedup)), false);
+                                                    }
+                                                    for (int f = 0; f < maxThreads; f++) EnderDBManager.clearFrequency(scopePrefix, f);
+                                                    return 1;
+                                                })
+                                        ))
+                        )
                         .then(Commands.literal("dumpcell")
                                 .then(Commands.argument("type", StringArgumentType.word())
                                         .suggests((ctx, builder) -> {
@@ -775,6 +874,64 @@ public class ModCommands {
         );
     }
 
+    /**
+     * Times one saveItem per key, in nanoseconds, in random order.
+     */
+    private static long[] timeSaves(String scopePrefix, int frequency, AEItemKey[] keys) {
+        Random random = new Random(frequency);
+        long[] nanos = new long[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            AEItemKey key = keys[random.nextInt(keys.length)];
+            long start = System.nanoTime();
+            EnderDBManager.saveItem(scopePrefix, frequency, key, 1);
+            nanos[i] = System.nanoTime() - start;
+        }
+        return nanos;
+    }
+
+    /**
+     * Runs {@code threads} writers, each saving {@code amount} times into its own channel, and returns saves per second overall.
+     */
+    private static double timeConcurrentSaves(String scopePrefix, int threads, int amount, AEItemKey[] keys) {
+        List<Thread> workers = new ArrayList<>();
+        CountDownLatch start = new CountDownLatch(1);
+        for (int t = 0; t < threads; t++) {
+            int frequency = t;
+            Thread worker = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < amount; i++) {
+                    EnderDBManager.saveItem(scopePrefix, frequency, keys[i % keys.length], 1);
+                }
+            }, "EnderDB-ContentionBench-" + t);
+            worker.setDaemon(true);
+            worker.start();
+            workers.add(worker);
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread worker : workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException ignored) {}
+        }
+        long elapsed = System.nanoTime() - begin;
+        return (double) threads * amount / (elapsed / 1_000_000_000.0);
+    }
+
+    private static String describeLatency(long[] nanos) {
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        return String.format("p50=%.1f p99=%.1f p99.9=%.1f max=%.1f",
+                sorted[(int) (sorted.length * 0.50)] / 1000.0,
+                sorted[(int) (sorted.length * 0.99)] / 1000.0,
+                sorted[(int) (sorted.length * 0.999)] / 1000.0,
+                sorted[sorted.length - 1] / 1000.0);
+    }
+
     private static boolean validateFrequency(int freq, CommandSourceStack source) {
         int min = serverConfig.FREQ_MIN.get();
         int max = serverConfig.FREQ_MAX.get();
@@ -1,5 +1,7 @@
 package com.sts15.enderdrives.config;
 
+import com.sts15.enderdrives.db.StorageMode;
+import com.sts15.enderdrives.db.WalWriter;
 import net.neoforged.fml.ModContainer;
 import net.neoforged.fml.config.ModConfig;
 import net.neoforged.neoforge.common.ModConfigSpec;
@@ -73,6 +75,18 @@ public class serverConfig {
     public static ModConfigSpec.IntValue END_DB_MIN_DB_COMMIT_INTERVAL_MS;
     public static ModConfigSpec.IntValue END_DB_MAX_DB_COMMIT_INTERVAL_MS;
     public static ModConfigSpec.BooleanValue END_DB_DEBUG_LOG;
+    public static ModConfigSpec.IntValue END_DB_KEY_CACHE_SIZE;
+    public static ModConfigSpec.EnumValue<WalWriter.FsyncPolicy> END_DB_WAL_FSYNC_POLICY;
+    public static ModConfigSpec.IntValue END_DB_WAL_FSYNC_INTERVAL_MS;
+    public static ModConfigSpec.IntValue END_DB_WAL_MERGE_WINDOW_MS;
+    public static ModConfigSpec.IntValue END_DB_WAL_QUEUE_CAPACITY;
+    public static ModConfigSpec.EnumValue<WalWriter.OverflowPolicy> END_DB_WAL_OVERFLOW_POLICY;
+    public static ModConfigSpec.IntValue END_DB_MAX_SEGMENTS;
+    public static ModConfigSpec.IntValue END_DB_CHANNEL_EVICT_TIMEOUT_MS;
+    public static ModConfigSpec.IntValue END_DB_CHANNEL_RAM_BUDGET_MB;
+    public static ModConfigSpec.BooleanValue END_DB_ASYNC_STARTUP;
+    public static ModConfigSpec.BooleanValue END_DB_LAZY_OWNER_SCOPES;
+    public static ModConfigSpec.EnumValue<StorageMode> END_DB_STORAGE_MODE;
 
     // === Tape Disk Configs ===
     public static final String CATEGORY_TAPEDISK = "tape_disk";
@@ -220,23 +234,59 @@ public class serverConfig {
     private static void enderDBConfig() {
         SERVER_BUILDER.comment(CATEGORY_DESC_ENDERDB).push(CATEGORY_ENDERDB);
         END_DB_MERGE_BUFFER_THRESHOLD = SERVER_BUILDER
-                .comment("Number of pending WAL entries before merging")
+                .comment("Distinct keys the WAL merge buffer holds before it is flushed early. Repeated deltas to a key are merged into one WAL record per flush window")
                 .defineInRange("merge_buffer_threshold", 100, 1, 10_000);
         END_DB_MIN_COMMIT_INTERVAL_MS = SERVER_BUILDER
-                .comment("Minimum time (ms) between WAL commits")
+                .comment("Minimum time (ms) between WAL commits; used while writes are heavy. Never longer than wal_merge_window_ms")
                 .defineInRange("min_commit_interval_ms", 2500, 100, 60000);
         END_DB_MAX_COMMIT_INTERVAL_MS = SERVER_BUILDER
-                .comment("Maximum time (ms) between WAL commits")
+                .comment("Maximum time (ms) between WAL commits; used while the store is quiet. Never longer than wal_merge_window_ms")
                 .defineInRange("max_commit_interval_ms", 5000, 500, 60000);
         END_DB_MIN_DB_COMMIT_INTERVAL_MS = SERVER_BUILDER
-                .comment("Minimum time (ms) between DB flush commits")
+                .comment("Minimum time (ms) between DB flush commits; used when the WAL grows large or the server is idle")
                 .defineInRange("min_db_commit_interval_ms", 5000, 500, 60000);
         END_DB_MAX_DB_COMMIT_INTERVAL_MS = SERVER_BUILDER
-                .comment("Maximum time (ms) between DB flush commits")
+                .comment("Maximum time (ms) between DB flush commits; used while the WAL is small or the server is lagging")
                 .defineInRange("max_db_commit_interval_ms", 60000, 500, 60000);
         END_DB_DEBUG_LOG = SERVER_BUILDER
                 .comment("Enable EXTREMELY verbose debug logging for EnderDB")
                 .define("debug_log", false);
+        END_DB_KEY_CACHE_SIZE = SERVER_BUILDER
+                .comment("Max number of item/fluid keys whose serialized form is kept in memory (per key type); in OFF_HEAP storage mode also roughly how many AE keys stay on the heap")
+                .defineInRange("key_cache_size", 4096, 64, 1_000_000);
+        END_DB_WAL_FSYNC_POLICY = SERVER_BUILDER
+                .comment("When WAL writes are forced to disk: NONE (OS decides), PER_BATCH (after every group commit), INTERVAL (at most every wal_fsync_interval_ms)")
+                .defineEnum("wal_fsync_policy", WalWriter.FsyncPolicy.PER_BATCH);
+        END_DB_WAL_FSYNC_INTERVAL_MS = SERVER_BUILDER
+                .comment("fsync interval (ms) for the INTERVAL WAL fsync policy")
+                .defineInRange("wal_fsync_interval_ms", 1000, 10, 60000);
+        END_DB_WAL_MERGE_WINDOW_MS = SERVER_BUILDER
+                .comment("Longest time (ms) repeated deltas to a key are merged in RAM before they are written to the WAL. Merged deltas are lost if the server crashes before they are written, so this is how much acknowledged work a crash can undo; lag never stretches it. With the PER_BATCH fsync policy deltas only merge while the previous WAL batch is being synced, so they reach the disk no later than without merging, and the window doesn't apply. 0 turns merging off")
+                .defineInRange("wal_merge_window_ms", 200, 0, 1000);
+        END_DB_WAL_QUEUE_CAPACITY = SERVER_BUILDER
+                .comment("Max WAL records queued for the writer thread before the overflow policy applies")
+                .defineInRange("wal_queue_capacity", 65536, 1024, 4_194_304);
+        END_DB_WAL_OVERFLOW_POLICY = SERVER_BUILDER
+                .comment("When the WAL queue is full: BLOCK (wait for the writer, slowing down saves) or COALESCE (keep merging deltas in memory until there is room)")
+                .defineEnum("wal_overflow_policy", WalWriter.OverflowPolicy.COALESCE);
+        END_DB_MAX_SEGMENTS = SERVER_BUILDER
+                .comment("Number of checkpoint segment files kept before they are compacted into one")
+                .defineInRange("max_segments", 16, 2, 1024);
+        END_DB_CHANNEL_EVICT_TIMEOUT_MS = SERVER_BUILDER
+                .comment("Milliseconds after last access before a channel (scope + frequency) is dropped from RAM; it is loaded back from its segment on next access, which can stall the server tick if nothing prefetched it. 0 (default) keeps every channel resident")
+                .defineInRange("channel_eviction_timeout_ms", 0, 0, 86_400_000);
+        END_DB_CHANNEL_RAM_BUDGET_MB = SERVER_BUILDER
+                .comment("Approximate RAM (MB) the resident channels of all ender disks may use before the least recently used ones are dropped early. 0 means no budget")
+                .defineInRange("channel_ram_budget_mb", 0, 0, 1_048_576);
+        END_DB_ASYNC_STARTUP = SERVER_BUILDER
+                .comment("Load the ender DB in the background so the server starts right away. Disks report as loading (and refuse transfers) until the DB is readable; channels then become live as they load, or on first use")
+                .define("async_startup", false);
+        END_DB_LAZY_OWNER_SCOPES = SERVER_BUILDER
+                .comment("Leave private (player_) and team (team_) channels on disk at startup. They are loaded in the background when their owner logs in or a drive holding them is chunk-loaded, so RAM follows the players that are active")
+                .define("lazy_owner_scopes", false);
+        END_DB_STORAGE_MODE = SERVER_BUILDER
+                .comment("Where stored keys and counts live: HEAP, or OFF_HEAP (direct memory, keeps huge databases out of the Java heap). Takes effect on restart")
+                .defineEnum("storage_mode", StorageMode.HEAP);
         SERVER_BUILDER.pop();
     }
 
@@ -1,47 +1,92 @@
 package com.sts15.enderdrives.db;
 
 import java.util.Arrays;
-import java.util.Objects;
 
-public record AEKey(String scope, int freq, byte[] itemBytes) implements Comparable<AEKey> {
+/**
+ * DB key: scope, frequency and serialized item/fluid bytes.
+ * <p>
+ * Scope and bytes are interned through {@link KeyDictionary#GLOBAL}, so equality, hashing and ordering
+ * are done on (scopeId, freq, itemId) ints. Which channel a key belongs to is its (scope, freq) pair; the
+ * entries of a channel are found through its {@link ChannelRegistry} entry, not by a key range.
+ */
+public final class AEKey implements Comparable<AEKey> {
+
+    private final String scope;
+    private final int freq;
+    private final int scopeId;
+    private final int itemId;
+
+    /**
+     * Interns {@code itemBytes}, assigning a dictionary ID if they are new. For lookups of possibly unknown
+     * bytes use {@link #find} instead, so probes don't grow the dictionary.
+     */
+    public AEKey(String scope, int freq, byte[] itemBytes) {
+        this(scope, freq, KeyDictionary.GLOBAL.intern(itemBytes));
+    }
+
+    /**
+     * Key for an already interned item ID (e.g. read from a segment).
+     */
+    public AEKey(String scope, int freq, int itemId) {
+        this.scope = scope;
+        this.freq = freq;
+        this.itemId = itemId;
+        this.scopeId = KeyDictionary.GLOBAL.scopeId(scope);
+    }
+
+    /**
+     * @return The key for {@code itemBytes}, or null if those bytes were never interned (nothing can be stored under them).
+     */
+    public static AEKey find(String scope, int freq, byte[] itemBytes) {
+        int id = KeyDictionary.GLOBAL.find(itemBytes);
+        return id < 0 ? null : new AEKey(scope, freq, id);
+    }
+
+    public String scope() {
+        return scope;
+    }
+
+    public int freq() {
+        return freq;
+    }
+
+    /**
+     * The canonical serialized bytes, looked up in the dictionary. Shared between keys in heap mode and a
+     * copy in off-heap mode; never modify them.
+     */
+    public byte[] itemBytes() {
+        return KeyDictionary.GLOBAL.bytes(itemId);
+    }
+
+    public int itemId() {
+        return itemId;
+    }
 
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
-        if (!(o instanceof AEKey)) return false;
-        AEKey aeKey = (AEKey) o;
-        return freq == aeKey.freq &&
-                scope.equals(aeKey.scope) &&
-                Arrays.equals(itemBytes, aeKey.itemBytes);
+        if (!(o instanceof AEKey other)) return false;
+        return itemId == other.itemId && freq == other.freq && scopeId == other.scopeId;
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(scope, freq, Arrays.hashCode(itemBytes));
+        return (scopeId * 31 + freq) * 0x9E3779B1 + itemId;
     }
 
     @Override
     public int compareTo(AEKey o) {
-        int scopeCmp = this.scope.compareTo(o.scope);
+        int scopeCmp = Integer.compare(this.scopeId, o.scopeId);
         if (scopeCmp != 0) return scopeCmp;
 
         int freqCmp = Integer.compare(this.freq, o.freq);
         if (freqCmp != 0) return freqCmp;
 
-        return compareByteArrays(this.itemBytes, o.itemBytes);
-    }
-
-    private static int compareByteArrays(byte[] a, byte[] b) {
-        int len = Math.min(a.length, b.length);
-        for (int i = 0; i < len; i++) {
-            int cmp = Byte.compare(a[i], b[i]);
-            if (cmp != 0) return cmp;
-        }
-        return Integer.compare(a.length, b.length);
+        return Integer.compare(this.itemId, o.itemId);
     }
 
     @Override
     public String toString() {
-        return scope + "[" + freq + "]~" + Arrays.toString(itemBytes);
+        return scope + "[" + freq + "]~#" + itemId + Arrays.toString(itemBytes());
     }
 }
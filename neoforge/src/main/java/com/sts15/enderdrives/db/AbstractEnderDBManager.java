@@ -1,53 +1,148 @@
 package com.sts15.enderdrives.db;
 
 import com.sts15.enderdrives.Constants;
-import com.sts15.enderdrives.config.serverConfig;
 
-import java.io.DataOutputStream;
-import java.io.IOException;
+import java.io.*;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.function.Consumer;
 import java.util.zip.CRC32;
 
 public abstract class AbstractEnderDBManager {
 
-    private static final BlockingQueue<byte[]> walQueue = new LinkedBlockingQueue<>();
-    private static final boolean DEBUG_LOG = serverConfig.END_DB_DEBUG_LOG.get();
+    private static volatile boolean debugLog = false;
     private static String enderDBManager;
-    private static DataOutputStream walWriter;
 
-    public AbstractEnderDBManager(String enderDBManager, DataOutputStream walWriter) {
+    public AbstractEnderDBManager(String enderDBManager) {
         AbstractEnderDBManager.enderDBManager = enderDBManager;
-        AbstractEnderDBManager.walWriter = walWriter;
     }
 
+    /**
+     * WAL records are written by the shared {@link WalWriter} as soon as they are queued, so there is
+     * nothing left to push from here. Kept for existing callers; use {@link StorageEngines#flushWALQueue}
+     * to wait for durability.
+     */
     public static void flushWALQueue() {
-        if (walQueue.isEmpty()) return;
-        try {
-            log("[FlushWALQueue] Flushing WAL queue with {} entries on shutdown", walQueue.size());
-            List<byte[]> batch = new ArrayList<>();
-            walQueue.drainTo(batch);
-            for (byte[] rec : batch) {
-                walWriter.writeInt(rec.length);
-                walWriter.write(rec);
-                walWriter.writeLong(checksum(rec));
-            }
-            walWriter.flush();
-        } catch (IOException e) {
-            Constants.LOG.error("Error flushing WAL queue during shutdown", e);
-        }
+    }
+
+    /** Set from the {@link StorageConfig} a {@link StorageCore} is created with. */
+    static void setDebugLog(boolean enabled) {
+        debugLog = enabled;
     }
 
     /**
-     * Logs debug messages to console if DEBUG_LOG is enabled.
+     * Logs debug messages to console if debug logging is enabled.
      *
      * @param format The message format string.
      * @param args   Format arguments.
      */
     static void log(String format, Object... args) {
-        if (DEBUG_LOG) Constants.LOG.info("[" + enderDBManager + "] " + format, args);
+        if (debugLog) Constants.LOG.info("[" + enderDBManager + "] " + format, args);
+    }
+
+// ==== Startup ====
+
+    /**
+     * A pool for loading and replay at startup, one worker per core. Shut it down once startup is done.
+     */
+    static ForkJoinPool newStartupPool() {
+        return new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * The worker pool a {@link StorageCore} keeps while started, of daemon threads named after it. Shut it
+     * down when the core stops, so reloading worlds doesn't pile up idle pools.
+     */
+    static ForkJoinPool newSharedPool() {
+        return new ForkJoinPool(Math.min(4, Runtime.getRuntime().availableProcessors()), pool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName("EnderDB-Worker-" + thread.getPoolIndex());
+            thread.setDaemon(true);
+            return thread;
+        }, null, false);
+    }
+
+    /**
+     * Replays WAL files, oldest first, partitioned by channel. The files are read sequentially, then each
+     * channel's records are applied in WAL order by a single task while different channels run in
+     * parallel on {@code pool}. Every key belongs to exactly one channel, so per-key order is kept.
+     *
+     * @param apply Applies one record. Called concurrently for different channels, never for the same one.
+     * @return The number of records applied.
+     */
+    static int replayWALsPartitioned(List<File> wals, Consumer<byte[]> apply, ForkJoinPool pool) throws IOException {
+        Map<ChannelKey, List<byte[]>> byChannel = new LinkedHashMap<>();
+        int[] records = {0};
+        for (File walFile : wals) {
+            readWALRecords(walFile, data -> {
+                byChannel.computeIfAbsent(channelOf(data, 0), k -> new ArrayList<>()).add(data);
+                records[0]++;
+            });
+        }
+        log("Replaying {} WAL records across {} channels", records[0], byChannel.size());
+
+        List<Runnable> tasks = new ArrayList<>();
+        for (List<byte[]> channel : byChannel.values()) tasks.add(() -> channel.forEach(apply));
+        runPartitioned(tasks, pool);
+        return records[0];
+    }
+
+    /** Receives WAL records; see {@link #readWALRecords}. */
+    interface RecordSink {
+        void accept(byte[] record) throws IOException;
+    }
+
+    /**
+     * Reads every record of a WAL file whose checksum matches, in order. Stops at the end of the file or at
+     * the first unreadable record (e.g. a torn tail).
+     */
+    static void readWALRecords(File walFile, RecordSink sink) {
+        try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(walFile)))) {
+            while (true) {
+                try {
+                    int length = dis.readInt();
+                    byte[] data = new byte[length];
+                    dis.readFully(data);
+                    long storedChecksum = dis.readLong();
+                    if (checksum(data) != storedChecksum) {
+                        log("Checksum mismatch for record in {}", walFile.getName());
+                        continue;
+                    }
+                    sink.accept(data);
+                } catch (EOFException eof) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Runs replay tasks in parallel on {@code pool} and waits for all of them. Each task must own its
+     * channels exclusively.
+     */
+    static void runPartitioned(List<Runnable> tasks, ForkJoinPool pool) throws IOException {
+        try {
+            pool.submit(() -> tasks.parallelStream().forEach(Runnable::run)).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted replaying WAL", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to replay WAL", e.getCause());
+        }
+    }
+
+    /** Reads the channel header (UTF scope, int freq) a WAL record carries at {@code offset}. */
+    static ChannelKey channelOf(byte[] record, int offset) throws IOException {
+        try (DataInputStream dis = new DataInputStream(new ByteArrayInputStream(record, offset, record.length - offset))) {
+            return new ChannelKey(dis.readUTF(), dis.readInt());
+        }
     }
 
 // ==== Internal DB Tools ====
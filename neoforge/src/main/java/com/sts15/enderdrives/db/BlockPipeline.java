@@ -0,0 +1,259 @@
+package com.sts15.enderdrives.db;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Encodes the blocks of a segment on several threads while a single writer puts them in the file, in order.
+ * <p>
+ * Workers claim blocks in index order and encode each into fixed-size buffers from a small pool; the writer
+ * takes the buffers of the block it is on as they fill and returns them to the pool. So memory stays at
+ * {@code buffers x BUFFER_BYTES} however large the segment, and a large block streams through rather than
+ * being held whole. The last free buffer is kept for the block the writer is on, and that block is always
+ * claimed (blocks are claimed in order), so workers waiting for buffers never starve it. If no worker has
+ * claimed the next block yet, the writer encodes it straight into the file itself.
+ *
+ * @param <R> What encoding a block yields besides its bytes, e.g. its entry count.
+ */
+final class BlockPipeline<R> implements AutoCloseable {
+
+    static final int BUFFER_BYTES = 256 * 1024;
+    private static final int BUFFERS_PER_WORKER = 2;
+
+    @FunctionalInterface
+    interface Encoder<R> {
+        R encode(int block, OutputStream out) throws IOException;
+    }
+
+    private static final class Buffer {
+        final byte[] data = new byte[BUFFER_BYTES];
+        int length;
+    }
+
+    /** Encoded buffers of one block not yet written, and how encoding ended. */
+    private static final class Slot<R> {
+        final ArrayDeque<Buffer> filled = new ArrayDeque<>();
+        boolean done;
+        R result;
+        Throwable error;
+    }
+
+    private final Encoder<R> encoder;
+    private final int blocks;
+    private final Slot<R>[] slots;
+    private final AtomicInteger nextBlock = new AtomicInteger();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final ArrayDeque<Buffer> free = new ArrayDeque<>();
+    private final int maxBuffers;
+    private int allocated;
+    private int head;
+    private int running;
+    private boolean closed;
+
+    /**
+     * Starts up to {@code workers} encoders on {@code pool}. With none (or no pool) the writer encodes every
+     * block itself, as a plain sequential write would.
+     */
+    BlockPipeline(int blocks, ForkJoinPool pool, int workers, Encoder<R> encoder) {
+        this.encoder = encoder;
+        this.blocks = blocks;
+        this.slots = newSlots(blocks);
+        for (int i = 0; i < blocks; i++) slots[i] = new Slot<>();
+        int n = pool == null ? 0 : Math.min(workers, blocks - 1);
+        this.maxBuffers = Math.max(1, n * BUFFERS_PER_WORKER);
+        this.running = Math.max(0, n);
+        for (int i = 0; i < n; i++) pool.execute(this::work);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <R> Slot<R>[] newSlots(int n) {
+        return (Slot<R>[]) new Slot<?>[n];
+    }
+
+    /**
+     * Writes block {@code block} to {@code out}. Blocks must be transferred in order, each exactly once.
+     *
+     * @return What the encoder returned for it.
+     * @throws IOException If writing, or encoding the block, failed.
+     */
+    R transfer(int block, OutputStream out) throws IOException {
+        lock.lock();
+        try {
+            head = block;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (nextBlock.compareAndSet(block, block + 1)) return encoder.encode(block, out);
+
+        Slot<R> slot = slots[block];
+        while (true) {
+            Buffer buffer;
+            lock.lock();
+            try {
+                while (slot.filled.isEmpty() && !slot.done) await();
+                buffer = slot.filled.poll();
+                if (buffer == null) {
+                    slots[block] = null;
+                    if (slot.error != null) throw new IOException("Encoding block " + block + " failed", slot.error);
+                    return slot.result;
+                }
+            } finally {
+                lock.unlock();
+            }
+            out.write(buffer.data, 0, buffer.length);
+            release(buffer);
+        }
+    }
+
+    /** Stops the workers and waits for them, whether or not every block was transferred. */
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            closed = true;
+            changed.signalAll();
+            while (running > 0) await();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void work() {
+        try {
+            int block;
+            while ((block = nextBlock.getAndIncrement()) < blocks) {
+                if (isClosed()) return;
+                Slot<R> slot = slots[block];
+                Output out = new Output(block, slot);
+                R result = null;
+                Throwable error = null;
+                try {
+                    result = encoder.encode(block, out);
+                    out.flushBuffer();
+                } catch (Throwable t) {
+                    error = t;
+                }
+                lock.lock();
+                try {
+                    slot.result = result;
+                    slot.error = error;
+                    slot.done = true;
+                    changed.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+                if (error != null) return;
+            }
+        } finally {
+            lock.lock();
+            try {
+                running--;
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private boolean isClosed() {
+        lock.lock();
+        try {
+            return closed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Takes a buffer for {@code block}, leaving the last one to the block being written. */
+    private Buffer acquire(int block) throws IOException {
+        lock.lock();
+        try {
+            while (true) {
+                if (closed) throw new IOException("Segment write aborted");
+                int available = free.size() + maxBuffers - allocated;
+                if (available > (block == head ? 0 : 1)) break;
+                await();
+            }
+            if (!free.isEmpty()) return free.poll();
+            allocated++;
+        } finally {
+            lock.unlock();
+        }
+        return new Buffer();
+    }
+
+    private void release(Buffer buffer) {
+        buffer.length = 0;
+        lock.lock();
+        try {
+            free.push(buffer);
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void await() throws InterruptedIOException {
+        try {
+            changed.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while writing a segment");
+        }
+    }
+
+    /** Fills pooled buffers for one block and hands each to the writer when full. */
+    private final class Output extends OutputStream {
+        private final int block;
+        private final Slot<R> slot;
+        private Buffer buffer;
+
+        Output(int block, Slot<R> slot) {
+            this.block = block;
+            this.slot = slot;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (buffer == null || buffer.length == BUFFER_BYTES) next();
+            buffer.data[buffer.length++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (buffer == null || buffer.length == BUFFER_BYTES) next();
+                int n = Math.min(len, BUFFER_BYTES - buffer.length);
+                System.arraycopy(b, off, buffer.data, buffer.length, n);
+                buffer.length += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        private void next() throws IOException {
+            flushBuffer();
+            buffer = acquire(block);
+        }
+
+        void flushBuffer() {
+            if (buffer == null) return;
+            lock.lock();
+            try {
+                slot.filled.add(buffer);
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            buffer = null;
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package com.sts15.enderdrives.db;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * One channel (scope + frequency) of a DB manager: its entries, exact aggregates, the index from the
+ * semantic AE2 key to the serialized {@link AEKey}, and its checkpoint state.
+ * <p>
+ * Channels are independent, so lookups are a pair of hash probes and never slowed down by other
+ * channels, and checkpoints only touch the channels that are dirty.
+ * <p>
+ * Off-heap channels keep no index: the DB key of an AE2 key is derived from its canonical bytes, which
+ * requires the owning manager to keep every entry under canonical bytes (see {@link #indexedByBytes}).
+ * <p>
+ * {@link #clear} swaps in fresh storage rather than emptying the current one, so it is O(1) however many
+ * entries the channel holds; readers still on the old storage see the channel as it was before.
+ *
+ * @param <V> The stored value (the manager's StoredEntry).
+ * @param <K> The AE2 key type (e.g. AEItemKey).
+ */
+public class Channel<V, K> {
+
+    private final ChannelKey key;
+    private final Supplier<Map<AEKey, V>> storage;
+    private volatile Map<AEKey, V> entries;
+    /** Canonical serialized bytes of an AE2 key; null when the channel keeps a heap index instead. */
+    private final Function<K, byte[]> keyBytes;
+    private volatile ConcurrentHashMap<K, AEKey> index = new ConcurrentHashMap<>();
+    private final AtomicInteger types = new AtomicInteger();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicBoolean dirty = new AtomicBoolean();
+    private volatile boolean resolved = true;
+    /** Last keyed access; coarse, so hot channels don't write it on every lookup. */
+    private volatile long lastAccess = System.currentTimeMillis();
+    private final Object lock = new Object();
+
+    /** A heap channel. */
+    public Channel(ChannelKey key) {
+        this(key, ConcurrentHashMap::new, null);
+    }
+
+    /**
+     * @param storage  Creates empty entry maps, e.g. {@link ConcurrentHashMap}s or {@link OffHeapEntryMap}s.
+     * @param keyBytes If non-null, AE2 keys are looked up by their canonical bytes instead of a heap index.
+     */
+    public Channel(ChannelKey key, Supplier<Map<AEKey, V>> storage, Function<K, byte[]> keyBytes) {
+        this.key = key;
+        this.storage = storage;
+        this.entries = storage.get();
+        this.keyBytes = keyBytes;
+    }
+
+    public ChannelKey key() { return key; }
+    public String scope() { return key.scope(); }
+    public int freq() { return key.freq(); }
+
+    /** The live entries. Mutate only through the owning manager, so aggregates and index stay in step. */
+    public Map<AEKey, V> entries() {
+        return entries;
+    }
+
+    public V get(AEKey dbKey) {
+        return entries.get(dbKey);
+    }
+
+    public boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    /**
+     * Whether {@link #get} returns the stored value objects themselves, so they can be updated in place.
+     * Off-heap tables hand out copies and must be written back with {@code put}.
+     */
+    public boolean updatesInPlace() {
+        return !(entries instanceof OffHeapEntryMap);
+    }
+
+// ==== Aggregates ====
+
+    /**
+     * Records that a key went from {@code oldCount} to {@code newCount}. Counts of zero or less mean "not stored".
+     */
+    public void onCountChanged(long oldCount, long newCount) {
+        long before = Math.max(0L, oldCount);
+        long after = Math.max(0L, newCount);
+        if (before == after) return;
+        if (before == 0) types.incrementAndGet();
+        else if (after == 0) types.decrementAndGet();
+        total.addAndGet(after - before);
+    }
+
+    public int getTypeCount() {
+        return Math.max(0, types.get());
+    }
+
+    public long getTotalCount() {
+        return Math.max(0L, total.get());
+    }
+
+// ==== AE2 key index ====
+
+    /**
+     * Whether AE2 keys are looked up by their canonical bytes rather than a heap index. The manager must
+     * then fold every entry stored under other bytes into its {@link #canonicalKey}, or it can't be found.
+     */
+    public boolean indexedByBytes() {
+        return keyBytes != null;
+    }
+
+    /** @return The DB key under the canonical bytes of {@code aeKey}, interning them; null if it can't be serialized. */
+    public AEKey canonicalKey(K aeKey) {
+        byte[] bytes = keyBytes.apply(aeKey);
+        return bytes.length == 0 ? null : new AEKey(key.scope(), key.freq(), bytes);
+    }
+
+    public AEKey indexGet(K aeKey) {
+        if (keyBytes == null) return index.get(aeKey);
+        AEKey dbKey = AEKey.find(key.scope(), key.freq(), keyBytes.apply(aeKey));
+        return dbKey != null && entries.containsKey(dbKey) ? dbKey : null;
+    }
+
+    public void indexPut(AEKey dbKey, K aeKey) {
+        if (keyBytes == null) index.put(aeKey, dbKey);
+    }
+
+    /**
+     * Maps {@code aeKey} to {@code dbKey} unless it is already mapped.
+     *
+     * @return The previously mapped DB key, or null if {@code dbKey} was registered.
+     */
+    public AEKey indexPutIfAbsent(AEKey dbKey, K aeKey) {
+        return keyBytes == null ? index.putIfAbsent(aeKey, dbKey) : null;
+    }
+
+    /** Removes the mapping for {@code aeKey}, but only if it still points at {@code dbKey}. */
+    public void indexRemove(AEKey dbKey, K aeKey) {
+        if (keyBytes == null) index.remove(aeKey, dbKey);
+    }
+
+// ==== Checkpoint / load state ====
+
+    public void markDirty() {
+        if (!dirty.get()) dirty.set(true);
+    }
+
+    /** Clears the dirty flag. @return Whether it was set. */
+    public boolean takeDirty() {
+        return dirty.getAndSet(false);
+    }
+
+    public boolean isDirty() {
+        return dirty.get();
+    }
+
+    /** False while the entries were loaded without their AE2 keys and the index is incomplete. */
+    public boolean isResolved() {
+        return resolved;
+    }
+
+    public void setResolved(boolean resolved) {
+        this.resolved = resolved;
+    }
+
+    /** Records an access, for the idle timeout and LRU order of {@link ChannelRegistry#pageOut}. */
+    public void touch() {
+        long now = System.currentTimeMillis();
+        if (now - lastAccess >= 1000) lastAccess = now;
+    }
+
+    public long lastAccess() {
+        return lastAccess;
+    }
+
+    /** Per-channel lock for work that must not run twice concurrently on one channel (e.g. resolving keys). */
+    public Object lock() {
+        return lock;
+    }
+
+    /**
+     * Drops all entries, aggregates and index mappings by switching to empty storage. The old entries are
+     * left untouched and reclaimed by the GC once no reader (e.g. a checkpoint) holds them any more.
+     *
+     * @return The entries as they were.
+     */
+    public Map<AEKey, V> clear() {
+        Map<AEKey, V> old = entries;
+        entries = storage.get();
+        index = new ConcurrentHashMap<>();
+        types.set(0);
+        total.set(0);
+        resolved = true;
+        return old;
+    }
+}
@@ -0,0 +1,17 @@
+package com.sts15.enderdrives.db;
+
+/**
+ * Identifies a single ender channel: a scope prefix (global, player_&lt;uuid&gt;, team_&lt;id&gt;) and a frequency.
+ */
+public record ChannelKey(String scope, int freq) {
+
+    /** Whether the channel belongs to a player or a team, rather than being global. */
+    public boolean isOwned() {
+        return scope.startsWith("player_") || scope.startsWith("team_");
+    }
+
+    @Override
+    public String toString() {
+        return scope + "|" + freq;
+    }
+}
@@ -0,0 +1,226 @@
+package com.sts15.enderdrives.db;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * All channels of a DB manager, keyed by (scope, frequency). Depending on the {@link StorageMode}, new
+ * channels keep their entries on the heap or in an {@link OffHeapEntryMap}.
+ * <p>
+ * A channel can be paged out: its entries are dropped and only its aggregates are kept, so type and total
+ * counts are still served without loading it. {@link #get} and {@link #getOrCreate} only see resident
+ * channels; the owning manager pages a channel back in before touching its entries.
+ * <p>
+ * During a background startup, channels not loaded yet are kept the same way, but with unknown aggregates.
+ *
+ * @param <V> The stored value (the manager's StoredEntry).
+ * @param <K> The AE2 key type (e.g. AEItemKey).
+ */
+public class ChannelRegistry<V, K> {
+
+    /** Rough heap cost of a heap entry: map node, DB key, stored value and AE2 key index node. */
+    private static final long HEAP_ENTRY_BYTES = 128;
+    /** Rough heap cost of an empty channel. */
+    private static final long CHANNEL_BYTES = 512;
+
+    /** What is kept of a paged-out channel. */
+    private record PagedOut(int types, long total) {}
+
+    /** A channel not loaded yet, whose aggregates aren't known. */
+    private static final PagedOut UNLOADED = new PagedOut(-1, -1L);
+
+    private final ConcurrentHashMap<ChannelKey, Channel<V, K>> channels = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<ChannelKey, PagedOut> pagedOut = new ConcurrentHashMap<>();
+    private final StorageMode mode;
+    private final EntryCodec<V, K> codec;
+    private final Function<K, byte[]> keyBytes;
+    /** Shared by all off-heap channels; null in heap mode. */
+    private final HotKeyCache<K> hotKeys;
+
+    /**
+     * @param codec    Builds and takes apart stored values for the off-heap tables.
+     * @param keyBytes Canonical serialized bytes of an AE2 key (empty if it can't be serialized).
+     * @param hotKeys  How many AE2 keys the off-heap mode keeps on the heap.
+     */
+    public ChannelRegistry(StorageMode mode, EntryCodec<V, K> codec, Function<K, byte[]> keyBytes, int hotKeys) {
+        this.mode = mode;
+        this.codec = codec;
+        this.keyBytes = keyBytes;
+        this.hotKeys = mode == StorageMode.OFF_HEAP ? new HotKeyCache<>(hotKeys) : null;
+    }
+
+    /** @return The channel, or null if nothing was ever stored in it. */
+    public Channel<V, K> get(String scope, int freq) {
+        return channels.get(new ChannelKey(scope, freq));
+    }
+
+    public Channel<V, K> get(ChannelKey key) {
+        return channels.get(key);
+    }
+
+    public Channel<V, K> getOrCreate(String scope, int freq) {
+        return getOrCreate(new ChannelKey(scope, freq));
+    }
+
+    public Channel<V, K> getOrCreate(ChannelKey key) {
+        Channel<V, K> channel = channels.get(key);
+        return channel != null ? channel : channels.computeIfAbsent(key, this::newChannel);
+    }
+
+    private Channel<V, K> newChannel(ChannelKey key) {
+        if (mode != StorageMode.OFF_HEAP) return new Channel<>(key);
+        return new Channel<>(key, () -> new OffHeapEntryMap<>(key, codec, hotKeys), keyBytes);
+    }
+
+    /** Type count of a resident or paged-out channel; -1 if it isn't loaded yet. */
+    public int getTypeCount(ChannelKey key) {
+        Channel<V, K> channel = channels.get(key);
+        if (channel != null) return channel.getTypeCount();
+        PagedOut out = pagedOut.get(key);
+        return out == null ? 0 : out.types();
+    }
+
+    /** Total count of a resident or paged-out channel; -1 if it isn't loaded yet. */
+    public long getTotalCount(ChannelKey key) {
+        Channel<V, K> channel = channels.get(key);
+        if (channel != null) return channel.getTotalCount();
+        PagedOut out = pagedOut.get(key);
+        return out == null ? 0L : out.total();
+    }
+
+// ==== Residency ====
+
+    public boolean isPagedOut(ChannelKey key) {
+        return !pagedOut.isEmpty() && pagedOut.containsKey(key);
+    }
+
+    public boolean isPagedOut(String scope, int freq) {
+        return !pagedOut.isEmpty() && pagedOut.containsKey(new ChannelKey(scope, freq));
+    }
+
+    /**
+     * Drops {@code channel}'s entries, keeping its aggregates. The caller must make sure its contents are
+     * in the segments and hold its stripe.
+     *
+     * @return The estimated bytes freed, or 0 if it is no longer the registered channel.
+     */
+    public long pageOut(Channel<V, K> channel) {
+        if (!channels.remove(channel.key(), channel)) return 0;
+        pagedOut.put(channel.key(), new PagedOut(channel.getTypeCount(), channel.getTotalCount()));
+        return estimateBytes(channel);
+    }
+
+    /**
+     * Registers an empty resident channel in place of a paged-out one, to be filled by the caller while
+     * holding its stripe.
+     *
+     * @return Whether {@code key} was paged out.
+     */
+    public boolean pageIn(ChannelKey key) {
+        if (pagedOut.remove(key) == null) return false;
+        getOrCreate(key);
+        return true;
+    }
+
+    /** Undoes a {@link #pageIn} whose load failed, keeping the aggregates of before. */
+    public void abortPageIn(ChannelKey key, int types, long total) {
+        channels.remove(key);
+        pagedOut.put(key, types < 0 ? UNLOADED : new PagedOut(types, total));
+    }
+
+    /** Registers a channel that exists on disk but isn't loaded yet, unless it already is. */
+    public void markUnloaded(ChannelKey key) {
+        if (!channels.containsKey(key)) pagedOut.putIfAbsent(key, UNLOADED);
+    }
+
+    public List<ChannelKey> unloadedKeys() {
+        List<ChannelKey> keys = new ArrayList<>();
+        pagedOut.forEach((key, out) -> {
+            if (out == UNLOADED) keys.add(key);
+        });
+        return keys;
+    }
+
+    /** Channels of {@code scope} that are paged out or not loaded yet. */
+    public List<ChannelKey> nonResidentKeys(String scope) {
+        List<ChannelKey> keys = new ArrayList<>();
+        for (ChannelKey key : pagedOut.keySet()) {
+            if (key.scope().equals(scope)) keys.add(key);
+        }
+        return keys;
+    }
+
+    public int unloadedCount() {
+        int n = 0;
+        for (PagedOut out : pagedOut.values()) {
+            if (out == UNLOADED) n++;
+        }
+        return n;
+    }
+
+    public int pagedOutCount() {
+        return pagedOut.size() - unloadedCount();
+    }
+
+    /** Estimated memory of a resident channel: heap entries, or its off-heap table. */
+    public long estimateBytes(Channel<V, K> channel) {
+        if (channel.entries() instanceof OffHeapEntryMap<?, ?> table) return CHANNEL_BYTES + table.getOffHeapBytes();
+        return CHANNEL_BYTES + channel.entries().size() * HEAP_ENTRY_BYTES;
+    }
+
+    /** Estimated memory of every resident channel. */
+    public long residentBytes() {
+        long total = 0;
+        for (Channel<V, K> channel : channels.values()) total += estimateBytes(channel);
+        return total;
+    }
+
+    /** @return The stored value of {@code dbKey}, or null. */
+    public V getEntry(AEKey dbKey) {
+        Channel<V, K> channel = get(dbKey.scope(), dbKey.freq());
+        return channel == null ? null : channel.get(dbKey);
+    }
+
+    public Collection<Channel<V, K>> all() {
+        return channels.values();
+    }
+
+    /** Removes {@code channel} if it is still the registered one. */
+    public void remove(Channel<V, K> channel) {
+        channels.remove(channel.key(), channel);
+    }
+
+    public int size() {
+        return channels.size();
+    }
+
+    /** Total number of stored keys over all channels, resident or not. */
+    public int entryCount() {
+        int n = 0;
+        for (Channel<V, K> channel : channels.values()) n += channel.entries().size();
+        for (PagedOut out : pagedOut.values()) n += Math.max(0, out.types());
+        return n;
+    }
+
+    /** Direct memory held by the channels' tables (0 in heap mode). */
+    public long getOffHeapBytes() {
+        long total = 0;
+        for (Channel<V, K> channel : channels.values()) {
+            if (channel.entries() instanceof OffHeapEntryMap<?, ?> table) total += table.getOffHeapBytes();
+        }
+        return total;
+    }
+
+    public StorageMode getMode() {
+        return mode;
+    }
+
+    public void clear() {
+        channels.clear();
+        pagedOut.clear();
+        if (hotKeys != null) hotKeys.clear();
+    }
+}
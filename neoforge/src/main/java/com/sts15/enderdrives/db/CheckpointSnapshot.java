@@ -0,0 +1,109 @@
+package com.sts15.enderdrives.db;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.ToLongFunction;
+
+/**
+ * Copy-on-write view of a set of channels as they were when a checkpoint started.
+ * <p>
+ * The snapshot is created while every write stripe is held, after which the checkpoint is written without the lock.
+ * Writers keep going: before changing a key of a covered channel they {@link #recordPreImage} its
+ * current count (0 if absent). The first pre-image wins, so the snapshot always sees the value from
+ * the moment it was taken, and only keys actually touched during the checkpoint are ever copied.
+ * <p>
+ * A channel cleared meanwhile hands over its old storage instead ({@link #detach}); nothing changes it any
+ * more, so it stands in for the live entries and no pre-images are needed for it.
+ */
+public class CheckpointSnapshot {
+
+    private static final Map<AEKey, Long> EMPTY = Map.of();
+
+    private final Map<ChannelKey, ConcurrentHashMap<AEKey, Long>> preImages = new HashMap<>();
+    private final Map<ChannelKey, Map<AEKey, ?>> detached = new ConcurrentHashMap<>();
+
+    /**
+     * Callers must hold every write stripe, so no mutation of {@code channels} can be half-done.
+     */
+    public CheckpointSnapshot(Collection<ChannelKey> channels) {
+        for (ChannelKey channel : channels) preImages.put(channel, new ConcurrentHashMap<>());
+    }
+
+    public boolean covers(String scope, int freq) {
+        return preImages.containsKey(new ChannelKey(scope, freq));
+    }
+
+    /**
+     * Remembers {@code key}'s count before its first change since the snapshot. Must be called
+     * <i>before</i> the change is made to the live map. Keys outside the snapshot, or of a detached
+     * channel, are ignored.
+     */
+    public void recordPreImage(AEKey key, long count) {
+        ChannelKey channelKey = new ChannelKey(key.scope(), key.freq());
+        Map<AEKey, Long> channel = preImages.get(channelKey);
+        if (channel != null && (detached.isEmpty() || !detached.containsKey(channelKey))) channel.putIfAbsent(key, count);
+    }
+
+    /**
+     * Hands over the storage of a covered channel that is about to be cleared; see {@link Channel#clear}.
+     * Must be called before the clear, under the channel's stripe. Only the first clear counts: later ones
+     * hand over storage written after the snapshot.
+     */
+    public void detach(ChannelKey channel, Map<AEKey, ?> entries) {
+        if (preImages.containsKey(channel)) detached.putIfAbsent(channel, entries);
+    }
+
+    /**
+     * The entries to pass to {@link #forEach} for {@code channel}: its detached storage if it was cleared,
+     * otherwise {@code live}, which must have been read before calling this.
+     */
+    @SuppressWarnings("unchecked")
+    public <V> Map<AEKey, V> entriesOf(ChannelKey channel, Map<AEKey, V> live) {
+        Map<AEKey, ?> old = detached.get(channel);
+        return old != null ? (Map<AEKey, V>) old : live;
+    }
+
+    /**
+     * Emits every entry of {@code channel} as of the snapshot.
+     * <p>
+     * Each live value is read <i>before</i> its pre-image is checked: a missing pre-image then proves the
+     * value hadn't changed yet when it was read. Keys with a pre-image are emitted from that instead. What was
+     * emitted live is remembered as item IDs (unique within a channel), 4 bytes an entry, since a pre-image
+     * recorded after its key was read must not emit it twice.
+     *
+     * @param live    The live entries of the channel.
+     * @param counter Extracts the stored count from a live value.
+     */
+    public <V> void forEach(ChannelKey channel, Map<AEKey, V> live, ToLongFunction<V> counter,
+                            SegmentStore.EntryVisitor visitor) throws IOException {
+        Map<AEKey, Long> changed = preImages.get(channel);
+        if (changed == null) changed = EMPTY;
+        int[] emitted = new int[64];
+        int n = 0;
+        for (Map.Entry<AEKey, V> e : live.entrySet()) {
+            long count = counter.applyAsLong(e.getValue());
+            if (changed.containsKey(e.getKey())) continue;
+            visitor.visit(e.getKey(), count);
+            if (n == emitted.length) emitted = Arrays.copyOf(emitted, n * 2);
+            emitted[n++] = e.getKey().itemId();
+        }
+        if (changed.isEmpty()) return;
+
+        Map<Integer, AEKey> pending = new HashMap<>();
+        changed.forEach((key, count) -> {
+            if (count > 0) pending.put(key.itemId(), key);
+        });
+        for (int i = 0; i < n && !pending.isEmpty(); i++) pending.remove(emitted[i]);
+        for (AEKey key : pending.values()) visitor.visit(key, changed.get(key));
+    }
+
+    public int getPreImageCount() {
+        int n = 0;
+        for (Map<AEKey, Long> channel : preImages.values()) n += channel.size();
+        return n;
+    }
+}
@@ -0,0 +1,105 @@
+package com.sts15.enderdrives.db;
+
+import java.util.function.DoubleSupplier;
+
+/**
+ * Picks WAL flush and checkpoint intervals for a DB manager's commit thread, between the configured
+ * min/max bounds.
+ * <p>
+ * Inputs, sampled by the commit thread:
+ * <ul>
+ *   <li>Tick health: the mean of the server's recent tick times. While the server runs over its tick
+ *   budget, checkpoints stretch toward their max so disk work doesn't compete with ticking; when it has
+ *   spare time, they are pulled forward to catch up. WAL flushes are never stretched by lag: the window
+ *   between them is how much acknowledged work a crash can lose.</li>
+ *   <li>Write rate: deltas per second (smoothed). Busy stores flush the WAL often, quiet ones batch up.</li>
+ *   <li>WAL size: bytes logged since the last checkpoint. A growing WAL means longer replay, so checkpoints
+ *   come sooner; past a hard limit they run even while the server lags.</li>
+ * </ul>
+ * Not thread-safe; owned by one commit thread.
+ */
+public class CommitScheduler {
+
+    private static final double TICK_BUDGET_MS = 50.0;
+    /** Below this mean tick time the server counts as idle enough to catch up on checkpoints. */
+    private static final double IDLE_TICK_MS = 25.0;
+    /** Deltas per second at which the WAL is flushed at the min interval. */
+    private static final double BUSY_WRITE_RATE = 2_000.0;
+    /** WAL size at which checkpoints run at the min interval. */
+    private static final long WAL_TARGET_BYTES = 8L * 1024 * 1024;
+    /** WAL size past which a lagging server no longer defers checkpoints. */
+    private static final long WAL_HARD_LIMIT_BYTES = 4 * WAL_TARGET_BYTES;
+    private static final double RATE_SMOOTHING = 0.3;
+
+    private final long minWalMs, maxWalMs, minDbMs, maxDbMs;
+    private final DoubleSupplier tickProbe;
+    private long lastSampleTime = System.currentTimeMillis();
+    private long lastDeltaCount = 0;
+    private double writeRate = 0;
+    private double msPerTick = 0;
+
+    /**
+     * @param tickProbe Mean of the server's recent tick times in ms, or 0 without a running server.
+     */
+    public CommitScheduler(long minWalMs, long maxWalMs, long minDbMs, long maxDbMs, DoubleSupplier tickProbe) {
+        this.minWalMs = minWalMs;
+        this.maxWalMs = Math.max(minWalMs, maxWalMs);
+        this.minDbMs = minDbMs;
+        this.maxDbMs = Math.max(minDbMs, maxDbMs);
+        this.tickProbe = tickProbe;
+    }
+
+    /**
+     * Updates the write rate and tick health.
+     *
+     * @param deltaCount Running total of deltas the manager has accepted.
+     */
+    public void sample(long now, long deltaCount) {
+        long elapsed = now - lastSampleTime;
+        if (elapsed >= 250) {
+            double rate = (deltaCount - lastDeltaCount) * 1000.0 / elapsed;
+            writeRate += RATE_SMOOTHING * (rate - writeRate);
+            lastDeltaCount = deltaCount;
+            lastSampleTime = now;
+        }
+        msPerTick = tickProbe.getAsDouble();
+    }
+
+    /** @return How long to let deltas merge before the next WAL flush. */
+    public long walInterval() {
+        double quiet = 1.0 - clamp(writeRate / BUSY_WRITE_RATE);
+        return lerp(minWalMs, maxWalMs, quiet);
+    }
+
+    /**
+     * @param walBytes Bytes in the WAL since the last checkpoint.
+     * @return How long after the last checkpoint the next one should run.
+     */
+    public long checkpointInterval(long walBytes) {
+        long interval = lerp(maxDbMs, minDbMs, clamp((double) walBytes / WAL_TARGET_BYTES));
+        if (walBytes >= WAL_HARD_LIMIT_BYTES) return minDbMs;
+        if (isIdle()) return Math.min(interval, lerp(minDbMs, maxDbMs, 0.25));
+        return lerp(interval, maxDbMs, lag());
+    }
+
+    /** 0 while ticks fit the budget, rising to 1 at twice the budget. */
+    public double lag() {
+        return clamp((msPerTick - TICK_BUDGET_MS) / TICK_BUDGET_MS);
+    }
+
+    public boolean isIdle() {
+        return msPerTick < IDLE_TICK_MS;
+    }
+
+    public String describe() {
+        return String.format("%.1f ms/tick, %.0f deltas/s, wal every %d ms", msPerTick, writeRate, walInterval());
+    }
+
+    private static long lerp(long from, long to, double t) {
+        return from + Math.round((to - from) * t);
+    }
+
+    private static double clamp(double v) {
+        return v < 0 ? 0 : v > 1 ? 1 : v;
+    }
+}
@@ -0,0 +1,46 @@
+package com.sts15.enderdrives.db;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Small pool of direct ByteBuffers for file I/O, so writers don't allocate (and later free) native
+ * memory on every batch.
+ * <p>
+ * Buffers larger than the pool's default size are handed out unpooled and simply dropped on release.
+ */
+public class DirectBufferPool {
+
+    private final int bufferSize;
+    private final int maxPooled;
+    private final ArrayDeque<ByteBuffer> free = new ArrayDeque<>();
+
+    public DirectBufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    /**
+     * @param minCapacity Minimum capacity needed; anything above the pool's buffer size gets a one-off buffer.
+     * @return A cleared buffer.
+     */
+    public ByteBuffer acquire(int minCapacity) {
+        if (minCapacity > bufferSize) return ByteBuffer.allocateDirect(minCapacity);
+        synchronized (free) {
+            ByteBuffer buf = free.pollFirst();
+            if (buf != null) return buf.clear();
+        }
+        return ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    public void release(ByteBuffer buf) {
+        if (buf == null || buf.capacity() != bufferSize) return;
+        synchronized (free) {
+            if (free.size() < maxPooled) free.addFirst(buf.clear());
+        }
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+}
@@ -0,0 +1,18 @@
+package com.sts15.enderdrives.db;
+
+/**
+ * Converts between a manager's stored value and its parts, so storage that doesn't keep the value
+ * object itself (see {@link OffHeapEntryMap}) can rebuild it.
+ *
+ * @param <V> The stored value (the manager's StoredEntry).
+ * @param <K> The AE2 key type (e.g. AEItemKey).
+ */
+public interface EntryCodec<V, K> {
+
+    long count(V value);
+
+    /** @return The AE2 key, or null if it isn't known (yet). */
+    K aeKey(V value);
+
+    V create(long count, K aeKey);
+}
@@ -0,0 +1,49 @@
+package com.sts15.enderdrives.db;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Lossy, lock-free cache from a dictionary item ID to its AE2 key, used by off-heap storage to keep
+ * only recently used AE2 keys on the heap.
+ * <p>
+ * Direct-mapped: each ID has exactly one slot, and a newer key simply replaces whatever was there.
+ *
+ * @param <K> The AE2 key type (e.g. AEItemKey).
+ */
+public class HotKeyCache<K> {
+
+    private record Slot<K>(int id, K key) {}
+
+    private final AtomicReferenceArray<Slot<K>> slots;
+    private final int mask;
+
+    /**
+     * @param minSlots Rounded up to a power of two.
+     */
+    public HotKeyCache(int minSlots) {
+        int n = Integer.highestOneBit(Math.max(1, minSlots - 1)) << 1;
+        slots = new AtomicReferenceArray<>(n);
+        mask = n - 1;
+    }
+
+    /** @return The cached key of {@code id}, or null. */
+    public K get(int id) {
+        Slot<K> slot = slots.get(index(id));
+        return slot != null && slot.id() == id ? slot.key() : null;
+    }
+
+    public void put(int id, K key) {
+        if (key == null) return;
+        int i = index(id);
+        Slot<K> slot = slots.get(i);
+        if (slot == null || slot.id() != id || slot.key() != key) slots.set(i, new Slot<>(id, key));
+    }
+
+    public void clear() {
+        for (int i = 0; i < slots.length(); i++) slots.set(i, null);
+    }
+
+    private int index(int id) {
+        return (id * 0x9E3779B1) >>> 7 & mask;
+    }
+}
@@ -0,0 +1,18 @@
+package com.sts15.enderdrives.db;
+
+/**
+ * Serializes one AE2 key type for a {@link StorageEngine}.
+ *
+ * @param <K> The AE2 key type (e.g. AEItemKey).
+ */
+public interface KeyCodec<K> {
+
+    /** @return The AE2 key stored as {@code bytes}, or null if they don't decode to a non-empty stack. */
+    K decode(byte[] bytes);
+
+    /** @return The canonical bytes new entries of {@code key} are stored under; empty if it can't be serialized. */
+    byte[] encode(K key);
+
+    /** Drops any cached encodings. */
+    void clearCache();
+}
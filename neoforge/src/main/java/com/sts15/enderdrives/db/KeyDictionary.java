@@ -0,0 +1,449 @@
+package com.sts15.enderdrives.db;
+
+import com.sts15.enderdrives.Constants;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Interns serialized keys (item/fluid NBT bytes) and scope names to compact int IDs.
+ * <p>
+ * Every distinct byte sequence is kept once, so an item stored in many channels costs its bytes once, and
+ * keys compare and hash by ID instead of walking the bytes. Lookups by bytes go through an open-addressing
+ * table of IDs. In {@link StorageMode#OFF_HEAP} mode the bytes themselves are kept in a direct-memory arena,
+ * so the dictionary costs the heap a few primitive arrays regardless of its size.
+ * <p>
+ * Item IDs are stable: segments store them instead of the bytes, so every ID a segment refers to is appended
+ * to the dictionary file (and forced) by {@link #persist} before the segment is published. After a compaction
+ * the file is rewritten with only the IDs segments still refer to ({@link #retain}), so keys that were only
+ * ever probed, or stored and removed again, don't accumulate. An ID is never reused while a segment may refer
+ * to it. Scope IDs are only used in memory.
+ *
+ * <pre>
+ * file: "EDD1" UTF, (int id, int len, byte[len] bytes, long crc32)*
+ * </pre>
+ */
+public final class KeyDictionary {
+
+    /** The dictionary every {@link AEKey} interns into. */
+    public static final KeyDictionary GLOBAL = new KeyDictionary();
+
+    /** Reserved for the empty key, which sorts before every real key (used for channel range bounds). */
+    public static final int EMPTY_ID = 0;
+
+    private static final String MAGIC = "EDD1";
+    private static final byte[] EMPTY = new byte[0];
+
+    private static final int ARENA_CHUNK = 1 << 20;
+
+    private final ConcurrentHashMap<String, Integer> scopeIds = new ConcurrentHashMap<>();
+    private StorageMode mode = StorageMode.HEAP;
+    /** bytes -> id: slot holds an ID (0 = free), probed from the bytes' hash. Published with release semantics. */
+    private volatile AtomicIntegerArray slots = new AtomicIntegerArray(1024);
+    private volatile int[] hashById = new int[1024];
+    /** HEAP: id -> bytes. */
+    private volatile byte[][] byId = new byte[1024][];
+    /** OFF_HEAP: id -> (chunk << 32 | position) + 1 of {@code [int len][bytes]} in the arena; 0 = unknown. */
+    private volatile long[] arenaRefById = new long[1024];
+    private volatile ByteBuffer[] arena = new ByteBuffer[0];
+    private int arenaPosition = ARENA_CHUNK;
+    private int nextId = EMPTY_ID + 1;
+    private int nextScopeId = 0;
+
+    private Path file;
+    private long persistedLength;
+    private final BitSet persisted = new BitSet();
+    /** Serializes writes to the file, which happen outside the monitor. Taken before the monitor, never inside it. */
+    private final ReentrantLock fileLock = new ReentrantLock();
+    /** Set once the file has been rewritten smaller, so the next {@link #open} reloads and drops the rest from RAM. */
+    private boolean retained;
+
+    private KeyDictionary() {
+        byId[EMPTY_ID] = EMPTY;
+    }
+
+    /**
+     * Loads the dictionary file of a world. Reopening the file that is already loaded (and unchanged) in
+     * the same mode is a no-op, so both DB managers can call this; anything else resets all IDs.
+     */
+    public void open(Path path, StorageMode storageMode) throws IOException {
+        fileLock.lock();
+        try {
+            synchronized (this) {
+                load(path, storageMode);
+            }
+        } finally {
+            fileLock.unlock();
+        }
+    }
+
+    private void load(Path path, StorageMode storageMode) throws IOException {
+        if (!retained && path.equals(file) && storageMode == mode && Files.exists(path) && Files.size(path) == persistedLength) return;
+
+        mode = storageMode;
+        scopeIds.clear();
+        slots = new AtomicIntegerArray(1024);
+        hashById = new int[1024];
+        byId = new byte[1024][];
+        byId[EMPTY_ID] = EMPTY;
+        arenaRefById = new long[1024];
+        arena = new ByteBuffer[0];
+        arenaPosition = ARENA_CHUNK;
+        nextId = EMPTY_ID + 1;
+        nextScopeId = 0;
+        persisted.clear();
+        retained = false;
+        file = path;
+        persistedLength = 0;
+
+        if (!Files.exists(path) || Files.size(path) == 0) {
+            try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(path))) {
+                out.writeUTF(MAGIC);
+            }
+            persistedLength = Files.size(path);
+            return;
+        }
+
+        long good;
+        int loaded = 0;
+        try (CountingInput counting = new CountingInput(new BufferedInputStream(Files.newInputStream(path)));
+             DataInputStream dis = new DataInputStream(counting)) {
+            String magic = dis.readUTF();
+            if (!MAGIC.equals(magic)) throw new IOException("Bad dictionary header " + magic + " in " + path);
+            good = counting.count;
+            while (true) {
+                try {
+                    int id = dis.readInt();
+                    byte[] bytes = new byte[dis.readInt()];
+                    dis.readFully(bytes);
+                    if (dis.readLong() != checksum(id, bytes)) break;
+                    register(id, bytes, Arrays.hashCode(bytes));
+                    persisted.set(id);
+                    loaded++;
+                    good = counting.count;
+                } catch (EOFException | NegativeArraySizeException e) {
+                    break;
+                }
+            }
+        }
+        if (good < Files.size(path)) {
+            // Torn tail from a crash mid-append; nothing published refers to it.
+            try (FileChannel ch = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                ch.truncate(good);
+            }
+            Constants.LOG.warn("Truncated torn tail of key dictionary {} at {} bytes", path.getFileName(), good);
+        }
+        persistedLength = good;
+        AbstractEnderDBManager.log("[KeyDictionary] Loaded {} keys from {}", loaded, path.getFileName());
+    }
+
+    /**
+     * @return The ID of {@code bytes}, assigning a new one if needed.
+     */
+    public int intern(byte[] bytes) {
+        if (bytes.length == 0) return EMPTY_ID;
+        int hash = Arrays.hashCode(bytes);
+        int id = lookup(bytes, hash);
+        if (id >= 0) return id;
+        synchronized (this) {
+            id = lookup(bytes, hash);
+            if (id >= 0) return id;
+            int assigned = nextId++;
+            register(assigned, bytes.clone(), hash);
+            return assigned;
+        }
+    }
+
+    /**
+     * @return The ID of {@code bytes}, or -1 if it was never interned (so nothing can be stored under it).
+     */
+    public int find(byte[] bytes) {
+        if (bytes.length == 0) return EMPTY_ID;
+        return lookup(bytes, Arrays.hashCode(bytes));
+    }
+
+    /**
+     * @return The canonical bytes of {@code id}. In heap mode the array is shared, in off-heap mode it is a
+     * fresh copy; never modify it either way.
+     */
+    public byte[] bytes(int id) {
+        if (id == EMPTY_ID) return EMPTY;
+        if (mode == StorageMode.OFF_HEAP) {
+            long[] refs = arenaRefById;
+            long ref = (id > 0 && id < refs.length ? refs[id] : 0) - 1;
+            if (ref < 0) throw new IllegalArgumentException("Unknown key id " + id);
+            ByteBuffer chunk = arena[(int) (ref >>> 32)];
+            int pos = (int) ref;
+            byte[] bytes = new byte[chunk.getInt(pos)];
+            chunk.get(pos + 4, bytes);
+            return bytes;
+        }
+        byte[][] table = byId;
+        byte[] bytes = id >= 0 && id < table.length ? table[id] : null;
+        if (bytes == null) throw new IllegalArgumentException("Unknown key id " + id);
+        return bytes;
+    }
+
+    /** Direct memory held by the arena (0 in heap mode). */
+    public long getOffHeapBytes() {
+        long total = 0;
+        for (ByteBuffer chunk : arena) total += chunk.capacity();
+        return total;
+    }
+
+    public StorageMode getMode() {
+        return mode;
+    }
+
+    public int scopeId(String scope) {
+        String s = scope == null ? "" : scope;
+        Integer id = scopeIds.get(s);
+        if (id != null) return id;
+        synchronized (this) {
+            return scopeIds.computeIfAbsent(s, k -> nextScopeId++);
+        }
+    }
+
+    /**
+     * Appends every not yet persisted ID among {@code idList[0..n)} to the dictionary file and forces it.
+     * Must complete before anything referring to those IDs is published.
+     * <p>
+     * Only the records are built under the monitor; the write and the fsync run under a lock of their own,
+     * so a save interning a new key never waits for the disk.
+     */
+    public void persist(int[] idList, int n) throws IOException {
+        fileLock.lock();
+        try {
+            Path target;
+            long position;
+            BitSet written = new BitSet();
+            ByteArrayOutputStream buf = new ByteArrayOutputStream();
+            synchronized (this) {
+                if (file == null) throw new IllegalStateException("Key dictionary is not open");
+                DataOutputStream out = new DataOutputStream(buf);
+                for (int i = 0; i < n; i++) {
+                    int id = idList[i];
+                    if (id == EMPTY_ID || persisted.get(id) || written.get(id)) continue;
+                    writeRecord(out, id);
+                    written.set(id);
+                }
+                if (written.isEmpty()) return;
+                target = file;
+                position = persistedLength;
+            }
+            long end;
+            try (FileChannel ch = FileChannel.open(target, StandardOpenOption.WRITE)) {
+                ch.position(position);
+                ByteBuffer data = ByteBuffer.wrap(buf.toByteArray());
+                while (data.hasRemaining()) ch.write(data);
+                ch.force(false);
+                end = ch.position();
+            }
+            synchronized (this) {
+                if (!target.equals(file)) return; // reopened on another world meanwhile
+                persistedLength = end;
+                persisted.or(written);
+            }
+        } finally {
+            fileLock.unlock();
+        }
+    }
+
+    /**
+     * Rewrites the dictionary file with only the persisted IDs in {@code live}, e.g. those the segments still
+     * refer to after a compaction. Dropped IDs stay usable in memory, and a checkpoint referring to one again
+     * persists it again; the in-memory tables only shrink when the file is next loaded. Callers must make sure
+     * nothing referring to an ID outside {@code live} is published meanwhile.
+     *
+     * @return The number of IDs dropped from the file.
+     */
+    public int retain(BitSet live) throws IOException {
+        fileLock.lock();
+        try {
+            Path target;
+            BitSet kept;
+            int dropped;
+            synchronized (this) {
+                if (file == null) throw new IllegalStateException("Key dictionary is not open");
+                kept = (BitSet) persisted.clone();
+                kept.and(live);
+                dropped = persisted.cardinality() - kept.cardinality();
+                if (dropped == 0) return 0;
+                target = file;
+            }
+            // Registered bytes are never changed, so they can be read without the monitor.
+            Path tmp = target.resolveSibling(target.getFileName() + ".tmp");
+            try (FileOutputStream fos = new FileOutputStream(tmp.toFile());
+                 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos))) {
+                out.writeUTF(MAGIC);
+                for (int id = kept.nextSetBit(0); id >= 0; id = kept.nextSetBit(id + 1)) writeRecord(out, id);
+                out.flush();
+                fos.getFD().sync();
+            }
+            try {
+                Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+            synchronized (this) {
+                if (!target.equals(file)) return 0;
+                persisted.and(kept);
+                persistedLength = Files.size(target);
+                retained = true;
+            }
+            AbstractEnderDBManager.log("[KeyDictionary] Dropped {} unused keys from {}", dropped, target.getFileName());
+            return dropped;
+        } finally {
+            fileLock.unlock();
+        }
+    }
+
+    public synchronized int size() {
+        return nextId - 1;
+    }
+
+    /**
+     * Probes the ID table. Lock-free: a slot is only published after everything it refers to is written.
+     *
+     * @return The ID, or -1.
+     */
+    private int lookup(byte[] bytes, int hash) {
+        AtomicIntegerArray table = slots;
+        int mask = table.length() - 1;
+        for (int i = spread(hash) & mask, n = 0; n <= mask; i = (i + 1) & mask, n++) {
+            int id = table.get(i);
+            if (id == 0) return -1;
+            if (hashById[id] == hash && equalsAt(id, bytes)) return id;
+        }
+        return -1;
+    }
+
+    private boolean equalsAt(int id, byte[] bytes) {
+        if (mode != StorageMode.OFF_HEAP) return Arrays.equals(byId[id], bytes);
+        long ref = arenaRefById[id] - 1;
+        ByteBuffer chunk = arena[(int) (ref >>> 32)];
+        int pos = (int) ref;
+        if (chunk.getInt(pos) != bytes.length) return false;
+        for (int i = 0; i < bytes.length; i++) {
+            if (chunk.get(pos + 4 + i) != bytes[i]) return false;
+        }
+        return true;
+    }
+
+    /** Needs the monitor (or single-threaded load). */
+    private void register(int id, byte[] bytes, int hash) {
+        if (id >= hashById.length) {
+            int length = Math.max(hashById.length * 2, id + 1);
+            hashById = Arrays.copyOf(hashById, length);
+            if (mode == StorageMode.OFF_HEAP) arenaRefById = Arrays.copyOf(arenaRefById, length);
+            else byId = Arrays.copyOf(byId, length);
+        }
+        hashById[id] = hash;
+        if (mode == StorageMode.OFF_HEAP) arenaRefById[id] = append(bytes);
+        else byId[id] = bytes;
+        if (id >= nextId) nextId = id + 1;
+
+        AtomicIntegerArray table = slots;
+        if ((nextId - 1) * 2 > table.length()) {
+            table = rehash(table.length() * 2);
+        }
+        insert(table, id, hash);
+        slots = table;
+    }
+
+    private static void insert(AtomicIntegerArray table, int id, int hash) {
+        int mask = table.length() - 1;
+        int i = spread(hash) & mask;
+        while (table.get(i) != 0) i = (i + 1) & mask;
+        table.set(i, id);
+    }
+
+    /** Builds a larger ID table off to the side; it is only published once complete. Needs the monitor. */
+    private AtomicIntegerArray rehash(int length) {
+        AtomicIntegerArray old = slots;
+        AtomicIntegerArray table = new AtomicIntegerArray(length);
+        for (int i = 0; i < old.length(); i++) {
+            int id = old.get(i);
+            if (id != 0) insert(table, id, hashById[id]);
+        }
+        return table;
+    }
+
+    /** Copies {@code bytes} into the arena. Needs the monitor. @return The arena reference. */
+    private long append(byte[] bytes) {
+        ByteBuffer[] chunks = arena;
+        if (chunks.length == 0 || arenaPosition + 4 + bytes.length > chunks[chunks.length - 1].capacity()) {
+            chunks = Arrays.copyOf(chunks, chunks.length + 1);
+            chunks[chunks.length - 1] = ByteBuffer.allocateDirect(Math.max(ARENA_CHUNK, 4 + bytes.length));
+            arenaPosition = 0;
+            arena = chunks;
+        }
+        ByteBuffer chunk = chunks[chunks.length - 1];
+        int pos = arenaPosition;
+        chunk.putInt(pos, bytes.length);
+        chunk.put(pos + 4, bytes);
+        arenaPosition = pos + 4 + bytes.length;
+        return ((long) (chunks.length - 1) << 32 | pos) + 1;
+    }
+
+    private static int spread(int hash) {
+        int h = hash * 0x9E3779B1;
+        return h ^ h >>> 16;
+    }
+
+    private void writeRecord(DataOutputStream out, int id) throws IOException {
+        byte[] bytes = bytes(id);
+        out.writeInt(id);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+        out.writeLong(checksum(id, bytes));
+    }
+
+    private static long checksum(int id, byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(ByteBuffer.allocate(4).putInt(id).array());
+        crc.update(bytes);
+        return crc.getValue();
+    }
+
+    private static final class CountingInput extends FilterInputStream {
+        long count;
+
+        CountingInput(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0) count++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n > 0) count += n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+}
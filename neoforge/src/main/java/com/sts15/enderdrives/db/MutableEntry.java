@@ -0,0 +1,56 @@
+package com.sts15.enderdrives.db;
+
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * Stored value of one key: a count that is updated in place and the AE2 key, set once it is known.
+ * Repeated deltas on a stored key therefore allocate nothing.
+ * <p>
+ * Both fields are volatile, so readers see the latest count without locking. Entries handed out by
+ * storage that copies its values (see {@link OffHeapEntryMap}) are detached copies; writing to them
+ * changes nothing, so those tables are updated with {@code put} instead.
+ *
+ * @param <K> The AE2 key type (e.g. AEItemKey).
+ */
+public class MutableEntry<K> {
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicLongFieldUpdater<MutableEntry> COUNT =
+            AtomicLongFieldUpdater.newUpdater(MutableEntry.class, "count");
+
+    private volatile long count;
+    private volatile K aeKey;
+
+    public MutableEntry(long count, K aeKey) {
+        this.count = count;
+        this.aeKey = aeKey;
+    }
+
+    public long count() {
+        return count;
+    }
+
+    /** @return The AE2 key, or null if it hasn't been decoded yet. */
+    public K aeKey() {
+        return aeKey;
+    }
+
+    /** @return The new count. */
+    public long add(long delta) {
+        return COUNT.addAndGet(this, delta);
+    }
+
+    public void setCount(long count) {
+        this.count = count;
+    }
+
+    /** Sets the AE2 key if none is known yet. */
+    public void resolve(K aeKey) {
+        if (this.aeKey == null && aeKey != null) this.aeKey = aeKey;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[count=" + count + ", aeKey=" + aeKey + "]";
+    }
+}
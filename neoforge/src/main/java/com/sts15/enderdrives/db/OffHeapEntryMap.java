@@ -0,0 +1,283 @@
+package com.sts15.enderdrives.db;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * The entries of one channel in direct memory: an open-addressing (linear probing) table of
+ * (item ID, count) slots. Keys are rebuilt from the channel and the {@link KeyDictionary}; values from the
+ * count and the {@link HotKeyCache}, so nothing per entry stays on the heap.
+ * <p>
+ * Writers are expected to be serialized by the owning manager (the channel's write stripe); this class
+ * still takes its own write lock so that readers can probe without locking, using optimistic reads
+ * that are retried if a write or resize ran meanwhile. Iteration works on a copy of the table taken
+ * under the read lock, so it never fails on concurrent changes.
+ *
+ * <pre>
+ * slot: int itemId + 1 (0 = free), int unused, long count
+ * </pre>
+ *
+ * @param <V> The stored value (the manager's StoredEntry).
+ * @param <K> The AE2 key type (e.g. AEItemKey).
+ */
+public class OffHeapEntryMap<V, K> extends AbstractMap<AEKey, V> {
+
+    private static final int SLOT_BYTES = 16;
+    private static final int MIN_CAPACITY = 16;
+
+    private final String scope;
+    private final int freq;
+    private final EntryCodec<V, K> codec;
+    private final HotKeyCache<K> hotKeys;
+    private final StampedLock lock = new StampedLock();
+
+    private volatile ByteBuffer table = allocate(MIN_CAPACITY);
+    private volatile int size = 0;
+
+    public OffHeapEntryMap(ChannelKey channel, EntryCodec<V, K> codec, HotKeyCache<K> hotKeys) {
+        this.scope = channel.scope();
+        this.freq = channel.freq();
+        this.codec = codec;
+        this.hotKeys = hotKeys;
+    }
+
+    @Override
+    public V get(Object key) {
+        int id = idOf(key);
+        if (id < 0) return null;
+        long count = countOf(id);
+        return count < 0 ? null : codec.create(count, hotKeys.get(id));
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        int id = idOf(key);
+        return id >= 0 && countOf(id) >= 0;
+    }
+
+    @Override
+    public V put(AEKey key, V value) {
+        int id = idOf(key);
+        if (id < 0) throw new IllegalArgumentException(key + " is not in channel " + scope + "|" + freq);
+        hotKeys.put(id, codec.aeKey(value));
+        long previous;
+        long stamp = lock.writeLock();
+        try {
+            previous = store(id, codec.count(value));
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        return previous < 0 ? null : codec.create(previous, hotKeys.get(id));
+    }
+
+    @Override
+    public V remove(Object key) {
+        int id = idOf(key);
+        if (id < 0) return null;
+        long previous;
+        long stamp = lock.writeLock();
+        try {
+            previous = delete(id);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        return previous < 0 ? null : codec.create(previous, hotKeys.get(id));
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @Override
+    public void clear() {
+        long stamp = lock.writeLock();
+        try {
+            table = allocate(MIN_CAPACITY);
+            size = 0;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /** Direct memory held by the table. */
+    public long getOffHeapBytes() {
+        return table.capacity();
+    }
+
+    @Override
+    public Set<Map.Entry<AEKey, V>> entrySet() {
+        return new AbstractSet<>() {
+            @Override
+            public Iterator<Map.Entry<AEKey, V>> iterator() {
+                return snapshotIterator();
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+// ==== Table ====
+
+    /** @return The count of {@code id}, or -1 if absent. */
+    private long countOf(int id) {
+        long stamp = lock.tryOptimisticRead();
+        long count = probe(table, id);
+        if (lock.validate(stamp)) return count;
+        stamp = lock.readLock();
+        try {
+            return probe(table, id);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /** Bounded by the capacity, so a torn optimistic read can't loop forever. */
+    private static long probe(ByteBuffer t, int id) {
+        int capacity = t.capacity() / SLOT_BYTES;
+        int mask = capacity - 1;
+        int i = home(id, mask);
+        for (int n = 0; n < capacity; n++) {
+            int pos = i * SLOT_BYTES;
+            int stored = t.getInt(pos);
+            if (stored == 0) return -1;
+            if (stored == id + 1) return t.getLong(pos + 8);
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    /** Needs the write lock. @return The previous count, or -1. */
+    private long store(int id, long count) {
+        ByteBuffer t = table;
+        int mask = t.capacity() / SLOT_BYTES - 1;
+        int i = home(id, mask);
+        while (true) {
+            int pos = i * SLOT_BYTES;
+            int stored = t.getInt(pos);
+            if (stored == id + 1) {
+                long previous = t.getLong(pos + 8);
+                t.putLong(pos + 8, count);
+                return previous;
+            }
+            if (stored == 0) {
+                t.putLong(pos + 8, count);
+                t.putInt(pos, id + 1);
+                size++;
+                if (size * 4 > (mask + 1) * 3) resize((mask + 1) * 2);
+                return -1;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    /** Backward-shift deletion, so the table never needs tombstones. Needs the write lock. */
+    private long delete(int id) {
+        ByteBuffer t = table;
+        int mask = t.capacity() / SLOT_BYTES - 1;
+        int i = home(id, mask);
+        while (true) {
+            int stored = t.getInt(i * SLOT_BYTES);
+            if (stored == 0) return -1;
+            if (stored == id + 1) break;
+            i = (i + 1) & mask;
+        }
+        long previous = t.getLong(i * SLOT_BYTES + 8);
+        int hole = i;
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            int stored = t.getInt(j * SLOT_BYTES);
+            if (stored == 0) break;
+            int h = home(stored - 1, mask);
+            // Move j into the hole unless its home lies cyclically in (hole, j].
+            boolean stays = hole <= j ? (hole < h && h <= j) : (hole < h || h <= j);
+            if (!stays) {
+                t.putLong(hole * SLOT_BYTES + 8, t.getLong(j * SLOT_BYTES + 8));
+                t.putInt(hole * SLOT_BYTES, stored);
+                hole = j;
+            }
+        }
+        t.putInt(hole * SLOT_BYTES, 0);
+        t.putLong(hole * SLOT_BYTES + 8, 0L);
+        size--;
+        if (size * 8 < (mask + 1) && mask + 1 > MIN_CAPACITY) resize((mask + 1) / 2);
+        return previous;
+    }
+
+    /** Needs the write lock. */
+    private void resize(int capacity) {
+        ByteBuffer old = table;
+        ByteBuffer t = allocate(capacity);
+        int mask = capacity - 1;
+        for (int pos = 0; pos < old.capacity(); pos += SLOT_BYTES) {
+            int stored = old.getInt(pos);
+            if (stored == 0) continue;
+            int i = home(stored - 1, mask);
+            while (t.getInt(i * SLOT_BYTES) != 0) i = (i + 1) & mask;
+            t.putInt(i * SLOT_BYTES, stored);
+            t.putLong(i * SLOT_BYTES + 8, old.getLong(pos + 8));
+        }
+        table = t;
+    }
+
+    private Iterator<Map.Entry<AEKey, V>> snapshotIterator() {
+        int[] ids;
+        long[] counts;
+        long stamp = lock.readLock();
+        try {
+            ByteBuffer t = table;
+            ids = new int[size];
+            counts = new long[size];
+            int n = 0;
+            for (int pos = 0; pos < t.capacity() && n < ids.length; pos += SLOT_BYTES) {
+                int stored = t.getInt(pos);
+                if (stored == 0) continue;
+                ids[n] = stored - 1;
+                counts[n++] = t.getLong(pos + 8);
+            }
+        } finally {
+            lock.unlockRead(stamp);
+        }
+        return new Iterator<>() {
+            int next = 0;
+
+            @Override
+            public boolean hasNext() {
+                return next < ids.length;
+            }
+
+            @Override
+            public Map.Entry<AEKey, V> next() {
+                if (next >= ids.length) throw new NoSuchElementException();
+                int id = ids[next];
+                long count = counts[next++];
+                return new AbstractMap.SimpleImmutableEntry<>(new AEKey(scope, freq, id), codec.create(count, hotKeys.get(id)));
+            }
+        };
+    }
+
+    /** @return The item ID of {@code key} if it belongs to this channel, otherwise -1. */
+    private int idOf(Object key) {
+        if (!(key instanceof AEKey k) || k.freq() != freq || !Objects.equals(k.scope(), scope)) return -1;
+        return k.itemId();
+    }
+
+    private static int home(int id, int mask) {
+        int h = id * 0x9E3779B1;
+        return (h ^ h >>> 16) & mask;
+    }
+
+    private static ByteBuffer allocate(int capacity) {
+        return ByteBuffer.allocateDirect(capacity * SLOT_BYTES);
+    }
+}
@@ -0,0 +1,814 @@
+package com.sts15.enderdrives.db;
+
+import com.sts15.enderdrives.Constants;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Checksum;
+
+/**
+ * Log-structured on-disk store for the ender DBs.
+ * <p>
+ * Every checkpoint appends one segment file holding the <i>full</i> contents of each channel
+ * (scope + frequency) that changed since the previous checkpoint, so a checkpoint costs what changed,
+ * not the whole DB. The newest segment that contains a channel wins; an empty block is a tombstone
+ * for a cleared channel. A manifest, replaced atomically, lists the live segments in order and the
+ * WAL fence (the last rotated WAL generation the segments already cover).
+ * <p>
+ * Compaction merges all segments into one by copying the newest block of each channel as raw bytes,
+ * so it never needs the DB in memory. A channel none of whose copies passes its CRC is {@link #isUnreadable
+ * unreadable}: it can't be loaded, and the segments holding its copies are kept through compactions so it can
+ * still be recovered from them. A single channel can be read back on its own, which is how paged-out
+ * channels are loaded again.
+ * <p>
+ * Keys are stored as {@link KeyDictionary} IDs; the dictionary is persisted before a segment referring to
+ * new IDs is published. Entries are varints, so a typical one takes 3-5 bytes instead of 12, and each scope
+ * string is written once per segment, in the footer's string table. Every block carries a CRC32C and so does
+ * the footer, so a torn or corrupted segment is detected rather than loaded.
+ * <p>
+ * EDS2 (fixed-width IDs) and EDS1 (full key bytes) segments are still read, and converted when compacted.
+ *
+ * <pre>
+ * segment : "EDS3" UTF, long seq, long timestamp, blocks..., footer, int footerCrc32c, long footerOffset, int FOOTER_MAGIC
+ * block   : (varint itemId, varlong count)*
+ * footer  : varint s, s x (varint len, byte[len] utf8 scope), varint n, n x (varint scopeIndex, varint zigzag(freq), varlong offset,
+ *           varint length, varint entries, int crc32c)
+ * manifest: "EDM1" UTF, long nextSeq, long walFence, int n, n x long seq (oldest first)
+ *
+ * EDS2    : "EDS2" UTF, long seq, long timestamp, blocks..., footer, long footerOffset, int FOOTER_MAGIC
+ *   block : (int itemId, long count)*          EDS1: (int keyLen, byte[keyLen] key, long count)*
+ *   footer: int n, n x (UTF scope, int freq, long offset, int length, int entries, long crc32)
+ * </pre>
+ */
+public class SegmentStore {
+
+    private static final String SEGMENT_MAGIC = "EDS3";
+    private static final String SEGMENT_MAGIC_V2 = "EDS2";
+    private static final String SEGMENT_MAGIC_V1 = "EDS1";
+    /** Block formats, numbered like the segment magics. */
+    private static final int FORMAT_KEY_BYTES = 1, FORMAT_FIXED_IDS = 2, FORMAT_VARINTS = 3;
+    private static final String MANIFEST_MAGIC = "EDM1";
+    private static final int FOOTER_MAGIC = 0x45445346; // "EDSF"
+
+    private final String name;
+    private final Path dir;
+    private final String baseName;
+    private final Path manifestPath;
+
+    /** Live segments, oldest first. Replaced, never mutated, so {@link #loadChannel} can read it unlocked. */
+    private volatile List<Segment> segments = List.of();
+    private long nextSeq = 1;
+    private volatile long walFence = 0;
+    private boolean hasManifest = false;
+    /** Channels with no copy that passes its CRC; their segments are pinned until a checkpoint rewrites them. */
+    private final Set<ChannelKey> unreadable = ConcurrentHashMap.newKeySet();
+
+    public SegmentStore(String name, Path dir, String baseName) {
+        this.name = name;
+        this.dir = dir;
+        this.baseName = baseName;
+        this.manifestPath = dir.resolve(baseName + ".manifest");
+    }
+
+    /**
+     * Reads the manifest and segment footers, and removes segment files the manifest doesn't reference
+     * (leftovers of a checkpoint or compaction that crashed before its manifest was written).
+     */
+    public synchronized void open() throws IOException {
+        List<Segment> opened = new ArrayList<>();
+        hasManifest = Files.exists(manifestPath);
+        if (hasManifest) {
+            try (DataInputStream dis = new DataInputStream(new BufferedInputStream(Files.newInputStream(manifestPath)))) {
+                String magic = dis.readUTF();
+                if (!MANIFEST_MAGIC.equals(magic)) throw new IOException("Bad manifest header " + magic + " in " + manifestPath);
+                nextSeq = dis.readLong();
+                walFence = dis.readLong();
+                int n = dis.readInt();
+                for (int i = 0; i < n; i++) {
+                    long seq = dis.readLong();
+                    opened.add(readFooter(seq, segmentPath(seq)));
+                }
+            }
+        }
+        segments = List.copyOf(opened);
+
+        Set<Path> live = new HashSet<>();
+        for (Segment s : segments) live.add(s.path.getFileName());
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, baseName + "-*.seg*")) {
+            for (Path p : stream) {
+                if (!live.contains(p.getFileName())) {
+                    Files.deleteIfExists(p);
+                    AbstractEnderDBManager.log("[SegmentStore] Removed orphaned segment {}", p.getFileName());
+                }
+            }
+        }
+    }
+
+    public synchronized boolean hasManifest() {
+        return hasManifest;
+    }
+
+    /** The highest rotated WAL generation already covered by the segments. */
+    public synchronized long getWalFence() {
+        return walFence;
+    }
+
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    public synchronized long getSizeBytes() {
+        long total = 0;
+        for (Segment s : segments) total += s.size;
+        return total;
+    }
+
+    /** Bytes of the newest block of every channel, i.e. what a full compaction would keep. */
+    public synchronized long getLiveBytes() {
+        long live = 0;
+        for (BlockRef b : newestBlocks().values()) live += b.length;
+        return live;
+    }
+
+    /** Channels whose newest block holds entries, i.e. every channel {@link #load} would fill. */
+    public synchronized List<ChannelKey> liveChannels() {
+        List<ChannelKey> live = new ArrayList<>();
+        for (BlockRef b : newestBlocks().values()) {
+            if (b.entries > 0) live.add(b.channel);
+        }
+        return live;
+    }
+
+    /** Whether no copy of the channel passed its CRC when it was last read; see {@link #load}. */
+    public boolean isUnreadable(ChannelKey channel) {
+        return !unreadable.isEmpty() && unreadable.contains(channel);
+    }
+
+    public Set<ChannelKey> unreadableChannels() {
+        return Set.copyOf(unreadable);
+    }
+
+    /** Receives loaded entries; see {@link #load} for its threading. */
+    public interface EntrySink {
+        void accept(AEKey key, long count);
+    }
+
+    /** Supplies the entries of a channel to checkpoint. */
+    public interface ChannelSource {
+        void forEach(ChannelKey channel, EntryVisitor visitor) throws IOException;
+    }
+
+    public interface EntryVisitor {
+        void visit(AEKey key, long count) throws IOException;
+    }
+
+    /**
+     * Streams every live entry into {@code sink}, decoding channels in parallel on {@code pool}. A block
+     * that fails its CRC is skipped and the channel falls back to its previous version. A channel with no
+     * copy left that passes is skipped and becomes {@link #isUnreadable unreadable}, rather than failing the load.
+     *
+     * @param sink Called concurrently for different channels, but never concurrently for the same one.
+     */
+    public synchronized void load(EntrySink sink, ForkJoinPool pool) throws IOException {
+        Map<ChannelKey, List<BlockRef>> copies = copiesByChannel();
+
+        Map<Path, FileChannel> files = new HashMap<>();
+        Map<Path, ByteBuffer> mapped = new HashMap<>();
+        try {
+            for (Segment seg : segments) {
+                FileChannel ch = FileChannel.open(seg.path, StandardOpenOption.READ);
+                files.put(seg.path, ch);
+                // Map the whole segment once; blocks are parsed straight out of the page cache.
+                if (ch.size() <= Integer.MAX_VALUE) mapped.put(seg.path, ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()));
+            }
+            // Every channel is decoded by exactly one task, so the sink only sees concurrency across channels.
+            pool.submit(() -> copies.values().parallelStream().forEach(blocks -> {
+                try {
+                    readChannel(blocks, files, mapped, sink);
+                } catch (UnreadableChannelException e) {
+                    // Logged and recorded by readChannel; the rest of the DB still loads.
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            })).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted loading " + baseName + " segments", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof UncheckedIOException io) throw io.getCause();
+            throw new IOException("Failed to load " + baseName + " segments", e.getCause());
+        } finally {
+            for (FileChannel ch : files.values()) {
+                try {
+                    ch.close();
+                } catch (IOException ignored) {}
+            }
+        }
+    }
+
+    /**
+     * Streams the live entries of one channel into {@code sink}. Doesn't wait for a checkpoint or compaction
+     * in progress: it reads the segments published when it starts, and starts over if a compaction deleted
+     * one of them meanwhile.
+     *
+     * @throws IOException if the channel is (or turns out to be) {@link #isUnreadable unreadable}.
+     */
+    public void loadChannel(ChannelKey channel, EntrySink sink) throws IOException {
+        if (isUnreadable(channel)) throw new UnreadableChannelException(channel);
+        for (int attempt = 1; ; attempt++) {
+            List<Segment> live = segments;
+            List<BlockRef> copies = new ArrayList<>();
+            for (int i = live.size() - 1; i >= 0; i--) {
+                BlockRef block = live.get(i).byChannel.get(channel);
+                if (block != null) copies.add(block);
+            }
+            if (copies.isEmpty()) return;
+            Map<Path, FileChannel> files = new HashMap<>();
+            try {
+                // Opened up front, so a segment deleted under us fails before anything reaches the sink.
+                for (BlockRef block : copies) {
+                    if (!files.containsKey(block.source)) files.put(block.source, FileChannel.open(block.source, StandardOpenOption.READ));
+                }
+                readChannel(copies, files, Map.of(), sink);
+                return;
+            } catch (NoSuchFileException e) {
+                if (attempt == 3) throw e;
+            } finally {
+                for (FileChannel ch : files.values()) {
+                    try {
+                        ch.close();
+                    } catch (IOException ignored) {}
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the newest copy of a channel that passes its CRC.
+     *
+     * @throws UnreadableChannelException if none does; the channel is then recorded as unreadable.
+     */
+    private void readChannel(List<BlockRef> copies, Map<Path, FileChannel> files, Map<Path, ByteBuffer> mapped,
+                             EntrySink sink) throws IOException {
+        for (BlockRef block : copies) {
+            ByteBuffer map = mapped.get(block.source);
+            ByteBuffer data = map != null ? mappedBlock(map, block) : wrapBlock(readBlock(files.get(block.source), block));
+            if (data == null) {
+                Constants.LOG.error("[{}] CRC mismatch for channel {} in {}; falling back to an older copy",
+                        name, block.channel, block.source.getFileName());
+                continue;
+            }
+            if (block != copies.get(0)) logOlderCopy(copies.get(0), block);
+            String scope = block.channel.scope();
+            int freq = block.channel.freq();
+            try {
+                for (int e = 0; e < block.entries; e++) {
+                    AEKey key = readKey(data, scope, freq, block.format);
+                    long count = readCount(data, block.format);
+                    if (count > 0) sink.accept(key, count);
+                }
+            } catch (BufferUnderflowException | NegativeArraySizeException | IllegalArgumentException e) {
+                throw new IOException("Malformed block for channel " + block.channel + " in " + block.source.getFileName(), e);
+            }
+            return;
+        }
+        ChannelKey channel = copies.get(0).channel;
+        unreadable.add(channel);
+        Constants.LOG.error("[{}] No copy of channel {} in {} segments passes its CRC; it stays unloaded and refuses "
+                + "changes, and its segments are kept, until they are restored", name, channel, copies.size());
+        throw new UnreadableChannelException(channel);
+    }
+
+    /**
+     * Reports that a channel comes from an older copy. The WAL written since that copy is gone up to the fence,
+     * so whatever changed in between is lost; this is logged as an error so it doesn't pass unnoticed.
+     */
+    private void logOlderCopy(BlockRef newest, BlockRef used) {
+        Constants.LOG.error("[{}] Channel {} restored from an older copy in {} because its newest copy in {} is corrupt; "
+                        + "the WAL up to fence {} was already deleted, so its changes in between are lost",
+                name, used.channel, used.source.getFileName(), newest.source.getFileName(), walFence);
+    }
+
+    /**
+     * Writes one segment containing the full current contents of {@code channels} and publishes it
+     * in the manifest together with {@code newWalFence}. Channels are encoded in parallel on {@code pool}
+     * through a {@link BlockPipeline}, so the memory used stays a few buffers however much is written.
+     *
+     * @param source Supplies each channel's entries (none for a cleared channel), from any thread. Entries
+     *               with a count of zero or less are skipped.
+     * @param pool   Encodes channels alongside the writing thread; null to encode them all on it.
+     */
+    public synchronized void writeCheckpoint(long newWalFence, Collection<ChannelKey> channels,
+                                             ChannelSource source, ForkJoinPool pool) throws IOException {
+        long seq = nextSeq;
+        Path path = segmentPath(seq);
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        List<ChannelKey> order = List.copyOf(channels);
+        List<BlockRef> blocks = new ArrayList<>(order.size());
+        IdList ids = new IdList();
+
+        try (CountingOutputStream counting = new CountingOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 512 * 1024));
+             DataOutputStream out = new DataOutputStream(counting);
+             BlockPipeline<IdList> pipeline = new BlockPipeline<>(order.size(), pool,
+                     pool == null ? 0 : pool.getParallelism(), (i, blockOut) -> encodeBlock(order.get(i), source, blockOut))) {
+            writeHeader(out, seq);
+            CRC32C crc = new CRC32C();
+            OutputStream blockOut = new CheckedOutputStream(counting, crc);
+            for (int i = 0; i < order.size(); i++) {
+                crc.reset();
+                long start = counting.count;
+                IdList blockIds = pipeline.transfer(i, blockOut);
+                blocks.add(new BlockRef(order.get(i), start, checkedLength(counting.count - start), blockIds.size, crc.getValue(), path, FORMAT_VARINTS));
+                ids.addAll(blockIds);
+            }
+            writeFooter(out, counting, blocks);
+        }
+        publishSegment(tmp, path);
+        KeyDictionary.GLOBAL.persist(ids.ids, ids.size);
+
+        List<Segment> next = new ArrayList<>(segments);
+        next.add(new Segment(seq, path, Files.size(path), blocks));
+        commitManifest(next, seq + 1, Math.max(walFence, newWalFence));
+        if (!unreadable.isEmpty()) order.forEach(unreadable::remove); // their newest copy is now this one
+        AbstractEnderDBManager.log("[SegmentStore] Wrote segment {} with {} channels ({} bytes)", seq, blocks.size(), Files.size(path));
+    }
+
+    /**
+     * Merges every segment into one when there are more than {@code maxSegments} of them or when less than
+     * half of the bytes on disk are still live.
+     *
+     * @return true if a compaction ran.
+     */
+    public synchronized boolean compactIfNeeded(int maxSegments, long minBytes) throws IOException {
+        // Pinned segments survive compaction, so they neither count nor make up garbage it could reclaim.
+        List<Segment> pinned = pinnedSegments();
+        int loose = segments.size() - pinned.size();
+        if (loose <= 1) return false;
+        long total = getSizeBytes();
+        boolean tooMany = loose > maxSegments;
+        boolean tooMuchGarbage = pinned.isEmpty() && total > minBytes && getLiveBytes() * 2 < total;
+        if (!tooMany && !tooMuchGarbage) return false;
+        compact();
+        return true;
+    }
+
+    /**
+     * Rewrites all live blocks into a single segment. Tombstones are dropped, since nothing older survives.
+     * A block that fails its CRC is skipped and the channel's previous copy is kept instead, as {@link #load}
+     * would read it.
+     * <p>
+     * Segments holding a copy of an {@link #isUnreadable unreadable} channel are pinned: they stay, listed
+     * before the new segment, and the tombstones they would otherwise bring back are kept. A channel found
+     * to have no readable copy here becomes unreadable and postpones the compaction, so its segments stay.
+     */
+    public synchronized void compact() throws IOException {
+        long seq = nextSeq;
+        Path path = segmentPath(seq);
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        List<Segment> pinned = pinnedSegments();
+        Map<ChannelKey, List<BlockRef>> copies = copiesByChannel();
+        List<BlockRef> blocks = new ArrayList<>(copies.size());
+        Map<Path, FileChannel> sources = new HashMap<>();
+        IdList ids = new IdList();
+
+        try (CountingOutputStream counting = new CountingOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 512 * 1024));
+             DataOutputStream out = new DataOutputStream(counting)) {
+            writeHeader(out, seq);
+            for (List<BlockRef> channelCopies : copies.values()) {
+                ChannelKey channel = channelCopies.get(0).channel;
+                if (isUnreadable(channel)) continue; // stays in its pinned segments
+                BlockRef block = null;
+                byte[] data = null;
+                for (BlockRef copy : channelCopies) {
+                    if (copy.entries == 0) {
+                        block = copy;
+                        break;
+                    }
+                    FileChannel src = sources.get(copy.source);
+                    if (src == null) {
+                        src = FileChannel.open(copy.source, StandardOpenOption.READ);
+                        sources.put(copy.source, src);
+                    }
+                    data = readBlock(src, copy);
+                    if (data != null) {
+                        block = copy;
+                        break;
+                    }
+                    Constants.LOG.error("[{}] CRC mismatch for channel {} in {} while compacting; falling back to an older copy",
+                            name, copy.channel, copy.source.getFileName());
+                }
+                if (block == null) {
+                    unreadable.add(channel);
+                    throw new IOException("No copy of channel " + channel + " passes its CRC; compaction postponed so its segments are kept");
+                }
+                if (block != channelCopies.get(0)) logOlderCopy(channelCopies.get(0), block);
+                long start = counting.count;
+                if (block.entries == 0) {
+                    // Still needed if a pinned segment holds an older copy it has to hide.
+                    if (pinned.stream().anyMatch(s -> s.byChannel.containsKey(channel))) {
+                        blocks.add(new BlockRef(channel, start, 0, 0, new CRC32C().getValue(), path, FORMAT_VARINTS));
+                    }
+                    continue;
+                }
+                if (block.format == FORMAT_VARINTS) {
+                    out.write(data);
+                    blocks.add(new BlockRef(block.channel, start, block.length, block.entries, block.crc, path, FORMAT_VARINTS));
+                } else {
+                    byte[] converted = convertBlock(data, block, ids);
+                    out.write(converted);
+                    CRC32C crc = new CRC32C();
+                    crc.update(converted);
+                    blocks.add(new BlockRef(block.channel, start, converted.length, block.entries, crc.getValue(), path, FORMAT_VARINTS));
+                }
+            }
+            writeFooter(out, counting, blocks);
+        } finally {
+            for (FileChannel ch : sources.values()) {
+                try { ch.close(); } catch (IOException ignored) {}
+            }
+        }
+        publishSegment(tmp, path);
+        KeyDictionary.GLOBAL.persist(ids.ids, ids.size);
+
+        List<Segment> old = new ArrayList<>(segments);
+        old.removeAll(pinned);
+        List<Segment> next = new ArrayList<>(pinned);
+        next.add(new Segment(seq, path, Files.size(path), blocks));
+        commitManifest(next, seq + 1, walFence);
+        for (Segment s : old) Files.deleteIfExists(s.path);
+        Constants.LOG.info("[{}] Compacted {} segments into segment {} ({} channels, {} bytes)",
+                name, old.size(), seq, blocks.size(), Files.size(path));
+    }
+
+    /**
+     * Adds the dictionary IDs the live segments refer to, older copies of a channel included, since
+     * {@link #load} may fall back to them. Blocks failing their CRC are skipped, as nothing reads them.
+     */
+    public synchronized void collectIds(BitSet out) throws IOException {
+        for (Segment seg : segments) {
+            try (FileChannel ch = FileChannel.open(seg.path, StandardOpenOption.READ)) {
+                for (BlockRef block : seg.blocks) {
+                    if (block.format == FORMAT_KEY_BYTES || block.entries == 0) continue; // EDS1 holds the bytes themselves
+                    byte[] data = readBlock(ch, block);
+                    if (data == null) continue;
+                    ByteBuffer in = ByteBuffer.wrap(data);
+                    try {
+                        for (int e = 0; e < block.entries; e++) {
+                            out.set(block.format == FORMAT_VARINTS ? VarInts.getVarInt(in) : in.getInt());
+                            readCount(in, block.format);
+                        }
+                    } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+                        throw new IOException("Malformed block for channel " + block.channel + " in " + block.source.getFileName(), e);
+                    }
+                }
+            }
+        }
+    }
+
+// ==== Internals ====
+
+    /**
+     * Writes a channel's entries as a varint block.
+     *
+     * @return The dictionary IDs written, one per entry.
+     */
+    private static IdList encodeBlock(ChannelKey channel, ChannelSource source, OutputStream out) throws IOException {
+        IdList ids = new IdList();
+        byte[] entry = new byte[2 * VarInts.MAX_LONG_BYTES];
+        source.forEach(channel, (key, count) -> {
+            if (count <= 0) return;
+            int n = VarInts.putVarInt(entry, 0, key.itemId());
+            n = VarInts.putVarLong(entry, n, count);
+            out.write(entry, 0, n);
+            ids.add(key.itemId());
+        });
+        return ids;
+    }
+
+    private Path segmentPath(long seq) {
+        return dir.resolve(String.format("%s-%08d.seg", baseName, seq));
+    }
+
+    /** Every copy of each channel, newest first; older copies are only read if a newer one fails its CRC. */
+    private Map<ChannelKey, List<BlockRef>> copiesByChannel() {
+        Map<ChannelKey, List<BlockRef>> copies = new LinkedHashMap<>();
+        for (int i = segments.size() - 1; i >= 0; i--) {
+            for (BlockRef block : segments.get(i).blocks) {
+                copies.computeIfAbsent(block.channel, k -> new ArrayList<>()).add(block);
+            }
+        }
+        return copies;
+    }
+
+    /** Segments holding a copy of an unreadable channel, oldest first; compaction keeps them. */
+    private List<Segment> pinnedSegments() {
+        if (unreadable.isEmpty()) return List.of();
+        List<Segment> pinned = new ArrayList<>();
+        for (Segment seg : segments) {
+            for (ChannelKey channel : unreadable) {
+                if (seg.byChannel.containsKey(channel)) {
+                    pinned.add(seg);
+                    break;
+                }
+            }
+        }
+        return pinned;
+    }
+
+    /** Newest block per channel. CRCs are only checked when a block is actually read. */
+    private Map<ChannelKey, BlockRef> newestBlocks() {
+        Map<ChannelKey, BlockRef> newest = new LinkedHashMap<>();
+        for (int i = segments.size() - 1; i >= 0; i--) {
+            for (BlockRef block : segments.get(i).blocks) newest.putIfAbsent(block.channel, block);
+        }
+        return newest;
+    }
+
+    private static void writeHeader(DataOutputStream out, long seq) throws IOException {
+        out.writeUTF(SEGMENT_MAGIC);
+        out.writeLong(seq);
+        out.writeLong(System.currentTimeMillis());
+    }
+
+    private static void writeFooter(DataOutputStream out, CountingOutputStream counting, List<BlockRef> blocks) throws IOException {
+        long footerOffset = counting.count;
+        Map<String, Integer> scopes = new LinkedHashMap<>();
+        for (BlockRef b : blocks) scopes.putIfAbsent(b.channel.scope(), scopes.size());
+
+        ByteArrayOutputStream buf = new ByteArrayOutputStream(64 + blocks.size() * 16);
+        DataOutputStream footer = new DataOutputStream(buf);
+        byte[] varint = new byte[VarInts.MAX_LONG_BYTES];
+        footer.write(varint, 0, VarInts.putVarInt(varint, 0, scopes.size()));
+        for (String scope : scopes.keySet()) {
+            byte[] utf8 = scope.getBytes(StandardCharsets.UTF_8);
+            footer.write(varint, 0, VarInts.putVarInt(varint, 0, utf8.length));
+            footer.write(utf8);
+        }
+        footer.write(varint, 0, VarInts.putVarInt(varint, 0, blocks.size()));
+        for (BlockRef b : blocks) {
+            footer.write(varint, 0, VarInts.putVarInt(varint, 0, scopes.get(b.channel.scope())));
+            footer.write(varint, 0, VarInts.putVarInt(varint, 0, VarInts.zigZag(b.channel.freq())));
+            footer.write(varint, 0, VarInts.putVarLong(varint, 0, b.offset));
+            footer.write(varint, 0, VarInts.putVarInt(varint, 0, b.length));
+            footer.write(varint, 0, VarInts.putVarInt(varint, 0, b.entries));
+            footer.writeInt((int) b.crc);
+        }
+        byte[] bytes = buf.toByteArray();
+        CRC32C crc = new CRC32C();
+        crc.update(bytes);
+        out.write(bytes);
+        out.writeInt((int) crc.getValue());
+        out.writeLong(footerOffset);
+        out.writeInt(FOOTER_MAGIC);
+    }
+
+    private Segment readFooter(long seq, Path path) throws IOException {
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = ch.size();
+            ByteBuffer header = ByteBuffer.allocate(6);
+            readFully(ch, header, 0);
+            String magic = new String(header.array(), 2, 4, StandardCharsets.UTF_8);
+            int format = switch (magic) {
+                case SEGMENT_MAGIC -> FORMAT_VARINTS;
+                case SEGMENT_MAGIC_V2 -> FORMAT_FIXED_IDS;
+                case SEGMENT_MAGIC_V1 -> FORMAT_KEY_BYTES;
+                default -> throw new IOException("Bad segment header " + magic + " in " + path.getFileName());
+            };
+
+            int trailerLength = format == FORMAT_VARINTS ? 16 : 12;
+            if (size < trailerLength) throw new IOException("Segment " + path.getFileName() + " has no footer");
+            ByteBuffer trailer = ByteBuffer.allocate(trailerLength);
+            readFully(ch, trailer, size - trailerLength);
+            trailer.flip();
+            int footerCrc = format == FORMAT_VARINTS ? trailer.getInt() : 0;
+            long footerOffset = trailer.getLong();
+            if (trailer.getInt() != FOOTER_MAGIC) throw new IOException("Segment " + path.getFileName() + " has no footer");
+
+            ByteBuffer footer = ByteBuffer.allocate(checkedLength(size - trailerLength - footerOffset));
+            readFully(ch, footer, footerOffset);
+            if (format == FORMAT_VARINTS) {
+                CRC32C crc = new CRC32C();
+                crc.update(footer.array());
+                if ((int) crc.getValue() != footerCrc) throw new IOException("Footer CRC mismatch in segment " + path.getFileName());
+                footer.flip();
+                return new Segment(seq, path, size, readFooterV3(footer, path));
+            }
+            List<BlockRef> blocks = new ArrayList<>();
+            try (DataInputStream dis = new DataInputStream(new ByteArrayInputStream(footer.array()))) {
+                int n = dis.readInt();
+                for (int i = 0; i < n; i++) {
+                    ChannelKey channel = new ChannelKey(dis.readUTF(), dis.readInt());
+                    blocks.add(new BlockRef(channel, dis.readLong(), dis.readInt(), dis.readInt(), dis.readLong(), path, format));
+                }
+            }
+            return new Segment(seq, path, size, blocks);
+        }
+    }
+
+    private static List<BlockRef> readFooterV3(ByteBuffer footer, Path path) throws IOException {
+        try {
+            String[] scopes = new String[VarInts.getVarInt(footer)];
+            for (int i = 0; i < scopes.length; i++) {
+                int length = VarInts.getVarInt(footer);
+                scopes[i] = new String(footer.array(), footer.position(), length, StandardCharsets.UTF_8);
+                footer.position(footer.position() + length);
+            }
+            int n = VarInts.getVarInt(footer);
+            List<BlockRef> blocks = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) {
+                ChannelKey channel = new ChannelKey(scopes[VarInts.getVarInt(footer)], VarInts.unZigZag(VarInts.getVarInt(footer)));
+                long offset = VarInts.getVarLong(footer);
+                int length = VarInts.getVarInt(footer);
+                int entries = VarInts.getVarInt(footer);
+                blocks.add(new BlockRef(channel, offset, length, entries, footer.getInt() & 0xFFFFFFFFL, path, FORMAT_VARINTS));
+            }
+            return blocks;
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+            throw new IOException("Malformed footer in segment " + path.getFileName(), e);
+        }
+    }
+
+    private static AEKey readKey(ByteBuffer data, String scope, int freq, int format) {
+        if (format == FORMAT_VARINTS) return new AEKey(scope, freq, VarInts.getVarInt(data));
+        if (format == FORMAT_FIXED_IDS) return new AEKey(scope, freq, data.getInt());
+        byte[] key = new byte[data.getInt()];
+        data.get(key);
+        return new AEKey(scope, freq, key);
+    }
+
+    private static long readCount(ByteBuffer data, int format) {
+        return format == FORMAT_VARINTS ? VarInts.getVarLong(data) : data.getLong();
+    }
+
+    /** Re-encodes an EDS2 or EDS1 block as varints, collecting the dictionary IDs used. */
+    private static byte[] convertBlock(byte[] data, BlockRef block, IdList ids) throws IOException {
+        ByteBuffer in = ByteBuffer.wrap(data);
+        ByteArrayOutputStream buf = new ByteArrayOutputStream(block.entries * 5);
+        byte[] entry = new byte[2 * VarInts.MAX_LONG_BYTES];
+        try {
+            for (int e = 0; e < block.entries; e++) {
+                AEKey key = readKey(in, block.channel.scope(), block.channel.freq(), block.format);
+                int n = VarInts.putVarInt(entry, 0, key.itemId());
+                n = VarInts.putVarLong(entry, n, readCount(in, block.format));
+                buf.write(entry, 0, n);
+                ids.add(key.itemId());
+            }
+        } catch (BufferUnderflowException | NegativeArraySizeException e) {
+            throw new IOException("Malformed block for channel " + block.channel + " in " + block.source.getFileName(), e);
+        }
+        return buf.toByteArray();
+    }
+
+    /** CRC32C for EDS3 blocks, CRC32 for older ones. */
+    private static Checksum checksumOf(BlockRef block) {
+        return block.format == FORMAT_VARINTS ? new CRC32C() : new CRC32();
+    }
+
+    /** @return A view of the block inside {@code mapped}, or null if the CRC doesn't match. */
+    private static ByteBuffer mappedBlock(ByteBuffer mapped, BlockRef block) throws IOException {
+        ByteBuffer data = mapped.duplicate();
+        data.limit(checkedLength(block.offset + block.length)).position((int) block.offset);
+        data = data.slice();
+        Checksum crc = checksumOf(block);
+        crc.update(data.duplicate());
+        return crc.getValue() == block.crc ? data : null;
+    }
+
+    private static ByteBuffer wrapBlock(byte[] data) {
+        return data == null ? null : ByteBuffer.wrap(data);
+    }
+
+    /** @return The block bytes, or null if the CRC doesn't match. */
+    private static byte[] readBlock(FileChannel ch, BlockRef block) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(block.length);
+        readFully(ch, buf, block.offset);
+        Checksum crc = checksumOf(block);
+        crc.update(buf.array(), 0, block.length);
+        return crc.getValue() == block.crc ? buf.array() : null;
+    }
+
+    private static void readFully(FileChannel ch, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            int n = ch.read(buf, position + buf.position());
+            if (n < 0) throw new EOFException();
+        }
+    }
+
+    private static void publishSegment(Path tmp, Path path) throws IOException {
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+            ch.force(true);
+        }
+        moveAtomically(tmp, path);
+    }
+
+    private void commitManifest(List<Segment> next, long newNextSeq, long newWalFence) throws IOException {
+        Path tmp = manifestPath.resolveSibling(manifestPath.getFileName() + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmp.toFile());
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos))) {
+            out.writeUTF(MANIFEST_MAGIC);
+            out.writeLong(newNextSeq);
+            out.writeLong(newWalFence);
+            out.writeInt(next.size());
+            for (Segment s : next) out.writeLong(s.seq);
+            out.flush();
+            fos.getFD().sync();
+        }
+        moveAtomically(tmp, manifestPath);
+
+        segments = List.copyOf(next);
+        nextSeq = newNextSeq;
+        walFence = newWalFence;
+        hasManifest = true;
+    }
+
+    private static void moveAtomically(Path from, Path to) throws IOException {
+        try {
+            Files.move(from, to, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(from, to, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static int checkedLength(long length) throws IOException {
+        if (length < 0 || length > Integer.MAX_VALUE) throw new IOException("Block too large: " + length + " bytes");
+        return (int) length;
+    }
+
+    private static final class Segment {
+        final long seq;
+        final Path path;
+        final long size;
+        final List<BlockRef> blocks;
+        /** The channels' blocks, for loading a single channel. */
+        final Map<ChannelKey, BlockRef> byChannel;
+
+        Segment(long seq, Path path, long size, List<BlockRef> blocks) {
+            this.seq = seq;
+            this.path = path;
+            this.size = size;
+            this.blocks = blocks;
+            this.byChannel = new HashMap<>(blocks.size() * 2);
+            for (BlockRef block : blocks) byChannel.put(block.channel, block);
+        }
+    }
+
+    /** Thrown when no copy of a channel passes its CRC. */
+    private static final class UnreadableChannelException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        UnreadableChannelException(ChannelKey channel) {
+            super("No readable copy of channel " + channel);
+        }
+    }
+
+    /** @param format How entries and the CRC are encoded: {@link #FORMAT_VARINTS}, fixed-width IDs or key bytes. */
+    private record BlockRef(ChannelKey channel, long offset, int length, int entries, long crc, Path source, int format) {}
+
+    /** Growable int array of the dictionary IDs a segment refers to. */
+    private static final class IdList {
+        int[] ids = new int[64];
+        int size;
+
+        void add(int id) {
+            if (size == ids.length) ids = Arrays.copyOf(ids, size * 2);
+            ids[size++] = id;
+        }
+
+        void addAll(IdList other) {
+            if (size + other.size > ids.length) ids = Arrays.copyOf(ids, Math.max(size + other.size, size * 2));
+            System.arraycopy(other.ids, 0, ids, size, other.size);
+            size += other.size;
+        }
+    }
+
+    private static final class CountingOutputStream extends FilterOutputStream {
+        long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package com.sts15.enderdrives.db;
+
+import appeng.api.stacks.AEFluidKey;
+import appeng.api.stacks.AEItemKey;
+import com.sts15.enderdrives.inventory.EnderDiskInventory;
+import com.sts15.enderdrives.inventory.EnderFluidDiskInventory;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * Size-bounded cache from an AE2 key to its canonical serialized NBT bytes (the bytes the DBs store
+ * the key under).
+ * <p>
+ * Eviction is a second-chance sweep: a hit marks the entry as referenced, and once the cache grows
+ * past its bound one thread clears unreferenced entries until it is back to 7/8 of the bound.
+ * <p>
+ * The returned arrays are shared between callers and must never be modified.
+ *
+ * @param <K> The AE2 key type (e.g. AEItemKey).
+ */
+public class SerializedKeyCache<K> {
+
+    /** Bound until the server config is read; the DB managers {@link #resize} the caches on init. */
+    private static final int DEFAULT_MAX_ENTRIES = StorageConfig.defaults().keyCacheSize();
+
+    /** Item keys, serialized as a 1-count stack (same bytes EnderDiskInventory and TapeDiskItem produce). */
+    public static final SerializedKeyCache<AEItemKey> ITEMS =
+            new SerializedKeyCache<>(DEFAULT_MAX_ENTRIES, k -> EnderDiskInventory.serializeItemStackToBytes(k.toStack(1)));
+
+    /** Fluid keys, serialized as a 1 mB stack. */
+    public static final SerializedKeyCache<AEFluidKey> FLUIDS =
+            new SerializedKeyCache<>(DEFAULT_MAX_ENTRIES, k -> EnderFluidDiskInventory.serializeFluidStackToBytes(k.toStack(1)));
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private final ConcurrentHashMap<K, Node> map = new ConcurrentHashMap<>();
+    private final Function<K, byte[]> serializer;
+    private volatile int maxEntries;
+    private final ReentrantLock evictLock = new ReentrantLock();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public SerializedKeyCache(int maxEntries, Function<K, byte[]> serializer) {
+        this.maxEntries = Math.max(1, maxEntries);
+        this.serializer = serializer;
+    }
+
+    /**
+     * Returns the serialized bytes for {@code key}, serializing on a miss.
+     * Failed serializations (empty arrays) are returned but not cached.
+     */
+    public byte[] get(K key) {
+        if (key == null) return EMPTY;
+        Node node = map.get(key);
+        if (node != null) {
+            node.referenced = true;
+            hits.increment();
+            return node.bytes;
+        }
+        misses.increment();
+        byte[] bytes = serializer.apply(key);
+        if (bytes == null || bytes.length == 0) return EMPTY;
+
+        Node existing = map.putIfAbsent(key, new Node(bytes));
+        if (existing != null) return existing.bytes;
+        if (map.size() > maxEntries) evict();
+        return bytes;
+    }
+
+    /** Changes the bound, e.g. to the configured key cache size; a smaller one takes effect on the next miss. */
+    public void resize(int maxEntries) {
+        this.maxEntries = Math.max(1, maxEntries);
+    }
+
+    private void evict() {
+        if (!evictLock.tryLock()) return; // someone else is already sweeping
+        try {
+            int bound = maxEntries;
+            int target = bound - (bound >> 3);
+            // Two passes at most: the first clears reference bits, the second removes what stayed cold.
+            for (int pass = 0; pass < 2 && map.size() > target; pass++) {
+                Iterator<Node> it = map.values().iterator();
+                while (it.hasNext() && map.size() > target) {
+                    Node node = it.next();
+                    if (node.referenced) {
+                        node.referenced = false;
+                    } else {
+                        it.remove();
+                        evictions.increment();
+                    }
+                }
+            }
+        } finally {
+            evictLock.unlock();
+        }
+    }
+
+    public void clear() {
+        map.clear();
+    }
+
+    public int size() {
+        return map.size();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public String describe() {
+        long h = getHits(), m = getMisses();
+        double rate = h + m == 0 ? 0.0 : (h * 100.0) / (h + m);
+        return String.format("%d/%d entries, %d hits, %d misses (%.1f%%), %d evicted",
+                size(), maxEntries, h, m, rate, getEvictions());
+    }
+
+    private static final class Node {
+        final byte[] bytes;
+        volatile boolean referenced;
+
+        Node(byte[] bytes) {
+            this.bytes = bytes;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.sts15.enderdrives.db;
+
+import com.sts15.enderdrives.config.serverConfig;
+
+/**
+ * Settings of the storage core: the {@link StorageEngine}s, their shared WAL and commit thread, and the tape store.
+ * <p>
+ * On a server they come from {@link serverConfig}; {@link #defaults()} holds the same defaults without touching
+ * the config spec, for running the core outside a server.
+ */
+public record StorageConfig(
+        StorageMode storageMode,
+        int keyCacheSize,
+        int mergeBufferThreshold,
+        int maxSegments,
+        long channelEvictTimeoutMs,
+        long channelRamBudgetBytes,
+        boolean asyncStartup,
+        boolean lazyOwnerScopes,
+        long minWalCommitMs,
+        long maxWalCommitMs,
+        long minDbCommitMs,
+        long maxDbCommitMs,
+        WalWriter.FsyncPolicy walFsyncPolicy,
+        long walFsyncIntervalMs,
+        int walQueueCapacity,
+        WalWriter.OverflowPolicy walOverflowPolicy,
+        long walMergeWindowMs,
+        boolean debugLog,
+        int tapeFlushThreshold,
+        long tapeFlushIntervalMs,
+        long tapeEvictTimeoutMs,
+        long tapeByteLimit,
+        boolean tapeDebugLog) {
+
+    /** Reads the loaded server config. */
+    public static StorageConfig fromServerConfig() {
+        return new StorageConfig(
+                serverConfig.END_DB_STORAGE_MODE.get(),
+                serverConfig.END_DB_KEY_CACHE_SIZE.get(),
+                serverConfig.END_DB_MERGE_BUFFER_THRESHOLD.get(),
+                serverConfig.END_DB_MAX_SEGMENTS.get(),
+                serverConfig.END_DB_CHANNEL_EVICT_TIMEOUT_MS.get(),
+                serverConfig.END_DB_CHANNEL_RAM_BUDGET_MB.get() * 1024L * 1024L,
+                serverConfig.END_DB_ASYNC_STARTUP.get(),
+                serverConfig.END_DB_LAZY_OWNER_SCOPES.get(),
+                serverConfig.END_DB_MIN_COMMIT_INTERVAL_MS.get(),
+                serverConfig.END_DB_MAX_COMMIT_INTERVAL_MS.get(),
+                serverConfig.END_DB_MIN_DB_COMMIT_INTERVAL_MS.get(),
+                serverConfig.END_DB_MAX_DB_COMMIT_INTERVAL_MS.get(),
+                serverConfig.END_DB_WAL_FSYNC_POLICY.get(),
+                serverConfig.END_DB_WAL_FSYNC_INTERVAL_MS.get(),
+                serverConfig.END_DB_WAL_QUEUE_CAPACITY.get(),
+                serverConfig.END_DB_WAL_OVERFLOW_POLICY.get(),
+                serverConfig.END_DB_WAL_MERGE_WINDOW_MS.get(),
+                serverConfig.END_DB_DEBUG_LOG.get(),
+                serverConfig.TAPE_DB_FLUSH_THRESHOLD.get(),
+                serverConfig.TAPE_DB_FLUSH_INTERVAL.get(),
+                serverConfig.TAPE_DB_RAM_EVICT_TIMEOUT.get(),
+                serverConfig.TAPE_DISK_BYTE_LIMIT.get(),
+                serverConfig.TAPE_DB_DEBUG_LOG.get());
+    }
+
+    /** The defaults of {@link serverConfig}. Keep them in step. */
+    public static StorageConfig defaults() {
+        return new StorageConfig(StorageMode.HEAP, 4096, 100, 16, 0, 0, false, false,
+                2500, 5000, 5000, 60000,
+                WalWriter.FsyncPolicy.PER_BATCH, 1000, 65536, WalWriter.OverflowPolicy.COALESCE, 200,
+                false,
+                500, 5000, 300_000, 292144, false);
+    }
+
+    public StorageConfig withStorageMode(StorageMode mode) {
+        return new StorageConfig(mode, keyCacheSize, mergeBufferThreshold, maxSegments,
+                channelEvictTimeoutMs, channelRamBudgetBytes, asyncStartup, lazyOwnerScopes, minWalCommitMs, maxWalCommitMs, minDbCommitMs, maxDbCommitMs,
+                walFsyncPolicy, walFsyncIntervalMs, walQueueCapacity, walOverflowPolicy, walMergeWindowMs, debugLog,
+                tapeFlushThreshold, tapeFlushIntervalMs, tapeEvictTimeoutMs, tapeByteLimit, tapeDebugLog);
+    }
+
+    public StorageConfig withCheckpointIntervals(long minMs, long maxMs) {
+        return new StorageConfig(storageMode, keyCacheSize, mergeBufferThreshold, maxSegments,
+                channelEvictTimeoutMs, channelRamBudgetBytes, asyncStartup, lazyOwnerScopes, minWalCommitMs, maxWalCommitMs, minMs, maxMs,
+                walFsyncPolicy, walFsyncIntervalMs, walQueueCapacity, walOverflowPolicy, walMergeWindowMs, debugLog,
+                tapeFlushThreshold, tapeFlushIntervalMs, tapeEvictTimeoutMs, tapeByteLimit, tapeDebugLog);
+    }
+
+    public StorageConfig withMaxSegments(int segments) {
+        return new StorageConfig(storageMode, keyCacheSize, mergeBufferThreshold, segments,
+                channelEvictTimeoutMs, channelRamBudgetBytes, asyncStartup, lazyOwnerScopes, minWalCommitMs, maxWalCommitMs, minDbCommitMs, maxDbCommitMs,
+                walFsyncPolicy, walFsyncIntervalMs, walQueueCapacity, walOverflowPolicy, walMergeWindowMs, debugLog,
+                tapeFlushThreshold, tapeFlushIntervalMs, tapeEvictTimeoutMs, tapeByteLimit, tapeDebugLog);
+    }
+
+    public StorageConfig withChannelResidency(long evictTimeoutMs, long ramBudgetBytes) {
+        return new StorageConfig(storageMode, keyCacheSize, mergeBufferThreshold, maxSegments,
+                evictTimeoutMs, ramBudgetBytes, asyncStartup, lazyOwnerScopes, minWalCommitMs, maxWalCommitMs, minDbCommitMs, maxDbCommitMs,
+                walFsyncPolicy, walFsyncIntervalMs, walQueueCapacity, walOverflowPolicy, walMergeWindowMs, debugLog,
+                tapeFlushThreshold, tapeFlushIntervalMs, tapeEvictTimeoutMs, tapeByteLimit, tapeDebugLog);
+    }
+
+    public StorageConfig withAsyncStartup(boolean async) {
+        return new StorageConfig(storageMode, keyCacheSize, mergeBufferThreshold, maxSegments,
+                channelEvictTimeoutMs, channelRamBudgetBytes, async, lazyOwnerScopes, minWalCommitMs, maxWalCommitMs, minDbCommitMs, maxDbCommitMs,
+                walFsyncPolicy, walFsyncIntervalMs, walQueueCapacity, walOverflowPolicy, walMergeWindowMs, debugLog,
+                tapeFlushThreshold, tapeFlushIntervalMs, tapeEvictTimeoutMs, tapeByteLimit, tapeDebugLog);
+    }
+
+    public StorageConfig withLazyOwnerScopes(boolean lazy) {
+        return new StorageConfig(storageMode, keyCacheSize, mergeBufferThreshold, maxSegments,
+                channelEvictTimeoutMs, channelRamBudgetBytes, asyncStartup, lazy, minWalCommitMs, maxWalCommitMs, minDbCommitMs, maxDbCommitMs,
+                walFsyncPolicy, walFsyncIntervalMs, walQueueCapacity, walOverflowPolicy, walMergeWindowMs, debugLog,
+                tapeFlushThreshold, tapeFlushIntervalMs, tapeEvictTimeoutMs, tapeByteLimit, tapeDebugLog);
+    }
+
+    /**
+     * Whether deltas are merged in RAM before they reach the WAL; a merge window of 0 turns it off. See
+     * {@link #mergesPerWalBatch} for how long they are merged.
+     */
+    public boolean mergesWalDeltas() {
+        return walMergeWindowMs > 0;
+    }
+
+    /**
+     * Whether merged deltas go to the WAL each time its writer starts a batch, rather than once per merge window.
+     * So it is with {@link WalWriter.FsyncPolicy#PER_BATCH}: deltas only merge while the previous batch is written
+     * and synced, which is as long as they would have waited in the WAL queue anyway, so merging costs no
+     * durability there.
+     */
+    public boolean mergesPerWalBatch() {
+        return mergesWalDeltas() && walFsyncPolicy == WalWriter.FsyncPolicy.PER_BATCH;
+    }
+
+    public StorageConfig withWal(WalWriter.FsyncPolicy fsyncPolicy, long mergeWindowMs) {
+        return new StorageConfig(storageMode, keyCacheSize, mergeBufferThreshold, maxSegments,
+                channelEvictTimeoutMs, channelRamBudgetBytes, asyncStartup, lazyOwnerScopes, minWalCommitMs, maxWalCommitMs, minDbCommitMs, maxDbCommitMs,
+                fsyncPolicy, walFsyncIntervalMs, walQueueCapacity, walOverflowPolicy, mergeWindowMs, debugLog,
+                tapeFlushThreshold, tapeFlushIntervalMs, tapeEvictTimeoutMs, tapeByteLimit, tapeDebugLog);
+    }
+
+    public StorageConfig withTapeByteLimit(long limit) {
+        return new StorageConfig(storageMode, keyCacheSize, mergeBufferThreshold, maxSegments,
+                channelEvictTimeoutMs, channelRamBudgetBytes, asyncStartup, lazyOwnerScopes, minWalCommitMs, maxWalCommitMs, minDbCommitMs, maxDbCommitMs,
+                walFsyncPolicy, walFsyncIntervalMs, walQueueCapacity, walOverflowPolicy, walMergeWindowMs, debugLog,
+                tapeFlushThreshold, tapeFlushIntervalMs, tapeEvictTimeoutMs, limit, tapeDebugLog);
+    }
+}
@@ -0,0 +1,744 @@
+package com.sts15.enderdrives.db;
+
+import com.sts15.enderdrives.Constants;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.DoubleSupplier;
+
+/**
+ * What all {@link StorageEngine}s share: one group-commit WAL, one commit thread with its
+ * {@link CommitScheduler}, and one worker pool. Adding a key type therefore adds no threads or fsyncs.
+ * <p>
+ * WAL records are tagged with their engine's id. Checkpoints cut the WAL once for every engine, while
+ * each engine keeps its own segments and fence; on replay an engine applies its records from the
+ * generations above its own fence, and rotated generations are only deleted once every engine covers them.
+ * <p>
+ * {@link #initAsync} loads in the background instead: the core accepts access as soon as the WAL is read,
+ * and channels are loaded one by one, by the loader or on first access. See {@link #load} for the phases.
+ * <p>
+ * The commit thread also pages out cold channels of every engine, by idle timeout and by one RAM budget
+ * shared by all engines; see {@link #evictColdChannels}.
+ * <p>
+ * The core knows nothing about the server: files go where its {@link StoragePaths} say, settings come from
+ * its {@link StorageConfig}, and tick health from a probe. {@link StorageEngines} binds one to the running
+ * server; anything else (benchmarks, tools) can build its own. The {@link KeyDictionary} is process-wide,
+ * so only one core may be started at a time.
+ *
+ * <pre>
+ * record: byte engineId, UTF scope, int freq, int len, byte[len] key, long delta
+ * </pre>
+ */
+public final class StorageCore {
+
+    private static final String WAL_NAME = "enderdrives_shared.wal";
+    private static final long EVICT_CHECK_INTERVAL_MS = 10_000;
+    /** Channels used more recently than this are kept even over the RAM budget, so a busy set doesn't thrash. */
+    private static final long MIN_IDLE_BEFORE_EVICT_MS = 60_000;
+
+    private final StoragePaths paths;
+    /** Replaced only by {@link #configure}, while stopped. */
+    private volatile StorageConfig config;
+    /** Every engine. A record whose tag is not listed here can't be replayed, so never drop one. */
+    private final List<StorageEngine<?, ?>> engines;
+    /** Worker pool for warm-up, prefetch and query post-processing; exists from startup until shutdown. */
+    private volatile ForkJoinPool sharedPool = null;
+    /** Adapts the WAL flush and checkpoint intervals to write rate, WAL size and tick health. */
+    private volatile CommitScheduler scheduler;
+    private final DoubleSupplier tickProbe;
+    private final AtomicLong totalCommits = new AtomicLong(0);
+    /** Serializes checkpoints; taken before the stripes, never while holding one. */
+    private final Object checkpointLock = new Object();
+
+    private File currentWAL;
+    private volatile WalWriter walWriter;
+    private long walGeneration = 0;
+    private volatile boolean started = false, running = false, walFlushRequested = false;
+    /** Whether engines serve reads and writes; during a background startup, before {@link #started}. */
+    private volatile boolean accepting = false;
+    /** What startup is doing, for logs and stats. */
+    private volatile String startupPhase = "not started";
+    /** Whether the last startup threw; engines then stay closed until the next {@link #init}. */
+    private volatile boolean failed = false;
+    private final AtomicLong channelsToLoad = new AtomicLong(), channelsLoaded = new AtomicLong();
+    private Thread loaderThread = null;
+    private Thread commitThread = null;
+    private Thread shutdownHook = null;
+    private long lastDbCommitTime  = System.currentTimeMillis();
+    private long lastWalCommitTime = System.currentTimeMillis();
+    private long lastEvictCheckTime = System.currentTimeMillis();
+
+    /**
+     * @param engines   Every engine, each attached to this core for good.
+     * @param tickProbe Mean of the server's recent tick times in ms; {@code () -> 0} without a server.
+     */
+    public StorageCore(StoragePaths paths, StorageConfig config, List<StorageEngine<?, ?>> engines, DoubleSupplier tickProbe) {
+        this.paths = paths;
+        this.engines = List.copyOf(engines);
+        this.tickProbe = tickProbe;
+        Set<Byte> ids = new HashSet<>();
+        for (StorageEngine<?, ?> engine : this.engines) {
+            if (!ids.add(engine.id())) throw new IllegalStateException("Duplicate storage engine id " + engine.id());
+        }
+        for (StorageEngine<?, ?> engine : this.engines) engine.attach(this);
+        applyConfig(config);
+    }
+
+    /**
+     * Replaces the settings of this core and its engines, e.g. with the server config of the world being
+     * loaded. Only while stopped; the next {@link #init} or {@link #initAsync} uses them.
+     *
+     * @return false if the core is started or loading, which keeps its current settings.
+     */
+    public synchronized boolean configure(StorageConfig config) {
+        if (started || loaderThread != null) return false;
+        for (StorageEngine<?, ?> engine : engines) engine.configure(config);
+        applyConfig(config);
+        return true;
+    }
+
+    private void applyConfig(StorageConfig config) {
+        this.config = config;
+        this.scheduler = new CommitScheduler(config.minWalCommitMs(), config.maxWalCommitMs(),
+                config.minDbCommitMs(), config.maxDbCommitMs(), tickProbe);
+        AbstractEnderDBManager.setDebugLog(config.debugLog());
+    }
+
+    public StorageConfig config() { return config; }
+    public boolean isStarted() { return started; }
+    /** Whether engines serve access: startup got far enough and the WAL isn't {@link WalWriter#isFailing failing}. */
+    public boolean isAccepting() {
+        WalWriter writer = walWriter;
+        return accepting && (writer == null || !writer.isFailing());
+    }
+    public boolean isFailed() { return failed; }
+
+// ==== Lifecycle ====
+
+    /**
+     * Loads every engine and replays the WAL, then starts the shared commit thread. Calling it again
+     * while started does nothing.
+     */
+    public synchronized void init() {
+        if (started || loaderThread != null) return;
+        load(false);
+        addShutdownHook();
+    }
+
+    /**
+     * Starts loading on a background thread and returns right away; see {@link #load}. Does nothing if the
+     * core is started or already loading.
+     */
+    public synchronized void initAsync() {
+        if (started || loaderThread != null) return;
+        loaderThread = new Thread(() -> load(true), "EnderDB-Loader");
+        loaderThread.setDaemon(true);
+        loaderThread.start();
+        addShutdownHook();
+    }
+
+    private void addShutdownHook() {
+        if (shutdownHook == null) {
+            shutdownHook = new Thread(this::shutdown);
+            Runtime.getRuntime().addShutdownHook(shutdownHook);
+        }
+    }
+
+    /**
+     * Startup, in phases:
+     * <ol>
+     *     <li>the key dictionary;</li>
+     *     <li>each engine's segments: all of their entries, or only the footers in the background or with
+     *     {@link StorageConfig#lazyOwnerScopes};</li>
+     *     <li>the WALs: replayed, or held back per channel if only footers were read. The live WAL is rotated
+     *     away and a new one opened, so from here on writes are durable; a background startup now accepts access
+     *     and starts the commit thread, whose checkpoints wait for startup to finish;</li>
+     *     <li>if only footers were read: loading the channels, with their held-back records, on the shared pool
+     *     in the background or the startup pool otherwise. Owned channels are skipped if they are lazy; a
+     *     channel accessed first is loaded on demand;</li>
+     *     <li>a checkpoint of whatever was replayed, then the commit thread and key warm-up.</li>
+     * </ol>
+     * Must not synchronize on the core, so {@link #shutdown} can wait for a background run.
+     */
+    private void load(boolean background) {
+        long start = System.currentTimeMillis();
+        failed = false;
+        sharedPool = AbstractEnderDBManager.newSharedPool();
+        try {
+            Path dataDir = paths.root();
+            Files.createDirectories(dataDir);
+
+            currentWAL = dataDir.resolve(WAL_NAME).toFile();
+            phase("loading key dictionary");
+            KeyDictionary.GLOBAL.open(dataDir.resolve("enderdrives.dict"), config.storageMode());
+
+            int replayed = 0;
+            boolean footersOnly = background || config.lazyOwnerScopes();
+            channelsToLoad.set(0);
+            channelsLoaded.set(0);
+            ForkJoinPool startupPool = background ? sharedPool : AbstractEnderDBManager.newStartupPool();
+            try {
+                phase("opening segments");
+                for (StorageEngine<?, ?> engine : engines) {
+                    if (footersOnly) {
+                        engine.openDeferred(dataDir, startupPool);
+                        replayed += engine.deferLegacyWALs();
+                    } else {
+                        engine.open(dataDir, startupPool);
+                        // Written before the WAL was shared, so older than anything in it.
+                        replayed += engine.replayLegacyWALs(startupPool);
+                    }
+                }
+                phase("reading WAL");
+                replayed += replayWALs(footersOnly ? null : startupPool);
+                openWALStream();
+
+                if (footersOnly) {
+                    List<List<ChannelKey>> toLoad = new ArrayList<>();
+                    for (StorageEngine<?, ?> engine : engines) {
+                        List<ChannelKey> keys = engine.startupChannels(config.lazyOwnerScopes());
+                        toLoad.add(keys);
+                        channelsToLoad.addAndGet(keys.size());
+                    }
+                    if (background) {
+                        accepting = true;
+                        startBackgroundCommit();
+                        Constants.LOG.info("EnderDB accepting access after {} ms; loading {} channels in the background",
+                                System.currentTimeMillis() - start, channelsToLoad.get());
+                    }
+                    phase("loading channels");
+                    for (int i = 0; i < engines.size(); i++) {
+                        engines.get(i).loadChannels(toLoad.get(i), startupPool, this::channelLoaded);
+                    }
+                }
+            } finally {
+                if (!background) startupPool.shutdown();
+            }
+            accepting = true;
+            started = true;
+            // Checkpoint right away so replayed records and migrated legacy data are never only in memory.
+            if (replayed > 0 || isDirty()) commitDatabase();
+            if (!background) startBackgroundCommit();
+            for (StorageEngine<?, ?> engine : engines) engine.startWarmup(sharedPool);
+            phase("ready");
+            if (background) Constants.LOG.info("EnderDB loaded in {} ms ({} WAL records replayed)", System.currentTimeMillis() - start, replayed);
+        } catch (Exception e) {
+            String failedPhase = startupPhase;
+            Constants.LOG.error("EnderDB failed to start while {} (WAL generation {}); disks stay offline until the world is reloaded",
+                    failedPhase, walGeneration, e);
+            abortStartup();
+            phase("failed while " + failedPhase);
+        }
+    }
+
+    /**
+     * Undoes a startup that threw: stops accepting access, stops the commit thread a background startup
+     * may have started and closes the WAL, leaving the files as they were for the next attempt.
+     */
+    private void abortStartup() {
+        accepting = false;
+        started = false;
+        failed = true;
+        stopCommitThread();
+        stopSharedPool();
+        lockAll();
+        try {
+            closeWALStream();
+            for (StorageEngine<?, ?> engine : engines) engine.clearRAMCaches();
+        } finally {
+            unlockAll();
+        }
+    }
+
+    private void phase(String phase) {
+        startupPhase = phase;
+        log("[startup] {}", phase);
+    }
+
+    /** Logs background loading progress every 10%. */
+    private void channelLoaded() {
+        long total = channelsToLoad.get();
+        long done = channelsLoaded.incrementAndGet();
+        long step = Math.max(1, total / 10);
+        if (done % step == 0 || done == total) {
+            Constants.LOG.info("EnderDB loaded {}/{} channels ({}%)", done, total, total == 0 ? 100 : done * 100 / total);
+        }
+    }
+
+    /** Startup progress, e.g. "loading channels 1200/5000", "ready" or "failed while reading WAL". */
+    public String describeStartup() {
+        String phase = startupPhase;
+        if (!"loading channels".equals(phase)) return phase;
+        return phase + " " + channelsLoaded.get() + "/" + channelsToLoad.get();
+    }
+
+    /**
+     * Flushes and checkpoints every engine, closes the WAL and drops the RAM caches.
+     */
+    public synchronized void shutdown() {
+        Thread loader = loaderThread;
+        if (loader != null && loader != Thread.currentThread()) {
+            try {
+                loader.join(); // a background startup finishes first, so it never races the teardown
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        loaderThread = null;
+        if (!started) return;
+        running = false;
+
+        flushWALQueue();
+        commitDatabase();
+        stopSharedPool(); // after the checkpoint, which writes on it
+        lockAll();
+        try {
+            closeWALStream();
+            for (StorageEngine<?, ?> engine : engines) engine.clearRAMCaches();
+        } finally {
+            unlockAll();
+        }
+        started = false;
+        accepting = false;
+        phase("not started");
+
+        if (shutdownHook != null && Thread.currentThread() != shutdownHook) {
+            try {
+                Runtime.getRuntime().removeShutdownHook(shutdownHook);
+            } catch (IllegalStateException ignored) {} // the JVM is already shutting down
+            shutdownHook = null;
+        }
+        stopCommitThread();
+    }
+
+    /** Lets queued warm-up and prefetch tasks finish, then drops the pool; {@link #pool} falls back meanwhile. */
+    private void stopSharedPool() {
+        ForkJoinPool pool = sharedPool;
+        if (pool == null) return;
+        sharedPool = null;
+        pool.shutdown();
+        try {
+            if (!pool.awaitTermination(5, TimeUnit.SECONDS)) Constants.LOG.warn("EnderDB worker pool still busy after 5 s; leaving it to finish");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void stopCommitThread() {
+        running = false;
+        if (commitThread != null) {
+            LockSupport.unpark(commitThread);
+            try {
+                commitThread.join(500);
+            } catch (InterruptedException ignored) {}
+            commitThread = null;
+        }
+    }
+
+// ==== Checkpoints ====
+
+    /**
+     * Checkpoints every engine that changed since the last checkpoint, each into a new segment of its own,
+     * then drops the WAL generations all engines cover.
+     * <p>
+     * Every engine's stripes are only held to cut the WAL once and take the copy-on-write snapshots; the
+     * segments are written while saves carry on.
+     */
+    public void commitDatabase() {
+        synchronized (checkpointLock) {
+            if (!started) return;
+            long fence;
+            long rotation;
+            WalWriter writer;
+            lockAll();
+            try {
+                boolean changed = false;
+                for (StorageEngine<?, ?> engine : engines) changed |= engine.beginCheckpoint();
+                if (!changed) return;
+                fence = ++walGeneration;
+                writer = walWriter;
+                // Merged deltas belong to the state being checkpointed, so they must land before the cut.
+                flushMergeBuffers(true);
+                try {
+                    rotation = requestWALRotation(writer, fence);
+                } catch (IOException e) {
+                    engines.forEach(StorageEngine::abortCheckpoint);
+                    Constants.LOG.error("EnderDB checkpoint at WAL generation {} failed to rotate the WAL; retrying on the next one", fence, e);
+                    return;
+                }
+                engines.forEach(StorageEngine::publishCheckpoint);
+            } finally {
+                unlockAll();
+            }
+            try {
+                if (writer != null) writer.awaitRotation(rotation, 10_000);
+            } catch (IOException e) {
+                engines.forEach(StorageEngine::abortCheckpoint);
+                Constants.LOG.error("EnderDB checkpoint at WAL generation {} gave up waiting for the WAL rotation; retrying on the next one", fence, e);
+                return;
+            }
+            long covered = Long.MAX_VALUE;
+            for (StorageEngine<?, ?> engine : engines) covered = Math.min(covered, engine.writeCheckpoint(fence));
+            deleteRotatedWALs(covered);
+        }
+    }
+
+    /**
+     * Loads every channel of a scope that isn't in RAM, in all engines, on the worker pool; see
+     * {@link StorageEngine#prefetchScope}. Channels idle again later are paged back out as usual.
+     */
+    public void prefetchScope(String scope) {
+        for (StorageEngine<?, ?> engine : engines) engine.prefetchScope(scope);
+    }
+
+    /**
+     * Pages out the channels idle for longer than the eviction timeout, then, while the resident channels
+     * of all engines are over the RAM budget, the least recently used of the rest. Only channels with
+     * nothing unwritten go, so nothing has to be written here; dirty ones follow once a checkpoint has
+     * written them. Runs under the checkpoint lock, so no checkpoint is in flight meanwhile.
+     */
+    public void evictColdChannels() {
+        long timeout = config.channelEvictTimeoutMs();
+        long budget = config.channelRamBudgetBytes();
+        if (timeout <= 0 && budget <= 0) return;
+        synchronized (checkpointLock) {
+            if (!started) return;
+            long now = System.currentTimeMillis();
+            long resident = 0;
+            List<StorageEngine.Clean> clean = new ArrayList<>();
+            for (StorageEngine<?, ?> engine : engines) {
+                engine.collectClean(clean);
+                resident += engine.getResidentBytes();
+            }
+            clean.sort(Comparator.comparingLong(StorageEngine.Clean::lastAccess));
+
+            int evicted = 0;
+            long freed = 0;
+            for (StorageEngine.Clean channel : clean) {
+                long idle = now - channel.lastAccess();
+                boolean expired = timeout > 0 && idle >= timeout;
+                boolean overBudget = budget > 0 && resident - freed > budget && idle >= MIN_IDLE_BEFORE_EVICT_MS;
+                if (!expired && !overBudget) break; // oldest first, so the rest are newer still
+                long bytes = channel.engine().pageOut(channel.key());
+                if (bytes > 0) {
+                    evicted++;
+                    freed += bytes;
+                }
+            }
+            if (evicted > 0) log("[evictColdChannels] Paged out {} channels (~{} KB)", evicted, freed / 1024);
+        }
+    }
+
+    /**
+     * Merges each engine's segments if needed, then rewrites the key dictionary with only the IDs the segments
+     * of all engines still refer to. Runs under the checkpoint lock: segments persist their IDs before they are
+     * published, so none may be half-written while the dictionary is cut down.
+     */
+    public void compactIfNeeded() {
+        synchronized (checkpointLock) {
+            if (!started) return;
+            boolean compacted = false;
+            for (StorageEngine<?, ?> engine : engines) compacted |= engine.compactIfNeeded();
+            if (compacted) shrinkDictionary();
+        }
+    }
+
+    private void shrinkDictionary() {
+        try {
+            BitSet live = new BitSet();
+            for (StorageEngine<?, ?> engine : engines) engine.collectSegmentIds(live);
+            int dropped = KeyDictionary.GLOBAL.retain(live);
+            if (dropped > 0) Constants.LOG.info("EnderDB dropped {} unused keys from the key dictionary", dropped);
+        } catch (IOException e) {
+            Constants.LOG.error("Failed to shrink the EnderDB key dictionary", e);
+        }
+    }
+
+    private boolean isDirty() {
+        for (StorageEngine<?, ?> engine : engines) {
+            if (engine.isDirty()) return true;
+        }
+        return false;
+    }
+
+    /** Locks every stripe of every engine, always in the same order. */
+    private void lockAll() {
+        for (StorageEngine<?, ?> engine : engines) engine.lockAll();
+    }
+
+    private void unlockAll() {
+        for (int i = engines.size() - 1; i >= 0; i--) engines.get(i).unlockAll();
+    }
+
+// ==== Background Thread Handling ====
+
+    /**
+     * Starts the commit thread that flushes the engines' merge buffers to the WAL and checkpoints them.
+     * WAL records are written by the {@link WalWriter}'s own group-commit thread as soon as they are queued.
+     */
+    private void startBackgroundCommit() {
+        if (commitThread != null && commitThread.isAlive()) {
+            log("[startBackgroundCommit] Commit thread already running; skipping new launch.");
+            return;
+        }
+
+        running = true;
+
+        commitThread = new Thread(() -> {
+            log("[startBackgroundCommit] Background DB commit thread starting...");
+            try {
+                while (running) {
+                    try {
+                        long now = System.currentTimeMillis();
+                        long deltas = 0;
+                        for (StorageEngine<?, ?> engine : engines) deltas += engine.getDeltasAdded();
+                        scheduler.sample(now, deltas);
+
+                        long walWindow = Math.min(scheduler.walInterval(), config.walMergeWindowMs());
+                        // With per-batch merging the WAL writer flushes the buffers itself.
+                        if (!config.mergesPerWalBatch() && (walFlushRequested || now - lastWalCommitTime >= walWindow)) {
+                            flushMergeBuffers(false);
+                            lastWalCommitTime = now;
+                        }
+
+                        if (started && isDirty() && now - lastDbCommitTime >= scheduler.checkpointInterval(currentWalBytes())) {
+                            log("[startBackgroundCommit] DB checkpoint");
+                            commitDatabase();
+                            lastDbCommitTime = now;
+                            totalCommits.incrementAndGet();
+                            log("[startBackgroundCommit] DB committed, totalCommits={}", totalCommits.get());
+                            compactIfNeeded();
+                        }
+
+                        if (now - lastEvictCheckTime >= EVICT_CHECK_INTERVAL_MS) {
+                            evictColdChannels();
+                            lastEvictCheckTime = now;
+                        }
+
+                        LockSupport.parkNanos(Math.max(10, Math.min(100, walWindow)) * 1_000_000L); // woken early by requestWalFlush
+                    } catch (Exception e) {
+                        Constants.LOG.error("Background commit error", e);
+                    }
+                }
+            } catch (Exception e) {
+                Constants.LOG.error("[EnderDB] WAL Commit thread crashed", e);
+            }
+        }, "EnderDB-CommitThread");
+
+        commitThread.setDaemon(true);
+        commitThread.start();
+    }
+
+// ==== WAL Handling & Processing ====
+
+    /**
+     * Emits every engine's buffered deltas; see {@link StorageEngine#flushMergeBuffer}.
+     */
+    private void flushMergeBuffers(boolean all) {
+        walFlushRequested = false;
+        for (StorageEngine<?, ?> engine : engines) engine.flushMergeBuffer(all);
+    }
+
+    /** Asks the commit thread to flush the merge buffers now rather than at the end of its window. */
+    void requestWalFlush() {
+        walFlushRequested = true;
+        Thread thread = commitThread;
+        if (thread != null) LockSupport.unpark(thread);
+    }
+
+    /** Asks the WAL writer to start a batch, flushing the merge buffers first; see {@link StorageConfig#mergesPerWalBatch}. */
+    void requestWalBatch() {
+        WalWriter writer = walWriter;
+        if (writer != null) writer.requestBatch();
+    }
+
+    boolean isWalOpen() {
+        return walWriter != null;
+    }
+
+    /**
+     * Queues one tagged record.
+     *
+     * @param force Bypass the queue bound.
+     * @return false if the full queue refused the record.
+     */
+    boolean appendWalRecord(byte[] record, boolean force) {
+        WalWriter writer = walWriter;
+        if (writer == null) return true;
+        return force ? writer.append(record) > 0 : writer.offer(record) > 0;
+    }
+
+    /**
+     * Writes and forces every buffered and queued WAL record, waiting for the writer to finish.
+     */
+    public void flushWALQueue() {
+        WalWriter writer = walWriter;
+        if (writer == null) return;
+        flushMergeBuffers(true);
+        log("[flushWALQueue] Flushing WAL queue with {} entries", writer.getPendingCount());
+        if (!writer.flush(5000)) {
+            Constants.LOG.error("Timed out flushing the EnderDB WAL queue");
+        }
+    }
+
+    /** Size of the live WAL, i.e. what a restart would replay on top of the last checkpoints. */
+    private long currentWalBytes() {
+        return currentWAL == null ? 0 : currentWAL.length();
+    }
+
+    /**
+     * Replays every WAL generation not covered by all engines yet, oldest first, including the live WAL
+     * (which is rotated out of the way first). Each engine skips the generations at or below its own fence;
+     * generations every engine covers are deleted unreplayed. The rest is applied in parallel, one task
+     * per engine and channel.
+     * <p>
+     * Generations continue above every engine's fence, so they stay comparable to fences written by the
+     * per-type WALs this one replaced.
+     *
+     * @param pool Runs the replay; null to hold each channel's records back for its load instead
+     *             (see {@link StorageEngine#defer}).
+     * @return The number of records applied or held back.
+     */
+    private int replayWALs(ForkJoinPool pool) throws IOException {
+        long minFence = Long.MAX_VALUE;
+        walGeneration = 0;
+        for (StorageEngine<?, ?> engine : engines) {
+            walGeneration = Math.max(walGeneration, engine.getWalFence());
+            minFence = Math.min(minFence, engine.getWalFence());
+        }
+        List<File> rotatedWALs = listRotatedWALs();
+        for (File rotated : rotatedWALs) walGeneration = Math.max(walGeneration, walGenerationOf(rotated));
+        if (currentWAL.exists() && currentWAL.length() > 0) {
+            File rotated = rotatedWALFile(++walGeneration);
+            Files.move(currentWAL.toPath(), rotated.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            rotatedWALs.add(rotated);
+        }
+
+        Map<StorageEngine<?, ?>, Map<ChannelKey, List<byte[]>>> byChannel = new LinkedHashMap<>();
+        int[] records = {0}, unknown = {0};
+        for (File rotated : rotatedWALs) {
+            long gen = walGenerationOf(rotated);
+            if (gen <= minFence) {
+                if (rotated.delete()) log("Deleted already checkpointed WAL file {}", rotated.getName());
+                continue;
+            }
+            AbstractEnderDBManager.readWALRecords(rotated, data -> {
+                StorageEngine<?, ?> engine = engineFor(data[0]);
+                if (engine == null) {
+                    unknown[0]++;
+                    return;
+                }
+                if (gen <= engine.getWalFence()) return;
+                byChannel.computeIfAbsent(engine, e -> new LinkedHashMap<>())
+                        .computeIfAbsent(AbstractEnderDBManager.channelOf(data, 1), c -> new ArrayList<>()).add(data);
+                records[0]++;
+            });
+        }
+        if (unknown[0] > 0) Constants.LOG.warn("Skipped {} WAL records of unknown storage engines", unknown[0]);
+        log("Replaying {} WAL records across {} engines", records[0], byChannel.size());
+
+        if (pool == null) {
+            byChannel.forEach((engine, channels) -> channels.forEach((key, list) -> list.forEach(record -> engine.defer(key, record))));
+            return records[0];
+        }
+        List<Runnable> tasks = new ArrayList<>();
+        for (var engine : byChannel.entrySet()) {
+            for (List<byte[]> channel : engine.getValue().values()) {
+                tasks.add(() -> channel.forEach(record -> engine.getKey().applyRecord(record, 1)));
+            }
+        }
+        AbstractEnderDBManager.runPartitioned(tasks, pool);
+        return records[0];
+    }
+
+    private StorageEngine<?, ?> engineFor(byte id) {
+        for (StorageEngine<?, ?> engine : engines) {
+            if (engine.id() == id) return engine;
+        }
+        return null;
+    }
+
+    /**
+     * Queues the move of the live WAL to the next generation ({@code <wal>.<gen>}).
+     * Callers must hold every stripe, so the rotated WALs contain exactly what the following checkpoint covers.
+     *
+     * @return The writer's rotation ticket, or 0 if there is no writer and the file was moved directly.
+     */
+    private long requestWALRotation(WalWriter writer, long gen) throws IOException {
+        Path rotated = rotatedWALFile(gen).toPath();
+        if (writer != null) return writer.requestRotation(rotated);
+        if (currentWAL.exists()) Files.move(currentWAL.toPath(), rotated, StandardCopyOption.REPLACE_EXISTING);
+        return 0;
+    }
+
+    /**
+     * Deletes rotated WALs whose generation every engine covers.
+     */
+    private void deleteRotatedWALs(long covered) {
+        for (File rotated : listRotatedWALs()) {
+            if (walGenerationOf(rotated) <= covered && !rotated.delete()) {
+                log("Failed to delete WAL file {}", rotated.getName());
+            }
+        }
+    }
+
+    private File rotatedWALFile(long gen) {
+        return new File(currentWAL.getParentFile(), currentWAL.getName() + "." + gen);
+    }
+
+    /**
+     * @return Rotated WAL files, oldest generation first.
+     */
+    private List<File> listRotatedWALs() {
+        File[] files = currentWAL.getParentFile().listFiles((d, name) -> name.matches("enderdrives_shared\\.wal\\.\\d+"));
+        if (files == null) return new ArrayList<>();
+        List<File> list = new ArrayList<>(Arrays.asList(files));
+        list.sort(Comparator.comparingLong(StorageCore::walGenerationOf));
+        return list;
+    }
+
+    static long walGenerationOf(File rotated) {
+        String name = rotated.getName();
+        return Long.parseLong(name.substring(name.lastIndexOf('.') + 1));
+    }
+
+    private void openWALStream() throws IOException {
+        walWriter = new WalWriter("EnderDB", currentWAL.toPath(), config.walFsyncPolicy(), config.walFsyncIntervalMs(),
+                config.walQueueCapacity(), config.walOverflowPolicy());
+        // Appends past the queue bound: the writer can't wait for room it makes itself.
+        if (config.mergesPerWalBatch()) walWriter.setBeforeBatch(() -> flushMergeBuffers(true));
+        walWriter.open();
+    }
+
+    private void closeWALStream() {
+        if (walWriter != null) {
+            walWriter.close();
+            walWriter = null;
+        }
+    }
+
+    private static void log(String format, Object... args) {
+        AbstractEnderDBManager.log(format, args);
+    }
+
+// ==== Public Getters / Stats ====
+
+    /** Worker pool shared by all engines for warm-up and query post-processing; the common pool while stopped. */
+    public ForkJoinPool pool() {
+        ForkJoinPool pool = sharedPool;
+        return pool != null ? pool : ForkJoinPool.commonPool();
+    }
+    public long getRecordsWritten() { return walWriter == null ? 0 : walWriter.getRecordsWritten(); }
+    public int getPendingWalRecords() { return walWriter == null ? 0 : walWriter.getPendingCount(); }
+    public String describeWalQueue() { return walWriter == null ? "closed" : walWriter.describe(); }
+    public String describeScheduler() { return scheduler.describe(); }
+    public AtomicLong getTotalCommits() { return totalCommits; }
+}
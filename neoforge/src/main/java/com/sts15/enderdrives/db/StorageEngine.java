@@ -0,0 +1,1205 @@
+package com.sts15.enderdrives.db;
+
+import com.sts15.enderdrives.Constants;
+
+import java.io.*;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * The store of one AE2 key type: channels, aggregates, key index, segments and WAL merge buffer.
+ * <p>
+ * Everything that is per key type lives here; the WAL, commit thread, scheduler and worker pool are shared by
+ * all engines and owned by the {@link StorageCore} the engine is attached to. Each engine tags its WAL records with its {@link #id()},
+ * keeps its own segments (and so its own WAL fence), and is checkpointed together with the others.
+ * <p>
+ * Entries are kept under the key's serialized bytes. Loaded entries get their AE2 keys decoded lazily, on
+ * first keyed access to the channel or by the background warm-up; entries of the same AE2 key stored under
+ * different (legacy) bytes are folded together as soon as both are seen.
+ * <p>
+ * Channels whose contents are all in the segments can be paged out by the core (idle timeout, RAM budget).
+ * Their aggregates stay, so type and total counts don't load them; any other access reads the channel's
+ * newest block back in first, and {@link #prefetch} does that ahead of time on the worker pool.
+ * <p>
+ * A background startup ({@link StorageCore#initAsync}) uses the same path: channels start out unloaded, with
+ * their WAL records held back, and are loaded one by one, on first access or by the loader, whichever comes
+ * first. Until the core accepts access at all, reads return nothing and writes are dropped. With
+ * {@link StorageConfig#lazyOwnerScopes}, private and team channels are left unloaded by any startup and are
+ * brought in by {@link #prefetchScope} when their owner shows up.
+ *
+ * @param <V> The stored value (the type's StoredEntry).
+ * @param <K> The AE2 key type (e.g. AEItemKey).
+ */
+public class StorageEngine<V extends MutableEntry<K>, K> {
+
+    private static final long MIN_COMPACT_BYTES       = 1024 * 1024;
+    /** Key length of a WAL record that clears its whole channel. */
+    private static final int CLEAR_RECORD             = -1;
+
+    /** Maps a stored entry to a caller's result type, e.g. {@code AEKeyCacheEntry::new}. */
+    @FunctionalInterface
+    public interface ResultMapper<K, R> {
+        R map(AEKey dbKey, K aeKey, long count);
+    }
+
+    /** A resident channel whose contents are all in the segments, so it may be paged out. */
+    record Clean(StorageEngine<?, ?> engine, ChannelKey key, long lastAccess) {}
+
+    private final byte id;
+    private final String name;
+    private final String baseName;
+    private final KeyCodec<K> keys;
+    private final EntryCodec<V, K> codec;
+    // Set by configure, only while the core is stopped; startup publishes them to other threads.
+    private int maxSegments;
+    /** Every channel's entries, aggregates, AE2 key index and dirty flag. */
+    private ChannelRegistry<V, K> channels;
+    /** Guards mutations. Writers lock their channel's stripe; checkpoints briefly lock them all. */
+    private final StripedLock stripes = new StripedLock(64);
+    /** Nets out repeated deltas per key between WAL flushes. Sharded and guarded like the stripes. */
+    private WalMergeBuffer walBuffer;
+    /** False to log each delta as it happens; the buffer then only holds records a full queue refused. */
+    private boolean mergeDeltas;
+    /** Merged deltas are handed over by the WAL writer as it starts a batch; see {@link StorageConfig#mergesPerWalBatch}. */
+    private boolean mergePerBatch;
+    /** Owner of the WAL this engine logs to; set once, when the core is built. */
+    private StorageCore core;
+    /** The in-flight checkpoint, if any. Set while holding every stripe. */
+    private volatile CheckpointSnapshot snapshot = null;
+    private volatile boolean dirty = false;
+
+    private File dbFile, legacyWAL;
+    private SegmentStore segments;
+    private boolean legacyFilePending = false;
+    /** WALs of the per-manager format replayed at startup; deleted once a checkpoint covers them. */
+    private final List<File> legacyWALs = new ArrayList<>();
+    /** Highest shared WAL generation whose records of this engine are all in the segments. */
+    private volatile long coveredGeneration = 0;
+    /** Channels being checkpointed; only touched under the shared checkpoint lock. */
+    private List<Channel<V, K>> pending = null;
+    private final AtomicLong pageIns = new AtomicLong(), pageOuts = new AtomicLong();
+    /** WAL records of channels not loaded yet (background startup), applied when each is loaded. */
+    private final Map<ChannelKey, List<byte[]>> deferred = new ConcurrentHashMap<>();
+
+    /**
+     * @param id       Tag of this engine's records in the shared WAL. Never reuse or renumber one.
+     * @param name     Name used in logs.
+     * @param baseName File name prefix of the segments and of the legacy .bin/.wal files.
+     * @param config   Initial settings; see {@link #configure}.
+     */
+    public StorageEngine(byte id, String name, String baseName, KeyCodec<K> keys, EntryCodec<V, K> codec,
+                         StorageConfig config) {
+        this.id = id;
+        this.name = name;
+        this.baseName = baseName;
+        this.keys = keys;
+        this.codec = codec;
+        applyConfig(config);
+    }
+
+    /**
+     * Applies the storage mode, key cache size, merge buffer threshold, segment limit and WAL merging of
+     * {@code config}. Only while the core is stopped: the channel registry starts over empty.
+     */
+    void configure(StorageConfig config) {
+        applyConfig(config);
+    }
+
+    /** {@link #configure}; private so the constructor calls nothing a subclass could override. */
+    private void applyConfig(StorageConfig config) {
+        stripes.lockAll();
+        try {
+            if (channels != null) channels.clear();
+            this.maxSegments = config.maxSegments();
+            this.channels = new ChannelRegistry<>(config.storageMode(), codec, keys::encode, config.keyCacheSize());
+            this.walBuffer = new WalMergeBuffer(stripes, config.mergeBufferThreshold());
+            this.mergeDeltas = config.mergesWalDeltas();
+            this.mergePerBatch = config.mergesPerWalBatch();
+        } finally {
+            stripes.unlockAll();
+        }
+    }
+
+    public byte id() { return id; }
+    public String name() { return name; }
+
+    /** Called by the {@link StorageCore} that owns this engine; an engine belongs to one core only. */
+    void attach(StorageCore core) {
+        if (this.core != null && this.core != core) throw new IllegalStateException(name + " already belongs to a storage core");
+        this.core = core;
+    }
+
+// ==== Reads and writes ====
+
+    /**
+     * Applies a delta to the entry stored under {@code keyBytes}.
+     */
+    public void save(String scope, int freq, byte[] keyBytes, long delta) {
+        if (!accessible()) return;
+        ensureResident(scope, freq);
+        // Only a delta that can store something interns the bytes; nothing is stored under unknown ones.
+        AEKey key = delta > 0 ? new AEKey(scope, freq, keyBytes) : AEKey.find(scope, freq, keyBytes);
+        if (key == null) return;
+        ReentrantLock stripe = stripes.forChannel(scope, freq);
+        stripe.lock();
+        try {
+            applyDelta(key, null, delta);
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    /**
+     * Applies a delta using the AE2 key as identity. Existing types are resolved through the channel's
+     * index, so nothing is serialized on the hot path; bytes are only produced when a type is first stored.
+     *
+     * @return false if the key could not be serialized and nothing was stored.
+     */
+    public boolean save(String scope, int freq, K aeKey, long delta) {
+        if (!accessible()) return false;
+        ensureResolved(scope, freq);
+        ReentrantLock stripe = stripes.forChannel(scope, freq);
+        stripe.lock();
+        try {
+            Channel<V, K> channel = channels.get(scope, freq);
+            AEKey key = channel == null ? null : channel.indexGet(aeKey);
+            if (key == null) {
+                if (delta <= 0) return true;
+                byte[] bytes = keys.encode(aeKey);
+                if (bytes.length == 0) return false;
+                key = new AEKey(scope, freq, bytes);
+            }
+            return applyDelta(key, aeKey, delta);
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    /** Stored count of an AE2 key. This is a pair of hash lookups; no serialization. */
+    public long getCount(String scope, int freq, K aeKey) {
+        if (!accessible()) return 0L;
+        ensureResolved(scope, freq);
+        Channel<V, K> channel = channels.get(scope, freq);
+        AEKey key = channel == null ? null : channel.indexGet(aeKey);
+        return key == null ? 0L : countOf(channel, key);
+    }
+
+    /**
+     * Stored count of {@code keyBytes}. If nothing is stored under those exact bytes, the bytes are decoded
+     * and the AE2 key index is probed for the same key stored under other (legacy) bytes; such an entry is
+     * folded into the canonical bytes so the next lookup is direct.
+     */
+    public long getCount(String scope, int freq, byte[] keyBytes) {
+        if (!accessible()) return 0L;
+        ensureResident(scope, freq);
+        // Fast direct lookup first; bytes that were never interned can't be stored under themselves.
+        AEKey key = AEKey.find(scope, freq, keyBytes);
+        V direct = key == null ? null : channels.getEntry(key);
+        if (direct != null && direct.count() > 0) return direct.count();
+
+        K requested = keys.decode(keyBytes);
+        if (requested == null) return 0L;
+
+        ensureResolved(scope, freq);
+        Channel<V, K> channel = channels.get(scope, freq);
+        if (channel == null) return 0L;
+        AEKey indexed = channel.indexGet(requested);
+        if (indexed == null || indexed.equals(key)) return 0L;
+        // Off-heap channels only ever store canonical keys, so there is nothing to merge.
+        if (channel.indexedByBytes()) return countOf(channel, indexed);
+
+        ReentrantLock stripe = stripes.forChannel(scope, freq);
+        stripe.lock();
+        try {
+            indexed = channel.indexGet(requested);
+            if (indexed == null || indexed.equals(key)) return key == null ? 0L : countOf(channel, key);
+            byte[] canonicalBytes = keys.encode(requested);
+            AEKey canonical = new AEKey(scope, freq, canonicalBytes.length == 0 ? keyBytes : canonicalBytes);
+            if (indexed.equals(canonical)) return countOf(channel, canonical);
+            return foldInto(channel, canonical, indexed, requested);
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    /** Number of stored types of a channel. Doesn't page it in, but loads it if startup hasn't yet. */
+    public int getTypeCount(String scope, int freq) {
+        ChannelKey key = new ChannelKey(scope, freq);
+        int types = channels.getTypeCount(key);
+        if (types >= 0 || !accessible()) return Math.max(0, types);
+        ensureResident(scope, freq);
+        return Math.max(0, channels.getTypeCount(key));
+    }
+
+    /** Exact total count of a channel, served from its aggregates. Doesn't page it in, but loads it if startup hasn't yet. */
+    public long getTotalCount(String scope, int freq) {
+        ChannelKey key = new ChannelKey(scope, freq);
+        long total = channels.getTotalCount(key);
+        if (total >= 0 || !accessible()) return Math.max(0L, total);
+        ensureResident(scope, freq);
+        return Math.max(0L, channels.getTotalCount(key));
+    }
+
+    /**
+     * Lists every stored entry of a channel whose AE2 key is known. Entries still missing theirs are
+     * decoded on the way and the result is written back, so later queries are fast.
+     */
+    public <R> List<R> query(String scope, int freq, ResultMapper<K, R> mapper) {
+        if (!accessible()) return new ArrayList<>();
+        ensureResolved(scope, freq);
+        Channel<V, K> channel = channels.get(scope, freq);
+        if (channel == null) return new ArrayList<>();
+
+        List<R> result = new ArrayList<>();
+        Map<AEKey, K> recovered = new HashMap<>();
+        for (var e : channel.entries().entrySet()) {
+            long count = e.getValue().count();
+            if (count <= 0) continue;
+            K aeKey = e.getValue().aeKey();
+            if (aeKey == null) {
+                aeKey = keys.decode(e.getKey().itemBytes());
+                if (aeKey != null) recovered.put(e.getKey(), aeKey);
+            }
+            if (aeKey != null) result.add(mapper.map(e.getKey(), aeKey, count));
+        }
+
+        if (!recovered.isEmpty()) {
+            ReentrantLock stripe = stripes.forChannel(scope, freq);
+            stripe.lock();
+            try {
+                for (var e : recovered.entrySet()) {
+                    V current = channel.get(e.getKey());
+                    if (current == null) continue; // might have been removed concurrently
+                    storeCount(channel, e.getKey(), current, current.count(), e.getValue());
+                    reindex(channel, e.getKey(), e.getValue(), current.count());
+                }
+            } finally {
+                stripe.unlock();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Clears all entries of a channel in O(1) and logs the clear to the WAL, so a crash before the next
+     * checkpoint doesn't bring the entries back. A paged-out channel is not loaded; it is just tombstoned.
+     * An {@link SegmentStore#isUnreadable unreadable} one is left alone, like any other write to it.
+     */
+    public void clearFrequency(String scope, int freq) {
+        if (!accessible()) return;
+        ChannelKey channelKey = new ChannelKey(scope, freq);
+        if (segments != null && segments.isUnreadable(channelKey)) {
+            Constants.LOG.warn("[{}] Not clearing channel {}: it is unreadable and left as it is on disk", name, channelKey);
+            return;
+        }
+        int removed;
+        ReentrantLock stripe = stripes.forChannel(scope, freq);
+        stripe.lock();
+        try {
+            removed = clearChannel(channelKey);
+            if (removed >= 0) appendClearRecord(channelKey);
+        } finally {
+            stripe.unlock();
+        }
+        log("[clearFrequency] Cleared frequency {} for scope {} ({} entries)", freq, scope, Math.max(0, removed));
+    }
+
+    public void clearRAMCaches() {
+        stripes.lockAll();
+        try {
+            channels.clear();
+        } finally {
+            stripes.unlockAll();
+        }
+        keys.clearCache();
+        log("[clearRAMCaches] RAM caches cleared.");
+    }
+
+// ==== Stats ====
+
+    public boolean isDirty() { return dirty; }
+    public String describeMergeBuffer() { return walBuffer.describe(); }
+    public long getDeltasAdded() { return walBuffer.getDeltasAdded(); }
+    public int getDatabaseSize() { return channels.entryCount(); }
+    public long getDatabaseFileSizeBytes() { return segments == null ? 0 : segments.getSizeBytes(); }
+    public int getSegmentCount() { return segments == null ? 0 : segments.getSegmentCount(); }
+    /** Direct memory of this engine's tables (0 in heap mode). */
+    public long getOffHeapBytes() { return channels.getOffHeapBytes(); }
+    /** Estimated memory of the resident channels. */
+    public long getResidentBytes() { return channels.residentBytes(); }
+    public long getPageIns() { return pageIns.get(); }
+    public long getPageOuts() { return pageOuts.get(); }
+
+    public String describeResidency() {
+        int unloaded = channels.unloadedCount();
+        return String.format("%d resident (~%.1f MB), %d paged out, %d page-ins, %d page-outs%s",
+                channels.size(), getResidentBytes() / (1024.0 * 1024.0), channels.pagedOutCount(), pageIns.get(), pageOuts.get(),
+                unloaded > 0 ? ", " + unloaded + " not loaded" : "");
+    }
+
+// ==== Residency ====
+
+    /**
+     * Pages a channel in and decodes its AE2 keys on the worker pool, so the first real access finds it
+     * ready. Does nothing if it already is.
+     */
+    public void prefetch(String scope, int freq) {
+        if (core == null || !accessible()) return;
+        Channel<V, K> channel = channels.get(scope, freq);
+        if (channel != null ? channel.isResolved() : !channels.isPagedOut(scope, freq)) return;
+        if (segments.isUnreadable(new ChannelKey(scope, freq))) return; // would only fail again
+        core.pool().execute(() -> ensureResolved(scope, freq));
+    }
+
+    /**
+     * Whether a channel can be read without loading it: it is in RAM or was never stored. Otherwise starts a
+     * {@link #prefetch} and returns false, so callers on the server thread can report "loading" instead of
+     * blocking on the read.
+     */
+    public boolean isLoaded(String scope, int freq) {
+        if (!channels.isPagedOut(scope, freq)) return true;
+        prefetch(scope, freq);
+        return false;
+    }
+
+    /** {@link #prefetch}es every channel of a scope that isn't in RAM, e.g. a player's on login. */
+    public void prefetchScope(String scope) {
+        if (core == null || !accessible()) return;
+        for (ChannelKey key : channels.nonResidentKeys(scope)) prefetch(key.scope(), key.freq());
+    }
+
+    /** Adds the resident channels with nothing unwritten. Callers must hold the core's checkpoint lock. */
+    void collectClean(List<Clean> out) {
+        for (Channel<V, K> channel : channels.all()) {
+            if (!channel.isDirty()) out.add(new Clean(this, channel.key(), channel.lastAccess()));
+        }
+    }
+
+    /**
+     * Drops a channel's entries if it is still clean. Callers must hold the core's checkpoint lock, so no
+     * checkpoint is in flight and a clean channel's newest block in the segments is its current state.
+     *
+     * @return The estimated bytes freed, 0 if it wasn't paged out.
+     */
+    long pageOut(ChannelKey key) {
+        ReentrantLock stripe = stripes.forChannel(key);
+        stripe.lock();
+        try {
+            Channel<V, K> channel = channels.get(key);
+            if (channel == null || channel.isDirty()) return 0;
+            long freed = channels.pageOut(channel);
+            if (freed > 0) pageOuts.incrementAndGet();
+            return freed;
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+// ==== Startup ====
+
+    /**
+     * Opens the segments in {@code dir} and loads them, or the legacy .bin file if there are none yet.
+     */
+    void open(Path dir, ForkJoinPool pool) throws IOException {
+        openSegments(dir);
+        migrateOldRecords();
+        loadDatabase(pool);
+    }
+
+    /**
+     * Like {@link #open}, but only reads the segment footers: every channel with entries is registered as
+     * unloaded, to be filled by {@link #loadChannels} or on first access. A legacy .bin is still loaded
+     * whole, as it has no per-channel layout.
+     */
+    void openDeferred(Path dir, ForkJoinPool pool) throws IOException {
+        openSegments(dir);
+        migrateOldRecords();
+        if (!segments.hasManifest()) {
+            loadDatabase(pool);
+            return;
+        }
+        for (ChannelKey key : segments.liveChannels()) channels.markUnloaded(key);
+    }
+
+    private void openSegments(Path dir) throws IOException {
+        dbFile = dir.resolve(baseName + ".bin").toFile();
+        legacyWAL = dir.resolve(baseName + ".wal").toFile();
+        segments = new SegmentStore(name, dir, baseName);
+        segments.open();
+        coveredGeneration = segments.getWalFence();
+    }
+
+    /**
+     * The channels a startup loads after {@link #openDeferred}: all unloaded ones, except owned channels
+     * when {@code lazyOwned} is set. Owned channels with held-back WAL records are loaded anyway, so no
+     * checkpoint can drop records that were never applied.
+     */
+    List<ChannelKey> startupChannels(boolean lazyOwned) {
+        List<ChannelKey> keys = new ArrayList<>();
+        for (ChannelKey key : channels.unloadedKeys()) {
+            if (!lazyOwned || !key.isOwned() || deferred.containsKey(key)) keys.add(key);
+        }
+        return keys;
+    }
+
+    /**
+     * Loads {@code keys} in parallel on {@code pool}, applying their held-back WAL records. Channels accessed
+     * meanwhile were already loaded on demand and are skipped.
+     *
+     * @param onLoaded Called after each channel, from the pool's threads.
+     */
+    void loadChannels(List<ChannelKey> keys, ForkJoinPool pool, Runnable onLoaded) throws IOException {
+        List<Runnable> tasks = new ArrayList<>();
+        for (ChannelKey key : keys) {
+            tasks.add(() -> {
+                ReentrantLock stripe = stripes.forChannel(key);
+                stripe.lock();
+                try {
+                    if (channels.isPagedOut(key)) pageIn(key);
+                } finally {
+                    stripe.unlock();
+                }
+                onLoaded.run();
+            });
+        }
+        AbstractEnderDBManager.runPartitioned(tasks, pool);
+    }
+
+    /**
+     * Holds back a shared WAL record of a channel that isn't loaded yet; it is applied when the channel is.
+     * Records of channels already loaded (from a legacy .bin) are applied right away. Called in WAL order,
+     * single-threaded, before the core accepts access.
+     */
+    void defer(ChannelKey key, byte[] record) {
+        if (channels.get(key) != null || isClearRecord(record, 1)) {
+            // A clear drops what was held back and leaves an empty resident channel, so nothing needs loading.
+            applyRecord(record, 1);
+            return;
+        }
+        channels.markUnloaded(key);
+        deferred.computeIfAbsent(key, k -> new ArrayList<>()).add(record);
+    }
+
+    /** The highest shared WAL generation the segments cover, as persisted. */
+    long getWalFence() {
+        return segments.getWalFence();
+    }
+
+    /** Highest shared WAL generation that can be deleted as far as this engine is concerned. */
+    long getCoveredGeneration() {
+        return coveredGeneration;
+    }
+
+    /**
+     * Replays the untagged WALs this type wrote before the WAL was shared ({@code <baseName>.wal} and its
+     * rotated generations). Generations at or below the fence are already in the segments and are deleted
+     * unreplayed; the rest, and the live file last, are replayed and kept until the next checkpoint.
+     *
+     * @return The number of records applied.
+     */
+    int replayLegacyWALs(ForkJoinPool pool) throws IOException {
+        List<File> toReplay = collectLegacyWALs();
+        if (toReplay.isEmpty()) return 0;
+        log("Replaying {} legacy WAL files", toReplay.size());
+        return AbstractEnderDBManager.replayWALsPartitioned(toReplay, record -> applyRecord(record, 0), pool);
+    }
+
+    /**
+     * Like {@link #replayLegacyWALs}, but holds the records back (see {@link #defer}) instead of applying them.
+     *
+     * @return The number of records held back.
+     */
+    int deferLegacyWALs() throws IOException {
+        int[] records = {0};
+        for (File file : collectLegacyWALs()) {
+            AbstractEnderDBManager.readWALRecords(file, data -> {
+                // Tagged like a shared record, so every held-back record is applied the same way.
+                byte[] tagged = new byte[data.length + 1];
+                tagged[0] = id;
+                System.arraycopy(data, 0, tagged, 1, data.length);
+                defer(AbstractEnderDBManager.channelOf(data, 0), tagged);
+                records[0]++;
+            });
+        }
+        return records[0];
+    }
+
+    /**
+     * Deletes the legacy WAL generations the segments already cover.
+     *
+     * @return The rest, oldest first with the live file last; kept until the next checkpoint.
+     */
+    private List<File> collectLegacyWALs() {
+        long fence = segments.getWalFence();
+        Pattern rotatedName = Pattern.compile(Pattern.quote(legacyWAL.getName()) + "\\.\\d+");
+        File[] files = legacyWAL.getParentFile().listFiles((d, n) -> rotatedName.matcher(n).matches());
+        List<File> rotated = files == null ? new ArrayList<>() : new ArrayList<>(Arrays.asList(files));
+        rotated.sort(Comparator.comparingLong(StorageCore::walGenerationOf));
+
+        List<File> toReplay = new ArrayList<>();
+        for (File file : rotated) {
+            if (StorageCore.walGenerationOf(file) <= fence) {
+                if (file.delete()) log("Deleted already checkpointed WAL file {}", file.getName());
+                continue;
+            }
+            toReplay.add(file);
+        }
+        if (legacyWAL.exists()) {
+            if (legacyWAL.length() > 0) toReplay.add(legacyWAL);
+            else legacyWAL.delete();
+        }
+        legacyWALs.addAll(toReplay);
+        return toReplay;
+    }
+
+    /**
+     * Applies one WAL record (scope UTF, freq int, len int, bytes[], delta long) starting at {@code offset}.
+     * Called during single-threaded-per-channel replay.
+     */
+    void applyRecord(byte[] data, int offset) {
+        try (DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data, offset, data.length - offset))) {
+            String scope = dis.readUTF();
+            int freq = dis.readInt();
+            int keyLength = dis.readInt();
+            if (keyLength == CLEAR_RECORD) {
+                clearChannel(new ChannelKey(scope, freq));
+                log("Applying WAL: cleared channel {}|{}", scope, freq);
+                return;
+            }
+            byte[] keyBytes = new byte[keyLength];
+            dis.readFully(keyBytes);
+            long delta = dis.readLong();
+
+            AEKey key = delta > 0 ? new AEKey(scope, freq, keyBytes) : AEKey.find(scope, freq, keyBytes);
+            if (key == null) return;
+            Channel<V, K> channel = openChannel(new ChannelKey(key.scope(), key.freq()));
+            if (channel == null) return;
+            V existing = channel.get(key);
+            long oldVal = existing == null ? 0L : existing.count();
+            long newVal = oldVal + delta;
+            channel.onCountChanged(oldVal, newVal);
+
+            K aeKey = existing == null ? null : existing.aeKey();
+            if (aeKey == null) aeKey = keys.decode(keyBytes);
+
+            storeCount(channel, key, existing, newVal, aeKey);
+            reindex(channel, key, aeKey, newVal);
+            log("Applying WAL: key={} delta={} old={} new={}", key, delta, oldVal, newVal);
+            markDirty(channel);
+        } catch (IOException e) {
+            Constants.LOG.error("[{}] Skipped a malformed WAL record ({} bytes)", name, data.length - offset, e);
+        }
+    }
+
+    /**
+     * Resolves every lazily loaded channel on {@code pool}, so the first access after startup usually
+     * finds its channel ready.
+     */
+    void startWarmup(ForkJoinPool pool) {
+        List<Channel<V, K>> unresolved = channels.all().stream().filter(c -> !c.isResolved()).toList();
+        if (unresolved.isEmpty()) return;
+        long start = System.currentTimeMillis();
+        CompletableFuture.allOf(unresolved.stream()
+                        .map(c -> CompletableFuture.runAsync(() -> resolveChannel(c), pool))
+                        .toArray(CompletableFuture[]::new))
+                .whenComplete((v, t) -> {
+                    if (t != null) Constants.LOG.error("[{}] Key warm-up failed", name, t);
+                    else log("[startWarmup] Resolved keys of {} channels in {} ms", unresolved.size(), System.currentTimeMillis() - start);
+                });
+    }
+
+// ==== WAL ====
+
+    /**
+     * Emits buffered net deltas to the shared WAL. Must not be called while holding a single stripe.
+     *
+     * @param all Whether every delta must be queued now (checkpoint cut, shutdown), past the queue bound.
+     *            Otherwise the writer's overflow policy applies, and under COALESCE whatever doesn't fit
+     *            stays buffered and keeps merging until the next flush.
+     */
+    void flushMergeBuffer(boolean all) {
+        int emitted = walBuffer.flush((key, delta) -> appendWalRecord(key, delta, all));
+        if (emitted > 0) log("[flushMergeBuffer] Emitted {} merged WAL records", emitted);
+    }
+
+    /**
+     * Queues a clear of a whole channel: engine id byte, scope UTF, freq int, then {@link #CLEAR_RECORD} where
+     * a delta record has its key length. Always queued, past the queue bound, as nothing would retry it.
+     * Callers must hold the channel's stripe, so it lands between the channel's deltas in order.
+     */
+    private void appendClearRecord(ChannelKey key) {
+        if (core == null || !core.isWalOpen()) return;
+        try (var baos = new ByteArrayOutputStream(key.scope().length() + 11);
+             var dos = new DataOutputStream(baos)) {
+            dos.writeByte(id);
+            dos.writeUTF(key.scope());
+            dos.writeInt(key.freq());
+            dos.writeInt(CLEAR_RECORD);
+            core.appendWalRecord(baos.toByteArray(), true);
+        } catch (IOException e) {
+            Constants.LOG.error("[{}] Failed to log the clear of channel {} to the WAL", name, key, e);
+        }
+    }
+
+    /** Whether a WAL record is a channel clear (see {@link #appendClearRecord}) rather than a delta. */
+    private static boolean isClearRecord(byte[] data, int offset) {
+        int scopeLength = ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+        int pos = offset + 2 + scopeLength + 4;
+        if (data.length < pos + 4) return false;
+        int keyLength = (data[pos] << 24) | ((data[pos + 1] & 0xFF) << 16) | ((data[pos + 2] & 0xFF) << 8) | (data[pos + 3] & 0xFF);
+        return keyLength == CLEAR_RECORD;
+    }
+
+    /**
+     * Queues one WAL record: engine id byte, scope UTF, freq int, len int, bytes[], delta long.
+     *
+     * @param force Bypass the queue bound.
+     * @return false if the full queue refused the record.
+     */
+    private boolean appendWalRecord(AEKey key, long delta, boolean force) {
+        byte[] bytes = key.itemBytes();
+        try (var baos = new ByteArrayOutputStream(bytes.length + key.scope().length() + 19);
+             var dos = new DataOutputStream(baos)) {
+            dos.writeByte(id);
+            dos.writeUTF(key.scope());
+            dos.writeInt(key.freq());
+            dos.writeInt(bytes.length);
+            dos.write(bytes);
+            dos.writeLong(delta);
+            return core.appendWalRecord(baos.toByteArray(), force);
+        } catch (IOException e) {
+            Constants.LOG.error("[{}] Failed to log a delta of {} for {} to the WAL", name, delta, key, e);
+            return true;
+        }
+    }
+
+// ==== Checkpoints ====
+
+    void lockAll() {
+        stripes.lockAll();
+    }
+
+    void unlockAll() {
+        stripes.unlockAll();
+    }
+
+    /**
+     * Takes the channels changed since the last checkpoint. Callers must hold every stripe and the shared
+     * checkpoint lock.
+     *
+     * @return false if nothing changed.
+     */
+    boolean beginCheckpoint() {
+        dirty = false;
+        List<Channel<V, K>> changed = new ArrayList<>();
+        for (Channel<V, K> channel : channels.all()) {
+            if (channel.takeDirty()) changed.add(channel);
+        }
+        pending = changed.isEmpty() ? null : changed;
+        return pending != null;
+    }
+
+    /**
+     * Installs the copy-on-write snapshot of the taken channels, once the WAL cut is queued. Callers must
+     * hold every stripe.
+     */
+    void publishCheckpoint() {
+        if (pending == null) return;
+        snapshot = new CheckpointSnapshot(pending.stream().map(Channel::key).toList());
+    }
+
+    /** Gives the taken channels back to the next checkpoint. */
+    void abortCheckpoint() {
+        if (pending != null) pending.forEach(this::markDirty);
+        pending = null;
+        snapshot = null;
+    }
+
+    /**
+     * Writes the taken channels into a new segment fenced at {@code fence}. The stripes are not held; saves
+     * carry on, with {@link #preserve} keeping the pre-snapshot counts of what they touch.
+     * <p>
+     * An engine with nothing to write has no record at or below the cut that isn't already in its segments,
+     * so it counts as covered up to {@code fence} without writing anything.
+     *
+     * @return The generation up to which this engine no longer needs the shared WAL.
+     */
+    long writeCheckpoint(long fence) {
+        List<Channel<V, K>> changed = pending;
+        CheckpointSnapshot snap = snapshot;
+        pending = null;
+        if (changed == null) {
+            coveredGeneration = fence;
+            return fence;
+        }
+        List<ChannelKey> keys = changed.stream().map(Channel::key).toList();
+        try {
+            segments.writeCheckpoint(fence, keys,
+                    (channel, visitor) -> snap.forEach(channel, snap.entriesOf(channel, channelView(channel)), codec::count, visitor),
+                    core == null ? null : core.pool());
+            coveredGeneration = fence;
+            if (legacyFilePending) retireLegacyDatabaseFile();
+            retireLegacyWALs();
+            log("[commitDatabase] Checkpointed {} channels ({} keys changed meanwhile).", keys.size(), snap.getPreImageCount());
+            stripes.lockAll();
+            try {
+                // Cleared channels are now tombstoned on disk; drop them unless written to again.
+                for (Channel<V, K> channel : changed) {
+                    if (channel.isEmpty() && !channel.isDirty()) channels.remove(channel);
+                }
+            } finally {
+                stripes.unlockAll();
+            }
+        } catch (IOException e) {
+            changed.forEach(this::markDirty);
+            Constants.LOG.error("[{}] Checkpoint of {} channels at WAL generation {} failed; they stay dirty for the next one",
+                    name, keys.size(), fence, e);
+        } finally {
+            snapshot = null;
+        }
+        return coveredGeneration;
+    }
+
+    /**
+     * Merges the segments if there are too many of them or they are mostly stale. Works on the files
+     * only, so it doesn't need any stripe.
+     *
+     * @return true if a compaction ran.
+     */
+    boolean compactIfNeeded() {
+        if (segments == null) return false;
+        try {
+            return segments.compactIfNeeded(maxSegments, MIN_COMPACT_BYTES);
+        } catch (IOException e) {
+            Constants.LOG.error("[{}] Segment compaction failed", name, e);
+            return false;
+        }
+    }
+
+    /** Adds the dictionary IDs this engine's segments refer to; see {@link SegmentStore#collectIds}. */
+    void collectSegmentIds(BitSet out) throws IOException {
+        if (segments != null) segments.collectIds(out);
+    }
+
+// ==== Internals ====
+
+    /**
+     * Applies a count delta to a key, keeping aggregates and index in step, and buffers the WAL delta.
+     * Callers must hold the channel's stripe.
+     *
+     * @param knownAeKey The AE2 key of {@code key} if the caller has it, otherwise null.
+     * @return false if the channel is paged out and couldn't be loaded, so nothing was stored.
+     */
+    private boolean applyDelta(AEKey key, K knownAeKey, long delta) {
+        Channel<V, K> channel = openChannel(new ChannelKey(key.scope(), key.freq()));
+        if (channel == null) return false;
+        preserve(key);
+        V existing = channel.get(key);
+        long oldCount = existing == null ? 0L : existing.count();
+        long newCount = oldCount + delta;
+        K aeKey = knownAeKey != null ? knownAeKey : existing == null ? null : existing.aeKey();
+        if (aeKey == null) aeKey = keys.decode(key.itemBytes());
+        storeCount(channel, key, existing, newCount, aeKey);
+        channel.onCountChanged(oldCount, newCount);
+        reindex(channel, key, aeKey, newCount);
+
+        if (core != null && core.isWalOpen()) {
+            if (!mergeDeltas) {
+                if (!appendWalRecord(key, delta, false)) {
+                    walBuffer.add(key, delta);
+                    core.requestWalFlush();
+                }
+            } else if (mergePerBatch) {
+                walBuffer.add(key, delta);
+                core.requestWalBatch();
+            } else if (walBuffer.add(key, delta)) {
+                core.requestWalFlush();
+            }
+        }
+
+        markDirty(channel);
+        return true;
+    }
+
+    private long countOf(Channel<V, K> channel, AEKey key) {
+        V entry = channel.get(key);
+        return entry == null ? 0L : entry.count();
+    }
+
+    /**
+     * Flags a channel for the next checkpoint. Callers must hold the channel's stripe (or be
+     * single-threaded, e.g. during load/replay).
+     */
+    private void markDirty(Channel<V, K> channel) {
+        channel.markDirty();
+        if (!dirty) dirty = true; // skip the shared write on the hot path
+    }
+
+    /**
+     * Pages the channel in if it is paged out, otherwise records the access for its idle timeout.
+     * Must not be called while holding a stripe.
+     */
+    private void ensureResident(String scope, int freq) {
+        Channel<V, K> channel = channels.get(scope, freq);
+        if (channel != null) {
+            channel.touch();
+        } else if (channels.isPagedOut(scope, freq)) {
+            ReentrantLock stripe = stripes.forChannel(scope, freq);
+            stripe.lock();
+            try {
+                pageIn(new ChannelKey(scope, freq));
+            } finally {
+                stripe.unlock();
+            }
+        }
+    }
+
+    /**
+     * The resident channel, paging it in or creating it as needed. Callers must hold the channel's stripe
+     * (or be single-threaded, e.g. during replay).
+     *
+     * @return null if the channel is paged out and couldn't be loaded.
+     */
+    private Channel<V, K> openChannel(ChannelKey key) {
+        if (channels.isPagedOut(key.scope(), key.freq()) && !pageIn(key)) return null;
+        return channels.getOrCreate(key);
+    }
+
+    /**
+     * Reads a paged-out channel back from its newest block, leaving its AE2 keys to be resolved.
+     * Callers must hold the channel's stripe, so nothing writes to it half-loaded.
+     *
+     * @return false if it couldn't be loaded (e.g. it is {@link SegmentStore#isUnreadable unreadable}) and stays
+     *         paged out, so nothing can write to it.
+     */
+    private boolean pageIn(ChannelKey key) {
+        int types = channels.getTypeCount(key);
+        long total = channels.getTotalCount(key);
+        if (!channels.pageIn(key)) return true;
+        long start = System.nanoTime();
+        try {
+            segments.loadChannel(key, this::loadEntry);
+            List<byte[]> records = deferred.remove(key);
+            if (records != null) records.forEach(record -> applyRecord(record, 1));
+            if (types >= 0) pageIns.incrementAndGet(); // not a first load during startup
+            log("[pageIn] Loaded channel {} in {} us", key, (System.nanoTime() - start) / 1000);
+            return true;
+        } catch (IOException e) {
+            channels.abortPageIn(key, types, total);
+            if (segments.isUnreadable(key)) log("[pageIn] Channel {} is unreadable; left unloaded", key);
+            else Constants.LOG.error("[{}] Failed to page in channel {}", name, key, e);
+            return false;
+        }
+    }
+
+    /**
+     * Makes sure the channel is resident and its AE2 keys are decoded and indexed before the index is used
+     * for it. Must not be called while holding a stripe.
+     */
+    private void ensureResolved(String scope, int freq) {
+        ensureResident(scope, freq);
+        Channel<V, K> channel = channels.get(scope, freq);
+        if (channel != null && !channel.isResolved()) resolveChannel(channel);
+    }
+
+    /**
+     * Decodes the AE2 keys of a lazily loaded channel and indexes them. Decoding runs outside the stripe;
+     * only publishing the results takes it. Concurrent callers for the same channel wait for the first one
+     * instead of decoding it twice.
+     */
+    private void resolveChannel(Channel<V, K> channel) {
+        synchronized (channel.lock()) {
+            if (channel.isResolved()) return;
+            Map<AEKey, K> decoded = new HashMap<>();
+            for (var e : channel.entries().entrySet()) {
+                if (e.getValue().aeKey() != null) continue;
+                K aeKey = keys.decode(e.getKey().itemBytes());
+                if (aeKey != null) decoded.put(e.getKey(), aeKey);
+            }
+            ReentrantLock stripe = stripes.forChannel(channel.key());
+            stripe.lock();
+            try {
+                // Entries changed meanwhile were decoded by applyDelta; only fill in what is still missing.
+                for (var e : decoded.entrySet()) {
+                    V current = channel.get(e.getKey());
+                    if (current == null || current.aeKey() != null) continue;
+                    storeCount(channel, e.getKey(), current, current.count(), e.getValue());
+                    reindex(channel, e.getKey(), e.getValue(), current.count());
+                }
+                channel.setResolved(true);
+            } finally {
+                stripe.unlock();
+            }
+        }
+    }
+
+    /**
+     * Empties a channel: O(1) for a resident one (see {@link Channel#clear}), whose old storage goes to an
+     * in-flight checkpoint covering it; a paged-out or not yet loaded one becomes an empty resident channel
+     * without being read. Either way it is written as a tombstone at the next checkpoint. Callers must hold
+     * the channel's stripe, or be replaying single-threaded.
+     *
+     * @return The number of types removed, or -1 if the channel doesn't exist.
+     */
+    private int clearChannel(ChannelKey key) {
+        int removed = 0;
+        Channel<V, K> channel = channels.get(key);
+        if (channel == null) {
+            removed = Math.max(0, channels.getTypeCount(key));
+            if (channels.pageIn(key)) channel = channels.get(key);
+            deferred.remove(key);
+        }
+        if (channel == null) return -1;
+        removed = Math.max(removed, channel.getTypeCount());
+        CheckpointSnapshot snap = snapshot;
+        if (snap != null) snap.detach(key, channel.entries());
+        channel.clear();
+        walBuffer.discard(key.scope(), key.freq()); // not logged yet and now moot
+        markDirty(channel);
+        return removed;
+    }
+
+    /**
+     * Hands {@code key}'s current count to an in-flight checkpoint before it is changed.
+     * Callers must hold the channel's stripe.
+     */
+    private void preserve(AEKey key) {
+        CheckpointSnapshot snap = snapshot;
+        if (snap == null || !snap.covers(key.scope(), key.freq())) return;
+        V current = channels.getEntry(key);
+        snap.recordPreImage(key, current == null ? 0L : current.count());
+    }
+
+    /**
+     * Sets {@code key}'s count, removing it at zero. Stored heap entries are updated in place, so only
+     * new keys allocate. Callers must hold the channel's stripe (or be single-threaded, e.g. during load/replay).
+     *
+     * @param existing The current entry of {@code key}, or null.
+     */
+    private void storeCount(Channel<V, K> channel, AEKey key, V existing, long newCount, K aeKey) {
+        if (newCount <= 0) {
+            if (existing != null) channel.entries().remove(key);
+        } else if (existing == null || !channel.updatesInPlace()) {
+            channel.entries().put(key, codec.create(newCount, aeKey));
+        } else {
+            existing.setCount(newCount);
+            existing.resolve(aeKey);
+        }
+    }
+
+    private Map<AEKey, V> channelView(ChannelKey key) {
+        Channel<V, K> channel = channels.get(key);
+        return channel == null ? Map.of() : channel.entries();
+    }
+
+    /**
+     * Keeps the AE2 key index in step with a count change of {@code key}. If the same AE2 key is already
+     * indexed under different (legacy) bytes, that entry is folded into {@code key}.
+     * Callers must hold the channel's stripe (or be single-threaded, e.g. during load/replay).
+     */
+    private void reindex(Channel<V, K> channel, AEKey key, K aeKey, long newCount) {
+        if (aeKey == null) return;
+        if (channel.indexedByBytes()) {
+            // No heap index to find other bytes through, so keep every entry under its canonical bytes.
+            AEKey canonical = newCount > 0 ? channel.canonicalKey(aeKey) : null;
+            if (canonical != null && !canonical.equals(key)) foldInto(channel, canonical, key, aeKey);
+            return;
+        }
+        if (newCount <= 0) {
+            channel.indexRemove(key, aeKey);
+            return;
+        }
+        AEKey previous = channel.indexPutIfAbsent(key, aeKey);
+        if (previous != null && !previous.equals(key)) {
+            foldInto(channel, key, previous, aeKey);
+        }
+    }
+
+    /**
+     * Moves the count stored under a legacy/alternate key into the canonical key of the same channel
+     * and re-points the index. Callers must hold the channel's stripe.
+     *
+     * @return The resulting count of the canonical key.
+     */
+    private long foldInto(Channel<V, K> channel, AEKey canonical, AEKey legacy, K aeKey) {
+        preserve(legacy);
+        preserve(canonical);
+        V moved = channel.entries().remove(legacy);
+        V current = channel.get(canonical);
+        long existing = current == null ? 0L : current.count();
+        channel.indexPut(canonical, aeKey);
+        if (moved == null || moved.count() <= 0) return existing;
+
+        long merged = existing + moved.count();
+        storeCount(channel, canonical, current, merged, aeKey);
+        channel.onCountChanged(moved.count(), 0L);
+        channel.onCountChanged(existing, merged);
+        markDirty(channel);
+        log("[foldInto] Merged legacy key {} into {} ({})", legacy, canonical, moved.count());
+        return merged;
+    }
+
+    /**
+     * Loads the segments into memory. Without a manifest, the legacy {@code <baseName>.bin} (with or without
+     * its EDB1/EFDB1 header) is read instead and every channel is marked dirty, so the first checkpoint
+     * migrates it into segments.
+     */
+    private void loadDatabase(ForkJoinPool pool) throws IOException {
+        if (segments.hasManifest()) {
+            segments.load(this::loadEntry, pool);
+            // Kept out of RAM, so nothing is written to them and no checkpoint replaces what is on disk.
+            for (ChannelKey key : segments.unreadableChannels()) channels.markUnloaded(key);
+            return;
+        }
+        if (!dbFile.exists() || dbFile.length() == 0) return;
+
+        Properties props = new Properties();
+        String curVer = "undefined";
+        try (InputStream in = StorageEngine.class.getResourceAsStream("/mod_version.properties")) {
+            if (in != null) { props.load(in); curVer = props.getProperty("mod.version"); }
+        }
+
+        try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(dbFile)))) {
+            dis.mark(128);
+            String header = dis.readUTF();
+            if ("EDB1".equals(header) || "EFDB1".equals(header)) {
+                String fileVer = dis.readUTF();
+                int fmt = dis.readInt();
+                long ts = dis.readLong();
+                log("Loaded {} header ver={} fmt={} ts={}", header, fileVer, fmt, new Date(ts));
+                if (!fileVer.equals(curVer)) backupDatabaseFile(fileVer);
+            } else {
+                dis.reset();
+                backupDatabaseFile("0.0.0");
+            }
+            while (true) {
+                String scope = dis.readUTF();
+                int freq = dis.readInt();
+                byte[] key = new byte[dis.readInt()];
+                dis.readFully(key);
+                long count = dis.readLong();
+                loadEntry(new AEKey(scope, freq, key), count);
+                markDirty(channels.getOrCreate(scope, freq));
+            }
+        } catch (EOFException ignored) {}
+        legacyFilePending = true;
+    }
+
+    /**
+     * Puts a loaded entry into the map without decoding it. Its channel's AE2 keys are resolved on
+     * first keyed access or by the background warm-up.
+     */
+    private void loadEntry(AEKey dbKey, long count) {
+        Channel<V, K> channel = channels.getOrCreate(dbKey.scope(), dbKey.freq());
+        V prev = channel.entries().put(dbKey, codec.create(count, null));
+        channel.onCountChanged(prev == null ? 0L : prev.count(), count);
+        channel.setResolved(false);
+    }
+
+    /**
+     * Renames the legacy .bin once its contents are safely in segments, so it is never loaded again.
+     */
+    private void retireLegacyDatabaseFile() {
+        File migrated = new File(dbFile.getParentFile(), dbFile.getName() + ".migrated");
+        if (dbFile.renameTo(migrated)) {
+            Constants.LOG.info("Migrated {} to segment storage; kept the old file as {}", dbFile.getName(), migrated.getName());
+        }
+        legacyFilePending = false;
+    }
+
+    private void retireLegacyWALs() {
+        for (File file : legacyWALs) {
+            if (file.exists() && !file.delete()) log("Failed to delete WAL file {}", file.getName());
+        }
+        legacyWALs.clear();
+    }
+
+    /**
+     * Migrates any legacy records with malformed or missing scope names to the "global" scope.
+     */
+    private void migrateOldRecords() {
+        List<Channel<V, K>> toMigrate = parallelCall(() ->
+                channels.all().parallelStream()
+                        .filter(channel -> {
+                            String scope = channel.scope();
+                            return scope == null || scope.isEmpty() || (!scope.matches("^[a-z]+_[a-z0-9\\-]+$") && !scope.equals("global"));
+                        })
+                        .toList(), List.of()
+        );
+
+        if (toMigrate.isEmpty()) return;
+
+        log("[migrateOldRecords] Detected {} old-format channels. Migrating to global scope...", toMigrate.size());
+
+        for (Channel<V, K> channel : toMigrate) {
+            Channel<V, K> global = channels.getOrCreate("global", channel.freq());
+            for (Map.Entry<AEKey, V> entry : channel.entries().entrySet()) {
+                AEKey newKey = new AEKey("global", channel.freq(), entry.getKey().itemBytes());
+                long moved = entry.getValue().count();
+                V current = global.get(newKey);
+                long existing = current == null ? 0L : current.count();
+                storeCount(global, newKey, current, existing + moved, null);
+                global.onCountChanged(existing, existing + moved);
+            }
+            global.setResolved(false);
+            channel.clear();
+            markDirty(channel);
+            markDirty(global);
+        }
+    }
+
+    private <T> T parallelCall(Callable<T> task, T fallback) {
+        try {
+            return core.pool().submit(task).get();
+        } catch (Exception e) {
+            Constants.LOG.error("[{}] Parallel task on the worker pool failed; using {}", name, fallback, e);
+            return fallback;
+        }
+    }
+
+    private void backupDatabaseFile(String version) {
+        String timestamp = java.time.LocalDateTime.now()
+                .toString()
+                .replace(":", "-");
+
+        String backupName = String.format("%s_%s_%s.zip", baseName, version, timestamp);
+        File backupZip = new File(dbFile.getParent(), backupName);
+
+        try (ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(backupZip))) {
+            zipFile(dbFile, zos);
+            if (legacyWAL != null && legacyWAL.exists()) {
+                zipFile(legacyWAL, zos);
+            }
+            Constants.LOG.info("Backed up existing {} database to {} due to mod version change.", name, backupZip.getName());
+        } catch (IOException e) {
+            Constants.LOG.error("[{}] Failed to back up the {} database to {}", name, version, backupZip.getName(), e);
+        }
+    }
+
+    private static void zipFile(File file, ZipOutputStream zos) throws IOException {
+        try (FileInputStream fis = new FileInputStream(file)) {
+            ZipEntry entry = new ZipEntry(file.getName());
+            zos.putNextEntry(entry);
+            fis.transferTo(zos);
+            zos.closeEntry();
+        }
+    }
+
+    /** Whether the core has loaded enough to serve this engine at all. */
+    private boolean accessible() {
+        return core == null || core.isAccepting();
+    }
+
+    private void log(String format, Object... args) {
+        AbstractEnderDBManager.log("[" + name + "] " + format, args);
+    }
+}
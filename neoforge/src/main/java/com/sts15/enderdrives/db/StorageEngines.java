@@ -0,0 +1,66 @@
+package com.sts15.enderdrives.db;
+
+import net.minecraft.server.MinecraftServer;
+import net.neoforged.neoforge.server.ServerLifecycleHooks;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The {@link StorageCore} of the running server: item and fluid engines, files under
+ * {@code <world>/data/enderdrives}, settings from the server config and tick health from the server.
+ */
+public final class StorageEngines {
+
+    private static final StorageCore CORE = new StorageCore(
+            StoragePaths.server(),
+            StorageConfig.defaults(), // replaced by the server config in init
+            List.of(EnderDBManager.ENGINE, EnderFluidDBManager.ENGINE),
+            StorageEngines::recentMsPerTick);
+
+    private StorageEngines() {}
+
+    public static StorageCore core() { return CORE; }
+
+    /**
+     * Applies the current server config, then {@link StorageCore#init}, or {@link StorageCore#initAsync} if
+     * the config asks for a background startup; each facade calls it, and the first call of a world wins.
+     */
+    public static synchronized void init() {
+        CORE.configure(StorageConfig.fromServerConfig());
+        if (CORE.config().asyncStartup()) CORE.initAsync();
+        else CORE.init();
+    }
+    public static void shutdown() { CORE.shutdown(); }
+    public static void commitDatabase() { CORE.commitDatabase(); }
+    public static void compactIfNeeded() { CORE.compactIfNeeded(); }
+    public static void flushWALQueue() { CORE.flushWALQueue(); }
+
+    public static void prefetchScope(String scope) { CORE.prefetchScope(scope); }
+
+    public static boolean isAccepting() { return CORE.isAccepting(); }
+    public static boolean isFailed() { return CORE.isFailed(); }
+    public static String describeStartup() { return CORE.describeStartup(); }
+    public static ForkJoinPool pool() { return CORE.pool(); }
+    public static long getRecordsWritten() { return CORE.getRecordsWritten(); }
+    public static int getPendingWalRecords() { return CORE.getPendingWalRecords(); }
+    public static String describeWalQueue() { return CORE.describeWalQueue(); }
+    public static String describeScheduler() { return CORE.describeScheduler(); }
+    public static AtomicLong getTotalCommits() { return CORE.getTotalCommits(); }
+
+    /** Mean of the server's recent tick times in ms, or 0 without a running server. */
+    private static double recentMsPerTick() {
+        MinecraftServer server = ServerLifecycleHooks.getCurrentServer();
+        if (server == null) return 0;
+        long[] times = server.getTickTimesNanos();
+        long sum = 0;
+        int n = 0;
+        for (long t : times) {
+            if (t <= 0) continue; // not ticked yet
+            sum += t;
+            n++;
+        }
+        return n == 0 ? 0 : sum / (n * 1_000_000.0);
+    }
+}
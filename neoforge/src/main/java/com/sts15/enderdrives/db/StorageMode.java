@@ -0,0 +1,15 @@
+package com.sts15.enderdrives.db;
+
+/**
+ * Where the DB managers keep their entries.
+ */
+public enum StorageMode {
+    /** Entries, serialized keys and AE2 keys are ordinary Java objects. */
+    HEAP,
+    /**
+     * Serialized keys and counts live in direct memory behind open-addressing tables; only recently used
+     * AE2 keys stay on the heap. Keeps large databases out of the old generation, at the cost of decoding
+     * cold keys again when they are queried.
+     */
+    OFF_HEAP
+}
@@ -0,0 +1,28 @@
+package com.sts15.enderdrives.db;
+
+import net.minecraft.world.level.storage.LevelResource;
+import net.neoforged.neoforge.server.ServerLifecycleHooks;
+
+import java.nio.file.Path;
+
+/**
+ * Where the storage core keeps its files.
+ */
+@FunctionalInterface
+public interface StoragePaths {
+
+    /** @return The EnderDrives data directory; tapes live in its {@code TapeDrives} subdirectory. */
+    Path root();
+
+    /** {@code <world>/data/enderdrives} of the running server; resolved on every call. */
+    static StoragePaths server() {
+        return () -> ServerLifecycleHooks.getCurrentServer()
+                .getWorldPath(LevelResource.ROOT)
+                .resolve("data").resolve("enderdrives");
+    }
+
+    /** A fixed directory, e.g. a temporary one outside a server. */
+    static StoragePaths of(Path root) {
+        return () -> root;
+    }
+}
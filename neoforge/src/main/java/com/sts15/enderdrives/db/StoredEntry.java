@@ -2,6 +2,14 @@ package com.sts15.enderdrives.db;
 
 import appeng.api.stacks.AEItemKey;
 
-public record StoredEntry(long count, AEItemKey aeKey) {
+/**
+ * Stored item entry. The count is updated in place; see {@link MutableEntry}.
+ */
+public final class StoredEntry extends MutableEntry<AEItemKey> {
+    /** Read-only default for lookups of absent keys; never update it. */
     public static final StoredEntry EMPTY = new StoredEntry(0L, null);
+
+    public StoredEntry(long count, AEItemKey aeKey) {
+        super(count, aeKey);
+    }
 }
@@ -0,0 +1,59 @@
+package com.sts15.enderdrives.db;
+
+import java.util.Objects;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A fixed set of locks that channels hash onto.
+ * <p>
+ * Writers only lock the stripe of the channel they change, so saves to different channels run in
+ * parallel instead of queueing on one manager-wide lock. A checkpoint takes every stripe, in index
+ * order, for the moment it needs a consistent cut across all channels.
+ */
+public class StripedLock {
+
+    private final ReentrantLock[] stripes;
+    private final int mask;
+
+    /**
+     * @param minStripes Rounded up to a power of two.
+     */
+    public StripedLock(int minStripes) {
+        int n = Integer.highestOneBit(Math.max(1, minStripes - 1)) << 1;
+        stripes = new ReentrantLock[n];
+        for (int i = 0; i < n; i++) stripes[i] = new ReentrantLock();
+        mask = n - 1;
+    }
+
+    public ReentrantLock forChannel(String scope, int freq) {
+        return stripes[indexOf(scope, freq)];
+    }
+
+    /** Index of the channel's stripe, for structures sharded the same way. */
+    public int indexOf(String scope, int freq) {
+        int h = Objects.hashCode(scope) * 31 + freq;
+        h ^= h >>> 16;
+        return (h * 0x9E3779B1 >>> 16) & mask;
+    }
+
+    public ReentrantLock get(int index) {
+        return stripes[index];
+    }
+
+    public ReentrantLock forChannel(ChannelKey key) {
+        return forChannel(key.scope(), key.freq());
+    }
+
+    /** Locks every stripe. Must not be called while holding a single stripe. */
+    public void lockAll() {
+        for (ReentrantLock stripe : stripes) stripe.lock();
+    }
+
+    public void unlockAll() {
+        for (int i = stripes.length - 1; i >= 0; i--) stripes[i].unlock();
+    }
+
+    public int size() {
+        return stripes.length;
+    }
+}
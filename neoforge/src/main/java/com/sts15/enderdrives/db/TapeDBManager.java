@@ -1,10 +1,8 @@
 package com.sts15.enderdrives.db;
 
 import appeng.api.stacks.AEItemKey;
-import com.sts15.enderdrives.config.serverConfig;
-import net.minecraft.server.MinecraftServer;
+import com.sts15.enderdrives.items.TapeDiskItem;
 import net.minecraft.world.item.ItemStack;
-import net.minecraft.world.level.storage.LevelResource;
 import net.neoforged.neoforge.server.ServerLifecycleHooks;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -23,19 +21,54 @@ public class TapeDBManager {
     private static final Map<UUID, TapeDriveCache> activeCaches = new ConcurrentHashMap<>();
     private static final Set<UUID> pinnedTapes = ConcurrentHashMap.newKeySet();
     private static ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
-    private static final int FLUSH_THRESHOLD = serverConfig.TAPE_DB_FLUSH_THRESHOLD.get();
-    private static final long FLUSH_INTERVAL = serverConfig.TAPE_DB_FLUSH_INTERVAL.get();
-    private static final long EVICTION_THRESHOLD = serverConfig.TAPE_DB_RAM_EVICT_TIMEOUT.get();
     private static final int PAGE_SIZE = 10000;
     private static final double BYTE_COST_MULTIPLIER = 0.75;
-    static boolean debug_log = serverConfig.TAPE_DB_DEBUG_LOG.get();
+    /** Tape item stacks; empty stacks decode to null. */
+    private static final KeyCodec<AEItemKey> TAPE_KEYS = new KeyCodec<>() {
+        @Override
+        public AEItemKey decode(byte[] bytes) {
+            ItemStack stack = deserializeItemStackFromBytes(bytes);
+            return stack.isEmpty() ? null : AEItemKey.of(stack);
+        }
+
+        @Override public byte[] encode(AEItemKey key) { return TapeDiskItem.serializeItemStackToBytes(key.toStack(1)); }
+        @Override public void clearCache() {}
+    };
+    private static volatile StoragePaths paths = StoragePaths.server();
+    private static volatile StorageConfig config = null;
+    private static volatile KeyCodec<AEItemKey> keys = TAPE_KEYS;
+    static boolean debug_log = false;
+
+    /**
+     * Replaces the server bindings, e.g. to run the tape store outside a server. Call it before
+     * {@link #init()} and before any tape is loaded. Entries whose bytes {@code keys} can't decode are kept
+     * with no AE2 key, except that loading a .bin file backs them up to JSON as unreadable.
+     */
+    public static void configure(StoragePaths paths, StorageConfig config, KeyCodec<AEItemKey> keys) {
+        TapeDBManager.paths = paths;
+        TapeDBManager.config = config;
+        TapeDBManager.keys = keys;
+        debug_log = config.tapeDebugLog();
+    }
+
+    /** The config given to {@link #configure}, or else the server config. */
+    private static StorageConfig config() {
+        StorageConfig current = config;
+        if (current == null) {
+            current = StorageConfig.fromServerConfig();
+            config = current;
+            debug_log = current.tapeDebugLog();
+        }
+        return current;
+    }
 
     public static void init() {
         if (executor.isShutdown() || executor.isTerminated()) {
             executor = Executors.newSingleThreadScheduledExecutor();
         }
+        long flushInterval = config().tapeFlushIntervalMs();
         Runtime.getRuntime().addShutdownHook(new Thread(TapeDBManager::flushAll));
-        executor.scheduleAtFixedRate(TapeDBManager::flushAndEvict, FLUSH_INTERVAL, FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+        executor.scheduleAtFixedRate(TapeDBManager::flushAndEvict, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
         log("TapeDBManager initialized.");
     }
 
@@ -109,7 +142,7 @@ public class TapeDBManager {
     }
 
     public static long getByteLimit(UUID diskId) {
-        return serverConfig.TAPE_DISK_BYTE_LIMIT.get();
+        return config().tapeByteLimit();
     }
 
     public static void releaseFromRAM(UUID id) {
@@ -167,7 +200,7 @@ public class TapeDBManager {
         }
 
         // Auto-flush if buffer is large
-        if (cache.deltaBuffer.size() >= FLUSH_THRESHOLD) {
+        if (cache.deltaBuffer.size() >= config().tapeFlushThreshold()) {
             flush(diskId, cache);
         }
     }
@@ -181,12 +214,13 @@ public class TapeDBManager {
 
     public static void flushAndEvict() {
         long now = System.currentTimeMillis();
+        long evictAfter = config().tapeEvictTimeoutMs();
         List<UUID> toEvict = new ArrayList<>();
         for (var entry : activeCaches.entrySet()) {
             UUID diskId = entry.getKey();
             TapeDriveCache cache = entry.getValue();
             flushAndSave(diskId, cache);
-            if (!isPinned(diskId) && (now - cache.lastAccessed) > EVICTION_THRESHOLD) {
+            if (!isPinned(diskId) && (now - cache.lastAccessed) > evictAfter) {
                 toEvict.add(diskId);
             }
         }
@@ -201,21 +235,7 @@ public class TapeDBManager {
         for (var entry : cache.deltaBuffer.entrySet()) {
             TapeKey key = entry.getKey();
             long delta = entry.getValue();
-            StoredEntry current = cache.entries.getOrDefault(key, new StoredEntry(0, null));
-            long updated = current.count() + delta;
-
-            if (updated <= 0) {
-                cache.entries.remove(key);
-            } else {
-                AEItemKey aeKey = current.aeKey();
-                if (aeKey == null) {
-                    ItemStack stack = deserializeItemStackFromBytes(key.itemBytes());
-                    if (!stack.isEmpty()) {
-                        aeKey = AEItemKey.of(stack);
-                    }
-                }
-                cache.entries.put(key, new StoredEntry(updated, aeKey));
-            }
+            applyDelta(cache, key, delta);
         }
 
         // Clear the deltaBuffer
@@ -273,9 +293,8 @@ public class TapeDBManager {
                     dis.readFully(data);
                     long count = dis.readLong();
 
-                    ItemStack stack = deserializeItemStackFromBytes(data);
-                    if (!stack.isEmpty()) {
-                        AEItemKey aeKey = AEItemKey.of(stack);
+                    AEItemKey aeKey = keys.decode(data);
+                    if (aeKey != null) {
                         cache.entries.put(new TapeKey(data), new StoredEntry(count, aeKey));
                     } else {
                         hadInvalidItems = true;
@@ -323,13 +342,12 @@ public class TapeDBManager {
                     long checksum = dis.readLong();
                     if (checksum != checksum(data, delta)) continue;
                     TapeKey key = new TapeKey(data);
-                    AEItemKey aeKey = AEItemKey.of(deserializeItemStackFromBytes(data));
-                    long existing = cache.entries.getOrDefault(key, new StoredEntry(0, aeKey)).count();
-                    long updated = existing + delta;
-                    if (updated <= 0) {
+                    AEItemKey aeKey = keys.decode(data);
+                    StoredEntry current = cache.entries.get(key);
+                    if (current == null) {
+                        if (delta > 0) cache.entries.put(key, new StoredEntry(delta, aeKey));
+                    } else if (current.add(delta) <= 0) {
                         cache.entries.remove(key);
-                    } else {
-                        cache.entries.put(key, new StoredEntry(updated, aeKey));
                     }
                 }
             } catch (EOFException ignored) {} catch (IOException e) {
@@ -345,25 +363,29 @@ public class TapeDBManager {
         return cache;
     }
 
+    /**
+     * Applies a buffered delta to the flushed entries. Stored entries are updated in place, so only new
+     * keys allocate.
+     */
+    private static void applyDelta(TapeDriveCache cache, TapeKey key, long delta) {
+        StoredEntry current = cache.entries.get(key);
+        if (current == null) {
+            if (delta <= 0) return;
+            cache.entries.put(key, new StoredEntry(delta, keys.decode(key.itemBytes())));
+        } else if (current.add(delta) <= 0) {
+            cache.entries.remove(key);
+        } else if (current.aeKey() == null) {
+            AEItemKey aeKey = keys.decode(key.itemBytes());
+            if (aeKey != null) current.resolve(aeKey);
+        }
+    }
+
     private static void flush(UUID diskId, TapeDriveCache cache) {
         if (cache.deltaBuffer.isEmpty()) return;
         for (var entry : cache.deltaBuffer.entrySet()) {
             TapeKey key = entry.getKey();
             long delta = entry.getValue();
-            StoredEntry current = cache.entries.getOrDefault(key, new StoredEntry(0, null));
-            long updated = current.count() + delta;
-            if (updated <= 0) {
-                cache.entries.remove(key);
-            } else {
-                AEItemKey aeKey = current.aeKey();
-                if (aeKey == null) {
-                    ItemStack stack = deserializeItemStackFromBytes(key.itemBytes());
-                    if (!stack.isEmpty()) {
-                        aeKey = AEItemKey.of(stack);
-                    }
-                }
-                cache.entries.put(key, new StoredEntry(updated, aeKey));
-            }
+            applyDelta(cache, key, delta);
         }
         cache.deltaBuffer.clear();
 
@@ -410,23 +432,14 @@ public class TapeDBManager {
     }
 
     private static Path getFolder() {
-        MinecraftServer server = ServerLifecycleHooks.getCurrentServer();
-        Path path = server.getWorldPath(LevelResource.ROOT)
-                .resolve("data")
-                .resolve("enderdrives")
-                .resolve("TapeDrives");
+        Path path = paths.root().resolve("TapeDrives");
         File folder = path.toFile();
         if (!folder.exists()) folder.mkdirs();
         return path;
     }
 
     private static Path getExportFolder() {
-        MinecraftServer server = ServerLifecycleHooks.getCurrentServer();
-        Path path = server.getWorldPath(LevelResource.ROOT)
-                .resolve("data")
-                .resolve("enderdrives")
-                .resolve("TapeDrives")
-                .resolve("export");
+        Path path = paths.root().resolve("TapeDrives").resolve("export");
         File folder = path.toFile();
         if (!folder.exists()) folder.mkdirs();
         return path;
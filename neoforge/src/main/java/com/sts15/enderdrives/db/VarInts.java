@@ -0,0 +1,64 @@
+package com.sts15.enderdrives.db;
+
+import java.nio.ByteBuffer;
+
+/**
+ * LEB128 varints, as used by the EDS3 segment format: 7 bits per byte, low bits first, high bit set on every
+ * byte but the last. Negative numbers are zigzag-encoded first, so small magnitudes stay short either way.
+ */
+final class VarInts {
+
+    /** Longest encoding of a long. */
+    static final int MAX_LONG_BYTES = 10;
+
+    private VarInts() {}
+
+    /**
+     * Encodes {@code value} as unsigned into {@code buf} at {@code pos}.
+     *
+     * @return The position after the last byte written.
+     */
+    static int putVarLong(byte[] buf, int pos, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buf[pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buf[pos++] = (byte) value;
+        return pos;
+    }
+
+    /** Encodes {@code value} as unsigned; negative ints take 5 bytes. */
+    static int putVarInt(byte[] buf, int pos, int value) {
+        return putVarLong(buf, pos, value & 0xFFFFFFFFL);
+    }
+
+    /**
+     * @throws IllegalArgumentException If the varint runs over 10 bytes.
+     */
+    static long getVarLong(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) return value;
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    /**
+     * @throws IllegalArgumentException If the value doesn't fit in 32 bits.
+     */
+    static int getVarInt(ByteBuffer in) {
+        long value = getVarLong(in);
+        if ((value >>> 32) != 0) throw new IllegalArgumentException("Varint out of int range: " + value);
+        return (int) value;
+    }
+
+    static int zigZag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    static int unZigZag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
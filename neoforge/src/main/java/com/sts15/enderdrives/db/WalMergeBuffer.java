@@ -0,0 +1,137 @@
+package com.sts15.enderdrives.db;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Coalesces WAL deltas per key between flushes, so a key changed thousands of times in one window is
+ * logged as a single net record.
+ * <p>
+ * The buffer is sharded like the manager's {@link StripedLock}, and each shard is guarded by its stripe:
+ * writers add while holding their channel's stripe anyway, so a repeated key costs one hash lookup and
+ * allocates nothing. Records are handed to the WAL while the shard's stripe is held, so a checkpoint
+ * that holds every stripe never cuts the WAL with merged deltas still on their way to it.
+ * <p>
+ * Buffered deltas are already applied in memory but not yet in the WAL; they are lost on a crash. The
+ * window is capped by {@code wal_merge_window_ms}, which tick lag never stretches. With the PER_BATCH fsync
+ * policy the WAL writer flushes the buffer itself as it starts each batch (see {@link WalWriter#setBeforeBatch}),
+ * so deltas merge only while the previous batch is synced. With merging off, the buffer only holds records a
+ * full WAL queue refused.
+ */
+public class WalMergeBuffer {
+
+    /** Receives one net record; called with the key's stripe held. */
+    @FunctionalInterface
+    public interface Sink {
+        /** @return false if the record was refused (e.g. the WAL queue is full); it then stays buffered. */
+        boolean emit(AEKey key, long delta);
+    }
+
+    private final StripedLock stripes;
+    private final Map<AEKey, long[]>[] shards;
+    private final int threshold;
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicLong deltasAdded = new AtomicLong();
+    private final AtomicLong recordsEmitted = new AtomicLong();
+
+    /**
+     * @param threshold Number of distinct buffered keys at which {@link #add} asks for a flush.
+     */
+    public WalMergeBuffer(StripedLock stripes, int threshold) {
+        this.stripes = stripes;
+        this.threshold = threshold;
+        this.shards = newShards(stripes.size());
+        for (int i = 0; i < shards.length; i++) shards[i] = new HashMap<>();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<AEKey, long[]>[] newShards(int n) {
+        return (Map<AEKey, long[]>[]) new Map<?, ?>[n];
+    }
+
+    /**
+     * Adds {@code delta} to {@code key}'s pending record. Callers must hold the key's channel stripe.
+     *
+     * @return Whether the buffer reached its threshold and should be flushed soon.
+     */
+    public boolean add(AEKey key, long delta) {
+        deltasAdded.incrementAndGet();
+        Map<AEKey, long[]> shard = shards[stripes.indexOf(key.scope(), key.freq())];
+        long[] pending = shard.get(key);
+        if (pending != null) {
+            pending[0] += delta;
+            return false;
+        }
+        shard.put(key, new long[]{delta});
+        return size.incrementAndGet() >= threshold;
+    }
+
+    /**
+     * Emits a record for every key with a non-zero net delta and removes it from the buffer. Stops at the
+     * first record the sink refuses; that key and everything not yet visited stay buffered and keep
+     * merging. Takes each stripe in turn, so it must not be called while holding a single stripe (holding
+     * all of them is fine).
+     *
+     * @return The number of records emitted.
+     */
+    public int flush(Sink sink) {
+        int emitted = 0;
+        boolean refused = false;
+        for (int i = 0; i < shards.length && !refused; i++) {
+            ReentrantLock stripe = stripes.get(i);
+            stripe.lock();
+            try {
+                Map<AEKey, long[]> shard = shards[i];
+                if (shard.isEmpty()) continue;
+                for (Iterator<Map.Entry<AEKey, long[]>> it = shard.entrySet().iterator(); it.hasNext(); ) {
+                    Map.Entry<AEKey, long[]> e = it.next();
+                    long delta = e.getValue()[0];
+                    if (delta != 0) {
+                        if (!sink.emit(e.getKey(), delta)) {
+                            refused = true;
+                            break;
+                        }
+                        emitted++;
+                    }
+                    it.remove();
+                    size.decrementAndGet();
+                }
+            } finally {
+                stripe.unlock();
+            }
+        }
+        recordsEmitted.addAndGet(emitted);
+        return emitted;
+    }
+
+    /** Drops the pending deltas of one channel, e.g. after it was cleared. Callers must hold its stripe. */
+    public void discard(String scope, int freq) {
+        Map<AEKey, long[]> shard = shards[stripes.indexOf(scope, freq)];
+        for (Iterator<AEKey> it = shard.keySet().iterator(); it.hasNext(); ) {
+            AEKey key = it.next();
+            if (key.freq() == freq && key.scope().equals(scope)) {
+                it.remove();
+                size.decrementAndGet();
+            }
+        }
+    }
+
+    /** Distinct keys currently buffered. */
+    public int size() {
+        return Math.max(0, size.get());
+    }
+
+    public long getDeltasAdded() { return deltasAdded.get(); }
+    public long getRecordsEmitted() { return recordsEmitted.get(); }
+
+    public String describe() {
+        long added = deltasAdded.get();
+        long emitted = recordsEmitted.get();
+        double ratio = emitted == 0 ? 0.0 : (double) added / emitted;
+        return String.format("%d keys pending, %d deltas -> %d records (%.1fx)", size(), added, emitted, ratio);
+    }
+}
@@ -0,0 +1,684 @@
+package com.sts15.enderdrives.db;
+
+import com.sts15.enderdrives.Constants;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+
+/**
+ * Group-commit WAL writer.
+ * <p>
+ * Producers {@link #append} records and get a sequence number back. Appending is lock-free: records are
+ * pushed onto a CAS-linked stack whose nodes carry consecutive sequence numbers, so producers on
+ * different channels never block each other. A dedicated thread wakes as soon as anything is queued,
+ * detaches <i>everything</i> pending as one batch, frames it into a pooled direct buffer, writes it with a
+ * single FileChannel write and syncs it according to the {@link FsyncPolicy}. Anyone blocked in
+ * {@link #awaitDurable} is then woken together.
+ * <p>
+ * The queue is bounded: {@link #offer} applies the {@link OverflowPolicy} once {@code capacity} records
+ * are pending. {@link #append} bypasses the bound, for the few records that must not wait (e.g. those
+ * that belong before a rotation). The bound is checked without locking, so concurrent producers can
+ * overshoot it by at most one record each.
+ * <p>
+ * On-disk framing is unchanged from the old stream writer: {@code [int len][record][long crc32]}.
+ */
+public class WalWriter {
+
+    public enum FsyncPolicy {
+        /** Write to the OS page cache only; a crash of the machine (not the JVM) can lose the tail. */
+        NONE,
+        /** fsync after every batch; a record is durable once its batch returns. */
+        PER_BATCH,
+        /** fsync at most once per interval; writes in between are only in the page cache. */
+        INTERVAL
+    }
+
+    /** What {@link #offer} does when the queue is full. */
+    public enum OverflowPolicy {
+        /** Wait until the writer has made room. */
+        BLOCK,
+        /** Refuse the record; the caller keeps it (e.g. merged into its own buffer) and retries later. */
+        COALESCE
+    }
+
+    private static final DirectBufferPool BUFFERS = new DirectBufferPool(256 * 1024, 4);
+
+    private final String name;
+    private final Path path;
+    private final FsyncPolicy policy;
+    private final long fsyncIntervalMs;
+    private final int capacity;
+    private final OverflowPolicy overflowPolicy;
+
+    /** Guards sequence, sync and rotation state; never held during I/O, never taken by {@link #append}. */
+    private final Object queueLock = new Object();
+    /** Guards the channel; held by the writer for the whole swap+write of a batch. */
+    private final Object ioLock = new Object();
+
+    /** Newest pending record; the chain ends at a marker node that carries the last detached sequence. */
+    private final AtomicReference<Node> top = new AtomicReference<>(new Node(null, 0));
+    /** Sequence of the last record detached for writing. */
+    private volatile long detachedSeq = 0;
+    /** Set by the writer thread before it parks, so producers only unpark it when needed. */
+    private volatile boolean sleeping = false;
+    /** Run by the writer thread before it detaches a batch that was asked for with {@link #requestBatch}. */
+    private volatile Runnable beforeBatch = null;
+    private volatile boolean batchRequested = false;
+    private long writtenSeq = 0;
+    private long durableSeq = 0;
+    private boolean syncRequested = false;
+    /** Pending rotation: records up to sequence {@code rotateAt} still go to the old file. */
+    private Path rotateTarget = null;
+    private long rotateAt = 0;
+    private long rotationsRequested = 0;
+    private long rotationsDone = 0;
+    private IOException rotationError = null;
+
+    private FileChannel channel;
+    private volatile Thread thread;
+    private volatile boolean running = false;
+    private volatile long lastSyncTime = System.currentTimeMillis();
+
+    private final AtomicLong recordsWritten = new AtomicLong();
+    private final AtomicLong batchesWritten = new AtomicLong();
+    private final AtomicLong fsyncs = new AtomicLong();
+    private final AtomicLong overflows = new AtomicLong();
+    private final AtomicLong blockedNanos = new AtomicLong();
+    private volatile int maxDepth = 0;
+    /** Enqueue time of the oldest record written but not yet durable; 0 if none. Writer thread only. */
+    private long oldestUndurableNanos = 0;
+    private volatile long timeToDurableNanos = 0;
+    private volatile long maxTimeToDurableNanos = 0;
+
+    /** Batch whose write failed; retried before anything new is detached. Written under ioLock. */
+    private volatile Batch failedBatch = null;
+    /** Consecutive failed writes. Writer thread only. */
+    private int failures = 0;
+    /** Set once writes have failed {@link #FAILING_AFTER} times in a row; cleared by the next good write. */
+    private volatile boolean failing = false;
+
+    /** Consecutive failed writes after which the WAL reports itself as {@link #isFailing failing}. */
+    static final int FAILING_AFTER = 5;
+
+    /**
+     * @param capacity Pending records at which {@link #offer} applies {@code overflowPolicy}.
+     */
+    public WalWriter(String name, Path path, FsyncPolicy policy, long fsyncIntervalMs,
+                     int capacity, OverflowPolicy overflowPolicy) {
+        this.name = name;
+        this.path = path;
+        this.policy = policy;
+        this.fsyncIntervalMs = Math.max(1, fsyncIntervalMs);
+        this.capacity = Math.max(1, capacity);
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * Opens the WAL file for appending and starts the writer thread.
+     */
+    public void open() throws IOException {
+        synchronized (ioLock) {
+            openChannel();
+        }
+        running = true;
+        thread = new Thread(this::runLoop, name + "-WALWriter");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Queues a record regardless of the capacity and wakes the writer if it is idle. Lock-free; does not
+     * block on I/O.
+     * <p>
+     * Records appended by one thread are written in the order they were appended.
+     *
+     * @return The record's sequence number, for {@link #awaitDurable}.
+     */
+    public long append(byte[] record) {
+        Node node = new Node(record, 0);
+        node.enqueuedNanos = System.nanoTime();
+        Node head;
+        do {
+            head = top.get();
+            node.seq = head.seq + 1;
+            node.next = head;
+        } while (!top.compareAndSet(head, node));
+        int depth = (int) (node.seq - detachedSeq);
+        if (depth > maxDepth) maxDepth = depth;
+        if (sleeping) wake();
+        return node.seq;
+    }
+
+    /**
+     * Queues a record if there is room. When the queue is full, {@link OverflowPolicy#BLOCK} waits for
+     * the writer to drain it, {@link OverflowPolicy#COALESCE} gives up at once.
+     *
+     * @return The record's sequence number, or -1 if it was refused.
+     */
+    public long offer(byte[] record) {
+        if (getPendingCount() >= capacity) {
+            overflows.incrementAndGet();
+            if (overflowPolicy == OverflowPolicy.COALESCE || !awaitRoom()) return -1;
+        }
+        return append(record);
+    }
+
+    /** Waits until the queue is below capacity. @return false if the writer stopped (or we were interrupted). */
+    private boolean awaitRoom() {
+        long start = System.nanoTime();
+        try {
+            synchronized (queueLock) {
+                while (getPendingCount() >= capacity) {
+                    Thread t = thread;
+                    if (!running || t == null || !t.isAlive()) return false;
+                    wake();
+                    queueLock.wait(10);
+                }
+                return true;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            blockedNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Sets what the writer runs before a batch asked for with {@link #requestBatch}, e.g. handing over records
+     * merged while the previous batch was being written. It runs on the writer thread, so it must not wait for
+     * the writer: it should queue with {@link #append}, not {@link #offer}.
+     */
+    public void setBeforeBatch(Runnable hook) {
+        this.beforeBatch = hook;
+    }
+
+    /** Wakes the writer to run the {@link #setBeforeBatch} hook and write what it queues. Lock-free. */
+    public void requestBatch() {
+        if (batchRequested) return;
+        batchRequested = true;
+        if (sleeping) wake();
+    }
+
+    /**
+     * Blocks until the record with sequence {@code seq} is durable under the configured policy.
+     *
+     * @return false if the timeout elapsed (or the writer stopped) first.
+     */
+    public boolean awaitDurable(long seq, long timeoutMs) {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        synchronized (queueLock) {
+            while (durableSeq < seq) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0 || thread == null || !thread.isAlive()) return false;
+                try {
+                    queueLock.wait(left);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Writes everything appended so far and forces it to disk, regardless of policy.
+     */
+    public boolean flush(long timeoutMs) {
+        long seq;
+        synchronized (queueLock) {
+            seq = top.get().seq;
+            syncRequested = true;
+        }
+        wake();
+        return awaitDurable(seq, timeoutMs);
+    }
+
+    /**
+     * Asks the writer to move the current WAL file to {@code rotatedPath} and continue on a fresh file.
+     * <p>
+     * This is O(1) and does no I/O, so it can be called under the caller's own locks: every record
+     * appended before the call ends up (forced) in the rotated file, everything after it in the new one.
+     * The caller must make sure no append is in flight during the call. Only one rotation can be
+     * outstanding at a time.
+     *
+     * @return A ticket for {@link #awaitRotation}.
+     */
+    public long requestRotation(Path rotatedPath) throws IOException {
+        synchronized (queueLock) {
+            if (rotateTarget != null) throw new IllegalStateException("WAL rotation already pending for " + name);
+            if (thread == null || !thread.isAlive()) {
+                // No writer thread to hand the work to; nothing can be appended concurrently either.
+                rotateNow(rotatedPath);
+                return rotationsDone = ++rotationsRequested;
+            }
+            rotateTarget = rotatedPath;
+            rotateAt = top.get().seq;
+            wake();
+            return ++rotationsRequested;
+        }
+    }
+
+    /**
+     * Blocks until the rotation with the given ticket has been done.
+     *
+     * @throws IOException if the rotation failed or the timeout elapsed first.
+     */
+    public void awaitRotation(long ticket, long timeoutMs) throws IOException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        synchronized (queueLock) {
+            while (rotationsDone < ticket) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0 || thread == null || !thread.isAlive()) {
+                    throw new IOException("Timed out waiting for WAL rotation of " + path);
+                }
+                try {
+                    queueLock.wait(left);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted waiting for WAL rotation of " + path, e);
+                }
+            }
+            if (rotationError != null) {
+                IOException e = rotationError;
+                rotationError = null;
+                throw e;
+            }
+        }
+    }
+
+    /** Rotates immediately, writing and forcing everything pending into the old file first. */
+    private void rotateNow(Path rotatedPath) throws IOException {
+        synchronized (ioLock) {
+            if (channel != null) writeBatchLocked(true);
+            switchFile(rotatedPath);
+        }
+    }
+
+    /** Closes the current file, moves it to {@code rotatedPath} and opens a fresh one. Needs ioLock. */
+    private void switchFile(Path rotatedPath) throws IOException {
+        try {
+            if (channel != null) channel.close();
+            channel = null;
+            if (Files.exists(path)) {
+                Files.move(path, rotatedPath, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            // Even if the move failed, keep appending (to whichever file is now at path).
+            openChannel();
+            lastSyncTime = System.currentTimeMillis();
+        }
+    }
+
+    /** Opens the file at {@code path} for appending. Needs ioLock. */
+    private void openChannel() throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        channel.position(channel.size());
+    }
+
+    /**
+     * Flushes and forces what is pending, stops the writer thread and closes the file.
+     */
+    public void close() {
+        flush(5000);
+        running = false;
+        wake();
+        if (thread != null) {
+            try {
+                thread.join(1000);
+            } catch (InterruptedException ignored) {}
+            thread = null;
+        }
+        synchronized (ioLock) {
+            try {
+                if (channel != null) channel.close();
+            } catch (IOException e) {
+                Constants.LOG.error("[{}] Failed to close WAL {}", name, path, e);
+            }
+            channel = null;
+        }
+    }
+
+    /**
+     * Whether the last {@link #FAILING_AFTER} writes all failed. The records stay queued and are retried
+     * until a write succeeds, but callers should stop producing new ones in the meantime.
+     */
+    public boolean isFailing() { return failing; }
+
+    public int getPendingCount() {
+        return (int) (top.get().seq - detachedSeq);
+    }
+
+    public long getRecordsWritten() { return recordsWritten.get(); }
+    public long getBatchesWritten() { return batchesWritten.get(); }
+    public long getFsyncCount() { return fsyncs.get(); }
+    public FsyncPolicy getPolicy() { return policy; }
+    public int getCapacity() { return capacity; }
+    public OverflowPolicy getOverflowPolicy() { return overflowPolicy; }
+    /** High-water mark of the queue depth. */
+    public int getMaxDepth() { return maxDepth; }
+    /** How often {@link #offer} found the queue full. */
+    public long getOverflowCount() { return overflows.get(); }
+    public long getBlockedMillis() { return blockedNanos.get() / 1_000_000; }
+    /** Smoothed time from enqueue to durable of the oldest record of each durable batch. */
+    public double getTimeToDurableMillis() { return timeToDurableNanos / 1e6; }
+    public double getMaxTimeToDurableMillis() { return maxTimeToDurableNanos / 1e6; }
+
+    public String describe() {
+        return String.format((failing ? "FAILING, " : "") + "%d/%d pending (max %d), %s on overflow: %d overflows, %d ms blocked; time-to-durable %.1f ms (max %.1f ms)",
+                getPendingCount(), capacity, maxDepth, overflowPolicy, getOverflowCount(), getBlockedMillis(),
+                getTimeToDurableMillis(), getMaxTimeToDurableMillis());
+    }
+
+// ==== Writer thread ====
+
+    private void runLoop() {
+        while (true) {
+            if (!hasWork()) {
+                if (!running) return;
+                sleeping = true;
+                // Re-check after publishing the flag: an append either sees it or is seen here.
+                if (!hasWork() && running) LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(waitMillis()));
+                sleeping = false;
+                if (Thread.interrupted()) return;
+                continue;
+            }
+            if (batchRequested) {
+                // Cleared first, so a request made while the hook runs gets another batch.
+                batchRequested = false;
+                runBeforeBatch();
+            }
+            try {
+                writeBatch();
+                if (failures > 0) {
+                    Constants.LOG.info("[{}] WAL writes recovered after {} failed attempts", name, failures);
+                    failures = 0;
+                }
+            } catch (IOException e) {
+                failures++;
+                failPendingRotation(e);
+                if (!running) {
+                    Constants.LOG.error("[{}] WAL write failed while closing; {} records were not written to {}",
+                            name, unwrittenCount(), path, e);
+                    return;
+                }
+                if (failures == 1) {
+                    Constants.LOG.error("[{}] WAL write failed; retrying", name, e);
+                } else if (failures == FAILING_AFTER) {
+                    failing = true;
+                    Constants.LOG.error("[{}] WAL {} could not be written {} times in a row ({} records waiting); "
+                            + "refusing saves until it can be written again", name, path, failures, unwrittenCount(), e);
+                } else {
+                    Constants.LOG.warn("[{}] WAL write failed again (attempt {}): {}", name, failures, e.toString());
+                }
+                try {
+                    Thread.sleep(Math.min(1000, 100L * failures)); // avoid spinning on a persistent I/O error
+                } catch (InterruptedException ie) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void runBeforeBatch() {
+        Runnable hook = beforeBatch;
+        if (hook == null) return;
+        try {
+            hook.run();
+        } catch (RuntimeException e) {
+            Constants.LOG.error("[{}] WAL pre-batch hook failed", name, e);
+        }
+    }
+
+    /** Records appended but not yet written: the failed batch plus everything still queued. */
+    private int unwrittenCount() {
+        Batch failed = failedBatch;
+        return (failed == null ? 0 : failed.records.size()) + getPendingCount();
+    }
+
+    /** A rotation can't wait for a WAL that doesn't take writes; fail it so the checkpoint is abandoned. */
+    private void failPendingRotation(IOException cause) {
+        synchronized (queueLock) {
+            if (rotateTarget == null) return;
+            rotateTarget = null;
+            rotationsDone = rotationsRequested;
+            rotationError = cause;
+            queueLock.notifyAll();
+        }
+    }
+
+    private void writeBatch() throws IOException {
+        synchronized (ioLock) {
+            writeBatchLocked(false);
+        }
+    }
+
+    /**
+     * Writes the pending batch, or retries the one whose write failed. Needs ioLock.
+     * <p>
+     * A batch is only forgotten once it has been written (and synced, if the policy asks for it); until
+     * then it stays in {@link #failedBatch} and its sequence numbers are not published. A retry first cuts
+     * the file back to where the batch started, so a torn frame from the failed attempt doesn't stay in it.
+     */
+    private void writeBatchLocked(boolean force) throws IOException {
+        Batch batch = failedBatch;
+        if (batch == null) {
+            if (channel == null) return;
+            batch = detach(force);
+            failedBatch = batch;
+        } else {
+            // The channel itself may be what failed (or the file was replaced), so retry on a fresh one.
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {}
+            }
+            channel = null;
+            openChannel();
+        }
+        if (batch.position < 0) {
+            batch.position = channel.position();
+        } else {
+            channel.truncate(batch.position);
+            channel.position(batch.position);
+        }
+
+        if (batch.rotation != null) {
+            try {
+                writeRecords(batch.records.subList(0, batch.split));
+                channel.force(false);
+                fsyncs.incrementAndGet();
+            } catch (IOException e) {
+                // Nothing was rotated; the whole batch is retried in the current file.
+                Constants.LOG.error("[{}] WAL rotation to {} failed", name, batch.rotation, e);
+                batch.rotation = null;
+                finishRotation(batch.ticket, e);
+                throw e;
+            }
+            IOException failure = null;
+            try {
+                switchFile(batch.rotation);
+            } catch (IOException e) {
+                // The records before the split are durable either way; only the move is lost.
+                Constants.LOG.error("[{}] WAL rotation to {} failed", name, batch.rotation, e);
+                failure = e;
+            }
+            batch.rotation = null;
+            finishRotation(batch.ticket, failure);
+            batch.records = batch.records.subList(batch.split, batch.records.size());
+            batch.position = -1;
+            if (channel == null) openChannel();
+            batch.position = channel.position();
+        }
+
+        writeRecords(batch.records);
+        if (batch.oldestEnqueued != 0 && oldestUndurableNanos == 0) oldestUndurableNanos = batch.oldestEnqueued;
+
+        boolean sync = batch.forceSync
+                || (policy == FsyncPolicy.PER_BATCH && !batch.records.isEmpty())
+                || (policy == FsyncPolicy.INTERVAL && System.currentTimeMillis() - lastSyncTime >= fsyncIntervalMs);
+        if (sync) {
+            channel.force(false);
+            fsyncs.incrementAndGet();
+            lastSyncTime = System.currentTimeMillis();
+        }
+        failedBatch = null;
+        failing = false;
+
+        boolean durable = sync || policy == FsyncPolicy.NONE;
+        if (durable && oldestUndurableNanos != 0) {
+            recordTimeToDurable(System.nanoTime() - oldestUndurableNanos);
+            oldestUndurableNanos = 0;
+        }
+        synchronized (queueLock) {
+            writtenSeq = Math.max(writtenSeq, batch.seq);
+            if (durable) durableSeq = writtenSeq;
+            queueLock.notifyAll();
+        }
+    }
+
+    /** Takes everything pending off the queue, with the sync and rotation state that applies to it. */
+    private Batch detach(boolean force) {
+        Batch batch = new Batch();
+        synchronized (queueLock) {
+            // Detach under queueLock so a rotation request sees either none or all of this batch.
+            Node head = top.get();
+            while (!top.compareAndSet(head, new Node(null, head.seq))) head = top.get();
+            List<byte[]> records = new ArrayList<>();
+            for (Node n = head; n.record != null; n = n.next) {
+                records.add(n.record);
+                batch.oldestEnqueued = n.enqueuedNanos;
+            }
+            Collections.reverse(records);
+            long firstSeq = head.seq - records.size() + 1;
+            detachedSeq = head.seq;
+            batch.records = records;
+            batch.seq = head.seq;
+            batch.forceSync = force || syncRequested;
+            syncRequested = false;
+            batch.rotation = rotateTarget;
+            if (batch.rotation != null) batch.split = (int) Math.max(0, Math.min(records.size(), rotateAt - firstSeq + 1));
+            batch.ticket = rotationsRequested;
+            rotateTarget = null;
+        }
+        return batch;
+    }
+
+    private void finishRotation(long ticket, IOException failure) {
+        synchronized (queueLock) {
+            rotationsDone = ticket;
+            rotationError = failure;
+            queueLock.notifyAll();
+        }
+    }
+
+    /** Writer thread only. */
+    private void recordTimeToDurable(long nanos) {
+        long smoothed = timeToDurableNanos;
+        timeToDurableNanos = smoothed == 0 ? nanos : smoothed + (nanos - smoothed) / 8;
+        if (nanos > maxTimeToDurableNanos) maxTimeToDurableNanos = nanos;
+    }
+
+    private void writeRecords(List<byte[]> batch) throws IOException {
+        if (batch.isEmpty()) return;
+        ByteBuffer buf = BUFFERS.acquire(BUFFERS.getBufferSize());
+        try {
+            for (byte[] rec : batch) {
+                int frameLen = 4 + rec.length + 8;
+                if (frameLen > buf.remaining()) {
+                    drain(buf);
+                    if (frameLen > buf.capacity()) {
+                        BUFFERS.release(buf);
+                        buf = BUFFERS.acquire(frameLen);
+                    }
+                }
+                buf.putInt(rec.length).put(rec).putLong(checksum(rec));
+            }
+            drain(buf);
+        } finally {
+            BUFFERS.release(buf);
+        }
+        recordsWritten.addAndGet(batch.size());
+        batchesWritten.incrementAndGet();
+    }
+
+    private void drain(ByteBuffer buf) throws IOException {
+        buf.flip();
+        while (buf.hasRemaining()) channel.write(buf);
+        buf.clear();
+    }
+
+    private boolean hasWork() {
+        if (top.get().seq != detachedSeq || failedBatch != null || batchRequested) return true;
+        synchronized (queueLock) {
+            return syncRequested || rotateTarget != null || intervalSyncDue();
+        }
+    }
+
+    private void wake() {
+        Thread t = thread;
+        if (t != null) LockSupport.unpark(t);
+    }
+
+    /** True when INTERVAL policy has written-but-unsynced records whose interval has elapsed. Needs queueLock. */
+    private boolean intervalSyncDue() {
+        return policy == FsyncPolicy.INTERVAL && durableSeq < writtenSeq
+                && System.currentTimeMillis() - lastSyncTime >= fsyncIntervalMs;
+    }
+
+    private long waitMillis() {
+        synchronized (queueLock) {
+            if (policy == FsyncPolicy.INTERVAL && durableSeq < writtenSeq) {
+                return Math.max(1, fsyncIntervalMs - (System.currentTimeMillis() - lastSyncTime));
+            }
+        }
+        return 1000;
+    }
+
+    /** Records detached for one write, kept until they are written. */
+    private static final class Batch {
+        List<byte[]> records;
+        long seq;
+        long oldestEnqueued;
+        boolean forceSync;
+        /** Where the rotated file goes; the first {@code split} records belong in the old file. */
+        Path rotation;
+        int split;
+        long ticket;
+        /** File position the batch starts at, or -1 before its first attempt; a retry truncates back to it. */
+        long position = -1;
+    }
+
+    /** A queued record, or (with a null record) the marker ending the pending chain. */
+    private static final class Node {
+        final byte[] record;
+        long seq;
+        long enqueuedNanos;
+        Node next;
+
+        Node(byte[] record, long seq) {
+            this.record = record;
+            this.seq = seq;
+        }
+    }
+
+    private static long checksum(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        return crc.getValue();
+    }
+}
@@ -15,6 +15,14 @@ import java.util.UUID;
 
 public class FTBTeamsCompat {
 
+    /** The id team disks store for the player's team (its owner's UUID), or null if there is none. */
+    public static String getTeamId(ServerPlayer player) {
+        if (player == null) return null;
+        TeamManager manager = FTBTeamsAPI.api().getManager();
+        if (manager == null) return null;
+        return manager.getTeamForPlayer(player).map(team -> team.getOwner().toString()).orElse(null);
+    }
+
     public static void updateTeamInfo(ItemStack stack, ServerPlayer player) {
         if (stack == null || player == null) return;
 
@@ -29,8 +29,6 @@ import org.jetbrains.annotations.Nullable;
 import java.io.*;
 import java.util.List;
 
-import static com.sts15.enderdrives.db.EnderDBManager.running;
-
 public class EnderDiskInventory extends AbstractEnderDiskInventory {
 
     private final ItemStack stack;
@@ -52,11 +50,14 @@ public class EnderDiskInventory extends AbstractEnderDiskInventory {
         this.typeLimit = item.getTypeLimit();
         this.scopePrefix = AbstractEnderDiskItem.getSafeScopePrefix(stack);
         this.disabled = item.isDisabled(stack);
+        if (!disabled) EnderDBManager.prefetch(scopePrefix, frequency);
     }
 
     @Override
     public CellState getStatus() {
         if (disabled) return CellState.FULL;
+        if (EnderDBManager.isFailed()) return CellState.ABSENT; // offline; the cause is in the server log
+        if (!EnderDBManager.isReady() || !EnderDBManager.isLoaded(scopePrefix, frequency)) return CellState.FULL; // still loading
         int typesUsed = EnderDBManager.getTypeCount(scopePrefix,frequency);
         return calculateCellState(typesUsed, typeLimit);
     }
@@ -78,18 +79,15 @@ public class EnderDiskInventory extends AbstractEnderDiskInventory {
         if (transferMode == 2) return 0;
         if (!(what instanceof AEItemKey itemKey)) return 0;
         if (passesFilter(what)) return 0;
-        if (!running) {
+        if (!EnderDBManager.isReady() || !EnderDBManager.isLoaded(scopePrefix, frequency)) {
             log("DB not ready for inserts.");
             return 0;
         }
-        ItemStack toInsert = itemKey.toStack();
-        byte[] serialized = serializeItemStackToBytes(toInsert);
-        if (serialized.length == 0) return 0;
-        long existing = EnderDBManager.getItemCount(scopePrefix, frequency, serialized);
+        long existing = EnderDBManager.getCount(scopePrefix, frequency, itemKey);
         boolean isNewType = existing == 0;
         if (isNewType && EnderDBManager.getTypeCountInclusive(scopePrefix, frequency) >= typeLimit) return 0;
         if (mode == Actionable.MODULATE) {
-            EnderDBManager.saveItem(scopePrefix, frequency, serialized, amount);
+            if (!EnderDBManager.saveItem(scopePrefix, frequency, itemKey, amount)) return 0;
             pingDriveForUpdate(source);
         }
         log("Insert called: freq=%d scopePrefix=%s amount=%d newType=%s mode=%s", frequency, scopePrefix, amount, isNewType, mode);
@@ -102,13 +100,11 @@ public class EnderDiskInventory extends AbstractEnderDiskInventory {
         int transferMode = EnderDiskItem.getTransferMode(stack);
         if (transferMode == 1) return 0;
         if (!(what instanceof AEItemKey itemKey)) return 0;
-        ItemStack toExtract = itemKey.toStack();
-        byte[] serialized = serializeItemStackToBytes(toExtract);
-        if (serialized.length == 0) return 0;
-        long current = EnderDBManager.getItemCount(scopePrefix, frequency, serialized);
+        if (!EnderDBManager.isReady() || !EnderDBManager.isLoaded(scopePrefix, frequency)) return 0;
+        long current = EnderDBManager.getCount(scopePrefix, frequency, itemKey);
         long toExtractCount = Math.min(current, amount);
         if (toExtractCount > 0 && mode == Actionable.MODULATE) {
-            EnderDBManager.saveItem(scopePrefix, frequency, serialized, -toExtractCount);
+            EnderDBManager.saveItem(scopePrefix, frequency, itemKey, -toExtractCount);
             stack.setPopTime(5);
             pingDriveForUpdate(source);
         }
@@ -124,6 +120,7 @@ public class EnderDiskInventory extends AbstractEnderDiskInventory {
 
     @Override
     public void getAvailableStacks(KeyCounter out) {
+        if (!EnderDBManager.isReady() || !EnderDBManager.isLoaded(scopePrefix, frequency)) return;
         List<AEKeyCacheEntry> entries = EnderDBManager.queryItemsByFrequency(scopePrefix, frequency);
         for (AEKeyCacheEntry entry : entries) {
             out.add(entry.aeKey(), entry.count());
@@ -133,10 +130,8 @@ public class EnderDiskInventory extends AbstractEnderDiskInventory {
     @Override
     public boolean isPreferredStorageFor(AEKey what, IActionSource source) {
         if (!(what instanceof AEItemKey itemKey)) return false;
-        byte[] serialized = serializeItemStackToBytes(itemKey.toStack());
-        if (serialized.length == 0) return false;
-        long storedCount = EnderDBManager.getItemCount(scopePrefix, frequency, serialized);
-        return storedCount > 0;
+        if (!EnderDBManager.isReady() || !EnderDBManager.isLoaded(scopePrefix, frequency)) return false; // still loading
+        return EnderDBManager.getCount(scopePrefix, frequency, itemKey) > 0;
     }
 
     public static CellState getCellStateForStack(ItemStack stack) {
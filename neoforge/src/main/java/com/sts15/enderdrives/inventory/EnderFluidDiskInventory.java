@@ -13,6 +13,7 @@ import appeng.api.storage.cells.StorageCell;
 import appeng.blockentity.storage.DriveBlockEntity;
 import com.sts15.enderdrives.db.EnderFluidDBManager;
 import com.sts15.enderdrives.db.FluidKeyCacheEntry;
+import com.sts15.enderdrives.db.SerializedKeyCache;
 import com.sts15.enderdrives.integration.DriveBlockEntityAccessor;
 import com.sts15.enderdrives.items.AbstractEnderDiskItem;
 import com.sts15.enderdrives.items.EnderFluidDiskItem;
@@ -29,8 +30,6 @@ import org.jetbrains.annotations.Nullable;
 import java.io.*;
 import java.util.List;
 
-import static com.sts15.enderdrives.db.EnderFluidDBManager.running;
-
 // Amounts are in mB
 public class EnderFluidDiskInventory extends AbstractEnderDiskInventory {
 
@@ -51,11 +50,14 @@ public class EnderFluidDiskInventory extends AbstractEnderDiskInventory {
         this.typeLimit = item.getTypeLimit();
         this.scopePrefix = AbstractEnderDiskItem.getSafeScopePrefix(stack);
         this.disabled = item.isDisabled(stack);
+        if (!disabled) EnderFluidDBManager.prefetch(scopePrefix, frequency);
     }
 
     @Override
     public CellState getStatus() {
         if (disabled) return CellState.FULL;
+        if (EnderFluidDBManager.isFailed()) return CellState.ABSENT; // offline; the cause is in the server log
+        if (!EnderFluidDBManager.isReady() || !EnderFluidDBManager.isLoaded(scopePrefix, frequency)) return CellState.FULL; // still loading
         int typesUsed = EnderFluidDBManager.getTypeCount(scopePrefix, frequency);
         return calculateCellState(typesUsed, typeLimit);
     }
@@ -78,12 +80,12 @@ public class EnderFluidDiskInventory extends AbstractEnderDiskInventory {
         if (transferMode == 2) return 0; // output-only
         if (!(what instanceof AEFluidKey fluidKey)) return 0;
         if (passesFilter(what)) return 0;
-        if (!running) {
+        if (!EnderFluidDBManager.isReady() || !EnderFluidDBManager.isLoaded(scopePrefix, frequency)) {
             log("Fluid DB not ready for inserts.");
             return 0;
         }
 
-        byte[] serialized = serializeFluidStackToBytes(fluidKey.toStack(1));
+        byte[] serialized = SerializedKeyCache.FLUIDS.get(fluidKey);
         if (serialized.length == 0) return 0;
 
         long existing = EnderFluidDBManager.getFluidAmount(scopePrefix, frequency, serialized);
@@ -104,9 +106,10 @@ public class EnderFluidDiskInventory extends AbstractEnderDiskInventory {
         if (disabled) return 0;
         int transferMode = EnderFluidDiskItem.getTransferMode(stack);
         if (transferMode == 1) return 0; // input-only
+        if (!EnderFluidDBManager.isReady() || !EnderFluidDBManager.isLoaded(scopePrefix, frequency)) return 0;
         if (!(what instanceof AEFluidKey fluidKey)) return 0;
 
-        byte[] serialized = serializeFluidStackToBytes(fluidKey.toStack(1));
+        byte[] serialized = SerializedKeyCache.FLUIDS.get(fluidKey);
         if (serialized.length == 0) return 0;
 
         long stored = EnderFluidDBManager.getFluidAmount(scopePrefix, frequency, serialized);
@@ -131,6 +134,7 @@ public class EnderFluidDiskInventory extends AbstractEnderDiskInventory {
 
     @Override
     public void getAvailableStacks(KeyCounter out) {
+        if (!EnderFluidDBManager.isReady() || !EnderFluidDBManager.isLoaded(scopePrefix, frequency)) return;
         List<FluidKeyCacheEntry> entries = EnderFluidDBManager.queryFluidsByFrequency(scopePrefix, frequency);
         for (FluidKeyCacheEntry entry : entries) {
             out.add(entry.aeKey(), entry.count());
@@ -140,7 +144,8 @@ public class EnderFluidDiskInventory extends AbstractEnderDiskInventory {
     @Override
     public boolean isPreferredStorageFor(AEKey what, IActionSource source) {
         if (!(what instanceof AEFluidKey fk)) return false;
-        byte[] serialized = serializeFluidStackToBytes(fk.toStack(1)); // 1 mB key identity is enough
+        if (!EnderFluidDBManager.isReady() || !EnderFluidDBManager.isLoaded(scopePrefix, frequency)) return false; // still loading
+        byte[] serialized = SerializedKeyCache.FLUIDS.get(fk); // 1 mB key identity is enough
         if (serialized.length == 0) return false;
         long stored = EnderFluidDBManager.getFluidAmount(scopePrefix, frequency, serialized);
         return stored > 0;
@@ -13,6 +13,7 @@ import appeng.api.storage.cells.ICellHandler;
 import appeng.api.storage.cells.ISaveProvider;
 import appeng.api.storage.cells.StorageCell;
 import appeng.blockentity.storage.DriveBlockEntity;
+import com.sts15.enderdrives.db.SerializedKeyCache;
 import com.sts15.enderdrives.db.StoredEntry;
 import com.sts15.enderdrives.db.TapeKey;
 import com.sts15.enderdrives.integration.DriveBlockEntityAccessor;
@@ -75,7 +76,7 @@ public class TapeDiskInventory extends AbstractEnderDiskInventory {
             ItemStack descriptorStack = itemKey.toStack(1);
             if (!isSpecialItem(descriptorStack) || !hasMeaningfulNBT(descriptorStack)) return 0;
 
-            byte[] data = TapeDiskItem.serializeItemStackToBytes(descriptorStack);
+            byte[] data = SerializedKeyCache.ITEMS.get(itemKey);
             if (data == null || data.length == 0) {
                 return 0;
             }
@@ -188,9 +189,7 @@ public class TapeDiskInventory extends AbstractEnderDiskInventory {
             }
         }
         if (matchKey == null) {
-            ItemStack s = itemKey.toStack();
-            s.setCount((int) Math.min(amount, 64));
-            byte[] data = TapeDiskItem.serializeItemStackToBytes(s);
+            byte[] data = SerializedKeyCache.ITEMS.get(itemKey);
             if (data == null || data.length == 0) return 0;
             matchKey = new TapeKey(data);
         }